@@ -0,0 +1,80 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.security.core.runas.RunAsSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Hands pending GavinRuns to workers. A worker that finds no pending run waits for a limited time
+ * without holding a request thread, and claims the next run that becomes pending. Waiting workers
+ * are served in the order in which they arrived.
+ */
+@Component
+class ClaimDispatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(ClaimDispatcher.class);
+
+  private final GavinService gavinService;
+  private final Queue<DeferredResult<ResponseEntity<GavinRunClaim>>> waitingClaims =
+      new ConcurrentLinkedQueue<>();
+
+  ClaimDispatcher(GavinService gavinService) {
+    this.gavinService = requireNonNull(gavinService);
+  }
+
+  /**
+   * Claims a pending GavinRun for a worker.
+   *
+   * @param timeout how long to wait for a run to become pending
+   * @return the claimed run, or no content if no run became pending in time
+   */
+  DeferredResult<ResponseEntity<GavinRunClaim>> claim(Duration timeout) {
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim =
+        new DeferredResult<>(timeout.toMillis(), ResponseEntity.noContent().build());
+    claim.onCompletion(() -> waitingClaims.remove(claim));
+    waitingClaims.add(claim);
+    dispatch();
+    if (timeout.isZero()) {
+      // a zero timeout means no timeout to the servlet container
+      claim.setResult(ResponseEntity.noContent().build());
+    }
+    return claim;
+  }
+
+  @RunAsSystem
+  @TransactionalEventListener
+  public void onRunPending(RunPendingEvent event) {
+    LOG.debug("GavinRun '{}' is pending", event.getId());
+    dispatch();
+  }
+
+  /** Claims pending runs for the waiting workers until either runs out. */
+  private synchronized void dispatch() {
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim;
+    while ((claim = waitingClaims.peek()) != null) {
+      if (claim.isSetOrExpired()) {
+        waitingClaims.remove(claim);
+        continue;
+      }
+      Optional<GavinRun> gavinRun = gavinService.claim();
+      if (!gavinRun.isPresent()) {
+        return;
+      }
+      waitingClaims.remove(claim);
+      if (!claim.setResult(ResponseEntity.ok(GavinRunClaim.create(gavinRun.get())))) {
+        // the claim expired while the run was claimed for it
+        gavinService.requeue(gavinRun.get().getId());
+      }
+    }
+  }
+}
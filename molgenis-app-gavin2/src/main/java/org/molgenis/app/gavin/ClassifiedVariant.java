@@ -0,0 +1,27 @@
+package org.molgenis.app.gavin;
+
+import com.google.auto.value.AutoValue;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+import org.molgenis.util.AutoGson;
+
+/** The result of classifying a {@link VariantRequest}. */
+@AutoValue
+@AutoGson(autoValueClass = AutoValue_ClassifiedVariant.class)
+public abstract class ClassifiedVariant {
+  /** @return why the variant could not be parsed, or null if it is valid */
+  @Nullable
+  public abstract String getDiscardReason();
+
+  /**
+   * @return the output records of the variant, one per alternative allele, empty if the variant is
+   *     not valid or was not classified within the request
+   */
+  public abstract List<String> getRecords();
+
+  static ClassifiedVariant create(@Nullable DiscardReason discardReason, List<String> records) {
+    return new AutoValue_ClassifiedVariant(
+        discardReason != null ? discardReason.getDescription() : null, records);
+  }
+}
@@ -0,0 +1,25 @@
+package org.molgenis.app.gavin;
+
+import com.google.auto.value.AutoValue;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.molgenis.util.AutoGson;
+
+@AutoValue
+@AutoGson(autoValueClass = AutoValue_ClassifyResponse.class)
+public abstract class ClassifyResponse {
+  /** @return the results in the order of the requested variants */
+  public abstract List<ClassifiedVariant> getVariants();
+
+  /** @return the id of the GavinRun that classifies the variants, if they were not classified */
+  @Nullable
+  public abstract String getRunId();
+
+  boolean hasDiscardedVariants() {
+    return getVariants().stream().anyMatch(variant -> variant.getDiscardReason() != null);
+  }
+
+  static ClassifyResponse create(List<ClassifiedVariant> variants, @Nullable String runId) {
+    return new AutoValue_ClassifyResponse(variants, runId);
+  }
+}
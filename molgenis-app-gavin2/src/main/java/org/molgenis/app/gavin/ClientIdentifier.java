@@ -0,0 +1,50 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Objects.requireNonNull;
+
+import java.security.Principal;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Identifies the client that submits a GavinRun, for the fair share of the {@link RunScheduler}.
+ * A signed in user is identified by user name, so that the runs of a user count together from
+ * every address. Anonymous clients are identified by address.
+ *
+ * <p>Behind a reverse proxy every request comes from the address of the proxy. Configure the
+ * header in which the proxy forwards the address of the client, for instance X-Forwarded-For.
+ * Only configure it if a proxy sets the header, otherwise clients could choose their own address.
+ */
+@Component
+class ClientIdentifier {
+  private final String forwardedForHeader;
+
+  ClientIdentifier(@Value("${gavin.clients.forwardedForHeader:}") String forwardedForHeader) {
+    this.forwardedForHeader = requireNonNull(forwardedForHeader);
+  }
+
+  /**
+   * Handler methods that run as system take the principal as a method argument, which is resolved
+   * before the method runs as system.
+   *
+   * @param principal the signed in user, or null if the client is anonymous
+   */
+  String identify(HttpServletRequest httpServletRequest, @Nullable Principal principal) {
+    if (principal != null) {
+      return "user:" + principal.getName();
+    }
+    if (!forwardedForHeader.isEmpty()) {
+      String forwardedFor = httpServletRequest.getHeader(forwardedForHeader);
+      if (forwardedFor != null) {
+        // the proxy appends the address it received the request from, earlier entries are untrusted
+        String address = forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+        if (!address.isEmpty()) {
+          return address;
+        }
+      }
+    }
+    return httpServletRequest.getRemoteAddr();
+  }
+}
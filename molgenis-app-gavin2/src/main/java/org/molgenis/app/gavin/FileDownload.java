@@ -0,0 +1,217 @@
+package org.molgenis.app.gavin;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.springframework.http.HttpHeaders.ACCEPT_RANGES;
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpHeaders.IF_RANGE;
+import static org.springframework.http.HttpHeaders.LAST_MODIFIED;
+import static org.springframework.http.HttpHeaders.RANGE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.molgenis.data.file.model.FileMeta;
+
+/**
+ * Writes a stored file to a download response, with the content type and file name of the file.
+ * Files get a strong ETag based on their id and size, so that clients can revalidate them, and a
+ * single byte range can be requested, so that interrupted downloads can be resumed. The file is
+ * sent with sendfile if the servlet container supports it and with {@link FileChannel#transferTo}
+ * otherwise.
+ */
+class FileDownload {
+  static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  /** A single range, requests for multiple ranges are answered with the whole file */
+  private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d{0,18})-(\\d{0,18})");
+
+  private FileDownload() {}
+
+  static void write(
+      HttpServletRequest request, HttpServletResponse response, FileMeta fileMeta, File file)
+      throws IOException {
+    write(
+        request,
+        response,
+        fileMeta.getId(),
+        fileMeta.getFilename(),
+        fileMeta.getContentType(),
+        file,
+        file.length());
+  }
+
+  /**
+   * Writes the first bytes of a file that is still being written to.
+   *
+   * @param id identifies the file in the ETag
+   * @param contentType the media type of the file, null if it is unknown
+   * @param length the number of bytes of the file to write
+   */
+  static void write(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      String id,
+      @Nullable String filename,
+      @Nullable String contentType,
+      File file,
+      long length)
+      throws IOException {
+    long lastModified = file.lastModified();
+    String eTag = format("\"%s-%d\"", id, length);
+    response.setHeader(ETAG, eTag);
+    response.setDateHeader(LAST_MODIFIED, lastModified);
+    if (matchesAny(request.getHeader(IF_NONE_MATCH), eTag)) {
+      response.setStatus(SC_NOT_MODIFIED);
+      return;
+    }
+    response.setHeader(ACCEPT_RANGES, "bytes");
+    response.setContentType(contentType != null ? contentType : APPLICATION_OCTET_STREAM_VALUE);
+    response.setHeader(CONTENT_DISPOSITION, getContentDisposition(filename));
+
+    long start = 0;
+    long end = length;
+    String range = request.getHeader(RANGE);
+    Matcher matcher = range != null ? BYTE_RANGE.matcher(range) : null;
+    if (matcher != null
+        && matcher.matches()
+        && isValid(matcher)
+        && isCurrent(request, eTag, lastModified)) {
+      if (matcher.group(1).isEmpty()) {
+        start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+      } else {
+        start = Long.parseLong(matcher.group(1));
+        if (!matcher.group(2).isEmpty()) {
+          end = Math.min(length, Long.parseLong(matcher.group(2)) + 1);
+        }
+      }
+      if (start >= end) {
+        response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader(CONTENT_RANGE, format("bytes */%d", length));
+        return;
+      }
+      response.setStatus(SC_PARTIAL_CONTENT);
+      response.setHeader(CONTENT_RANGE, format("bytes %d-%d/%d", start, end - 1, length));
+    }
+    response.setContentLengthLong(end - start);
+    transfer(request, response, file, start, end);
+  }
+
+  /**
+   * File names come from uploads. Characters that cannot be sent in the quoted filename parameter
+   * are replaced there, and the exact name is sent in the filename* parameter of RFC 6266.
+   */
+  static String getContentDisposition(@Nullable String filename) {
+    if (filename == null) {
+      return "attachment";
+    }
+    String quotableFilename = filename.replaceAll("[^\\x20-\\x7e]|[\"\\\\]", "_");
+    if (quotableFilename.equals(filename)) {
+      return format("attachment; filename=\"%s\"", filename);
+    }
+    return format(
+        "attachment; filename=\"%s\"; filename*=UTF-8''%s",
+        quotableFilename, percentEncode(filename));
+  }
+
+  /** Percent-encodes the UTF-8 bytes of a value, except the attr-chars of RFC 5987. */
+  private static String percentEncode(String value) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(UTF_8)) {
+      if (isAttrChar(b)) {
+        encoded.append((char) b);
+      } else {
+        encoded.append(format("%%%02X", b & 0xff));
+      }
+    }
+    return encoded.toString();
+  }
+
+  private static boolean isAttrChar(byte b) {
+    return b >= 'a' && b <= 'z'
+        || b >= 'A' && b <= 'Z'
+        || b >= '0' && b <= '9'
+        || "!#$&+-.^_`|~".indexOf(b) >= 0;
+  }
+
+  /** Ranges without a first and last byte, or with the last byte before the first, are ignored */
+  private static boolean isValid(Matcher byteRange) {
+    String first = byteRange.group(1);
+    String last = byteRange.group(2);
+    if (first.isEmpty()) {
+      return !last.isEmpty();
+    }
+    return last.isEmpty() || Long.parseLong(last) >= Long.parseLong(first);
+  }
+
+  private static boolean matchesAny(String entityTags, String eTag) {
+    if (entityTags == null) {
+      return false;
+    }
+    for (String entityTag : entityTags.split(",")) {
+      String trimmed = entityTag.trim();
+      if (trimmed.equals("*") || trimmed.equals(eTag) || trimmed.equals("W/" + eTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A range is only served if the If-Range validator, if any, matches the current file */
+  private static boolean isCurrent(HttpServletRequest request, String eTag, long lastModified) {
+    String ifRange = request.getHeader(IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(eTag);
+    }
+    try {
+      return request.getDateHeader(IF_RANGE) / 1000 == lastModified / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /** Transfers the bytes of the file from start (inclusive) to end (exclusive). */
+  private static void transfer(
+      HttpServletRequest request, HttpServletResponse response, File file, long start, long end)
+      throws IOException {
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+      request.setAttribute(SENDFILE_START, start);
+      request.setAttribute(SENDFILE_END, end);
+      return;
+    }
+    try (FileChannel fileChannel = FileChannel.open(file.toPath(), READ)) {
+      WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+      long position = start;
+      while (position < end) {
+        long transferred = fileChannel.transferTo(position, end - position, target);
+        if (transferred == 0) {
+          throw new EOFException(format("File '%s' was truncated", file.getName()));
+        }
+        position += transferred;
+      }
+    }
+  }
+}
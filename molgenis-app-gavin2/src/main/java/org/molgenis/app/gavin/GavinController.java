@@ -1,43 +1,59 @@
 package org.molgenis.app.gavin;
 
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
 import static org.molgenis.app.gavin.GavinController.URI;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.DISCARDED_INPUT_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.FILTERED_INPUT_FILE;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.GAVIN_RUN;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.OUTPUT_FILE;
 import static org.molgenis.data.file.model.FileMetaMetaData.FILE_META;
 import static org.molgenis.data.importer.ImportRunMetaData.STATUS;
+import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
 import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.Principal;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.data.DataService;
 import org.molgenis.data.file.FileStore;
 import org.molgenis.data.file.model.FileMeta;
-import org.molgenis.jobs.model.JobExecution.Status;
 import org.molgenis.security.core.runas.RunAsSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping(URI)
@@ -49,35 +65,216 @@ public class GavinController {
   private final GavinService gavinService;
   private final FileStore fileStore;
   private final DataService dataService;
+  private final ClaimDispatcher claimDispatcher;
+  private final OutputUploads outputUploads;
+  private final RunProgress runProgress;
+  private final RunStatusStreams runStatusStreams;
+  private final RunLogs runLogs;
+  private final SyncClassifications syncClassifications;
+  private final ClientIdentifier clientIdentifier;
 
-  private static final Duration RUN_EXPIRATION_TIME = Duration.ofDays(1);
+  /** Runs are cleaned up after this time, runs for identical uploads share files until then */
+  static final Duration RUN_EXPIRATION_TIME = Duration.ofDays(1);
+  private static final long MAX_CLAIM_TIMEOUT_SECONDS = 60;
+  /** The maximum number of runs of which the status is requested at once */
+  static final int MAX_STATUS_IDS = 1000;
+  private static final Duration STATUS_STREAM_TIMEOUT = Duration.ofMinutes(30);
+  static final String PARTIAL_OUTPUT_HEADER = "X-Gavin-Partial-Output";
+  private static final String PARTIAL_OUTPUT_FILENAME = "partial_output.vcf";
+  private static final String LOG_FILENAME = "log.txt";
+  private static final String LOG_CONTENT_TYPE = "text/plain;charset=UTF-8";
 
-  GavinController(GavinService gavinService, FileStore fileStore, DataService dataService) {
+  GavinController(
+      GavinService gavinService,
+      FileStore fileStore,
+      DataService dataService,
+      ClaimDispatcher claimDispatcher,
+      OutputUploads outputUploads,
+      RunProgress runProgress,
+      RunStatusStreams runStatusStreams,
+      RunLogs runLogs,
+      SyncClassifications syncClassifications,
+      ClientIdentifier clientIdentifier) {
     this.gavinService = requireNonNull(gavinService);
     this.fileStore = requireNonNull(fileStore);
     this.dataService = requireNonNull(dataService);
+    this.claimDispatcher = requireNonNull(claimDispatcher);
+    this.outputUploads = requireNonNull(outputUploads);
+    this.runProgress = requireNonNull(runProgress);
+    this.runStatusStreams = requireNonNull(runStatusStreams);
+    this.runLogs = requireNonNull(runLogs);
+    this.syncClassifications = requireNonNull(syncClassifications);
+    this.clientIdentifier = requireNonNull(clientIdentifier);
   }
 
+  /**
+   * Uploads a file to create a GavinRun. The file is parsed while it is received, so send it as
+   * the request body with its name in the "filename" parameter. A file named "file" in a multipart
+   * form is also accepted, but the servlet container buffers it before it is parsed.
+   *
+   * @return accepted with the id of the created GavinRun
+   */
   @RunAsSystem
-  @SuppressWarnings("unused")
   @PostMapping(value = "/upload")
   public ResponseEntity<String> upload(
-      @RequestParam(value = "file") MultipartFile inputFile, HttpServletRequest httpServletRequest)
+      @RequestParam(value = "largeFile", defaultValue = "false") boolean largeFile,
+      HttpServletRequest httpServletRequest,
+      @Nullable Principal principal)
       throws IOException {
-    String id = gavinService.upload(httpServletRequest);
-    return ResponseEntity.created(java.net.URI.create(id)).body(id);
+    String submittedBy = clientIdentifier.identify(httpServletRequest, principal);
+    String id = gavinService.upload(httpServletRequest, submittedBy, largeFile);
+    return ResponseEntity.accepted().location(java.net.URI.create(id)).body(id);
+  }
+
+  /**
+   * Classifies a small batch of variants, for interactive lookups. The variants are parsed like the
+   * lines of an uploaded file and multi-allelic variants are decomposed. If all variants are valid
+   * and in the classification cache, the response contains their output records.
+   * Otherwise a GavinRun is created for the variants, of which the id is returned like for an
+   * upload.
+   *
+   * @param variants at most {@link SyncClassifications#MAX_VARIANTS} variants
+   * @return ok with the output records, accepted with the id of the created GavinRun or bad
+   *     request with the reasons why variants could not be parsed
+   */
+  @RunAsSystem
+  @PostMapping(value = "/classify")
+  public ResponseEntity<ClassifyResponse> classify(
+      @RequestBody List<VariantRequest> variants,
+      HttpServletRequest httpServletRequest,
+      @Nullable Principal principal)
+      throws IOException {
+    if (variants.isEmpty() || variants.size() > SyncClassifications.MAX_VARIANTS) {
+      return ResponseEntity.badRequest().build();
+    }
+    ClassifyResponse response =
+        syncClassifications.classify(
+            variants, clientIdentifier.identify(httpServletRequest, principal));
+    if (response.hasDiscardedVariants()) {
+      return ResponseEntity.badRequest().body(response);
+    }
+    if (response.getRunId() != null) {
+      return ResponseEntity.accepted()
+          .location(java.net.URI.create("run/" + response.getRunId()))
+          .body(response);
+    }
+    return ResponseEntity.ok(response);
   }
 
   @RunAsSystem
   @GetMapping(value = "/run/{id}")
   public GavinRunResponse get(@PathVariable String id) {
-    return GavinRunResponse.create(gavinService.get(id));
+    GavinRun gavinRun = gavinService.get(id);
+    List<GavinRun> shards =
+        gavinRun.getNumberOfShards().isPresent() ? gavinService.getShards(gavinRun) : emptyList();
+    return GavinRunResponse.create(gavinRun, runProgress.estimate(gavinRun, shards, Instant.now()));
+  }
+
+  /**
+   * Gets the status of many runs at once. Runs that do not exist are left out.
+   *
+   * @param ids the ids of the runs, at most {@link #MAX_STATUS_IDS}
+   * @param changedSince if given, only the runs that changed after this time and the runs that are
+   *     running, whose progress changes all the time. Use the Date header of the previous response.
+   * @return ok with the status of the runs, or bad request if there are too many ids
+   */
+  @RunAsSystem
+  @PostMapping(value = "/runs/status")
+  public ResponseEntity<List<GavinRunResponse>> getRuns(
+      @RequestBody List<String> ids,
+      @RequestParam(value = "changedSince", required = false) Instant changedSince) {
+    if (ids.size() > MAX_STATUS_IDS) {
+      return ResponseEntity.badRequest().build();
+    }
+    List<GavinRun> gavinRuns = gavinService.getRuns(ids, changedSince);
+    Map<String, List<GavinRun>> shards = gavinService.getShardsByParentId(gavinRuns);
+    Instant now = Instant.now();
+    return ResponseEntity.ok(
+        gavinRuns
+            .stream()
+            .map(
+                gavinRun ->
+                    GavinRunResponse.create(
+                        gavinRun,
+                        runProgress.estimate(
+                            gavinRun, shards.getOrDefault(gavinRun.getId(), emptyList()), now)))
+            .collect(toList()));
+  }
+
+  /**
+   * Streams the status of a run as server-sent events. The current status is sent first, then the
+   * status whenever the run changes or makes progress, until the run has succeeded or failed.
+   * Clients reconnect after {@link #STATUS_STREAM_TIMEOUT}.
+   */
+  @RunAsSystem
+  @GetMapping(value = "/run/{id}/events", produces = TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter events(@PathVariable String id) {
+    SseEmitter emitter = new SseEmitter(STATUS_STREAM_TIMEOUT.toMillis());
+    runStatusStreams.subscribe(id, emitter);
+    return emitter;
+  }
+
+  /**
+   * Claims the next pending run and starts it. If no run is pending, the request waits for one
+   * to become pending.
+   *
+   * @param timeout the number of seconds to wait for a pending run, at most 60
+   * @return the claimed run, or no content if no run became pending in time
+   */
+  @PostMapping(value = "/claim")
+  public DeferredResult<ResponseEntity<GavinRunClaim>> claim(
+      @RequestParam(value = "timeout", defaultValue = "30") long timeout) {
+    long timeoutSeconds = Math.max(0, Math.min(timeout, MAX_CLAIM_TIMEOUT_SECONDS));
+    return claimDispatcher.claim(Duration.ofSeconds(timeoutSeconds));
   }
 
+  /**
+   * Starts a pending run under a lease.
+   *
+   * @return the started run, with the lease token to pass on the calls for the run, or conflict if
+   *     the run is not pending because it was started already, finished or is split into shards
+   */
   @PostMapping(value = "/run/{id}/start")
-  @ResponseStatus(HttpStatus.NO_CONTENT)
-  public void start(@PathVariable String id) {
-    gavinService.start(id);
+  public ResponseEntity<GavinRunClaim> start(@PathVariable String id) {
+    return gavinService
+        .claim(id)
+        .map(GavinRunClaim::create)
+        .map(ResponseEntity::ok)
+        .orElseGet(() -> ResponseEntity.status(HttpStatus.CONFLICT).build());
+  }
+
+  /**
+   * Reports the number of variants of a run that a worker has processed. Progress is kept in memory
+   * only, so workers can report it as often as they like.
+   *
+   * @return conflict if the run is not running under the lease, the worker should stop processing
+   *     it then
+   */
+  @PostMapping(value = "/run/{id}/progress")
+  public ResponseEntity<Void> progress(
+      @PathVariable String id,
+      @RequestParam String leaseToken,
+      @RequestParam long processedVariants) {
+    if (!gavinService.holdsLease(id, leaseToken)) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+    runProgress.report(id, processedVariants);
+    runStatusStreams.onProgress(id);
+    return ResponseEntity.noContent().build();
+  }
+
+  /**
+   * Extends the lease of a running run. Workers send a heartbeat every minute while they process a
+   * run.
+   *
+   * @return conflict if the run is no longer running under the lease, the worker should stop
+   *     processing it then
+   */
+  @PostMapping(value = "/run/{id}/heartbeat")
+  public ResponseEntity<Void> heartbeat(@PathVariable String id, @RequestParam String leaseToken) {
+    return gavinService.heartbeat(id, leaseToken)
+        ? ResponseEntity.noContent().build()
+        : ResponseEntity.status(HttpStatus.CONFLICT).build();
   }
 
   @SuppressWarnings("unused")
@@ -85,53 +282,201 @@ public class GavinController {
   @ResponseStatus(HttpStatus.NO_CONTENT)
   public void finish(
       @PathVariable String id,
+      @RequestParam String leaseToken,
       @RequestParam MultipartFile outputFile,
       @RequestParam String log,
       HttpServletRequest httpServletRequest)
       throws IOException {
-    gavinService.finish(id, log, httpServletRequest);
+    gavinService.finish(id, leaseToken, log, httpServletRequest);
+  }
+
+  /**
+   * Appends a chunk of the output of a run. Workers upload their output in chunks and then commit
+   * it, a worker that loses its connection asks for the offset that was received and resumes from
+   * there. A chunk at offset 0 starts the upload over.
+   *
+   * @param offset the position of the chunk in the output
+   * @return the number of bytes received, or conflict with the offset to resume from
+   */
+  @PostMapping(value = "/run/{id}/output", consumes = APPLICATION_OCTET_STREAM_VALUE)
+  public ResponseEntity<Long> appendOutput(
+      @PathVariable String id,
+      @RequestParam String leaseToken,
+      @RequestParam(value = "offset") long offset,
+      HttpServletRequest httpServletRequest)
+      throws IOException {
+    try {
+      return ResponseEntity.ok(
+          gavinService.appendOutput(
+              id, leaseToken, offset, httpServletRequest.getInputStream()));
+    } catch (OutputUploadException e) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getOffset());
+    }
+  }
+
+  /** @return the number of bytes of the output of a run that were received */
+  @GetMapping(value = "/run/{id}/output/offset")
+  public long getOutputOffset(@PathVariable String id, @RequestParam String leaseToken)
+      throws IOException {
+    return gavinService.getOutputOffset(id, leaseToken);
+  }
+
+  /**
+   * Finishes a run with the output that was uploaded in chunks.
+   *
+   * @param sha256 the hex encoded SHA-256 of the output
+   * @return conflict if the checksum does not match, the output has to be uploaded again then
+   */
+  @PostMapping(value = "/run/{id}/output/commit")
+  public ResponseEntity<Long> commitOutput(
+      @PathVariable String id,
+      @RequestParam String leaseToken,
+      @RequestParam String filename,
+      @RequestParam String sha256,
+      @RequestParam String log)
+      throws IOException {
+    try {
+      gavinService.commitOutput(id, leaseToken, filename, sha256, log);
+      return ResponseEntity.noContent().build();
+    } catch (OutputUploadException e) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getOffset());
+    }
+  }
+
+  /** Appends text to the log of a run. Workers log while they process a run. */
+  @PostMapping(value = "/run/{id}/log", consumes = TEXT_PLAIN_VALUE)
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  public void appendLog(
+      @PathVariable String id, @RequestParam String leaseToken, @RequestBody String text) {
+    gavinService.appendLog(id, leaseToken, text);
+  }
+
+  /**
+   * Reads the log of a run. The log only grows, so a client that follows it requests the bytes
+   * after the ones it has with a range such as {@code bytes=1024-}, and the end of the log with a
+   * range such as {@code bytes=-1024}, see {@link FileDownload}.
+   *
+   * @return no content if nothing was logged yet
+   */
+  @RunAsSystem
+  @GetMapping(value = "/run/{id}/log")
+  public void downloadLog(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable(value = "id") String id)
+      throws IOException {
+    GavinRun gavinRun = gavinService.get(id);
+    response.setContentType(LOG_CONTENT_TYPE);
+    response.setHeader(CACHE_CONTROL, "no-cache");
+    long length = runLogs.getLength(id);
+    if (length == 0) {
+      Optional<String> storedLog = gavinRun.getLog();
+      if (storedLog.isPresent()) {
+        // runs from before logs were stored in files have their log in the entity
+        response.getOutputStream().write(storedLog.get().getBytes(UTF_8));
+      } else {
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      }
+      return;
+    }
+    FileDownload.write(
+        request,
+        response,
+        format("%s-log", id),
+        LOG_FILENAME,
+        LOG_CONTENT_TYPE,
+        runLogs.getFile(id),
+        length);
   }
 
   @PostMapping(value = "/run/{id}/fail")
   @ResponseStatus(HttpStatus.NO_CONTENT)
-  public void fail(@PathVariable String id, @RequestParam String log) {
-    gavinService.fail(id, log);
+  public void fail(
+      @PathVariable String id, @RequestParam String leaseToken, @RequestParam String log) {
+    gavinService.fail(id, leaseToken, log);
+  }
+
+  /** Calls for a run of which the worker no longer holds the lease get a conflict. */
+  @ExceptionHandler(LeaseException.class)
+  public ResponseEntity<Void> handleLeaseException(LeaseException e) {
+    LOG.info(e.getMessage());
+    return ResponseEntity.status(HttpStatus.CONFLICT).build();
   }
 
+  /**
+   * Downloads the output of a run. While a run is running, the output that its worker uploaded so
+   * far is returned up to the last complete line, marked with the {@link #PARTIAL_OUTPUT_HEADER}
+   * header. Parent runs of shards have no partial output.
+   */
   @RunAsSystem
   @GetMapping(value = "/run/{id}/download/output", produces = APPLICATION_OCTET_STREAM_VALUE)
-  public FileSystemResource downloadOutputFile(
-      HttpServletResponse response, @PathVariable(value = "id") String id) {
-    Optional<FileMeta> outputFile = gavinService.get(id).getOutputFile();
-    return prepareDownload(response, outputFile.orElse(null));
+  public void downloadOutputFile(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable(value = "id") String id)
+      throws IOException {
+    GavinRun gavinRun = gavinService.get(id);
+    Optional<FileMeta> outputFile = gavinRun.getOutputFile();
+    if (!outputFile.isPresent()
+        && gavinRun.getStatus() == Status.RUNNING
+        && !gavinRun.getNumberOfShards().isPresent()) {
+      downloadPartialOutput(request, response, id);
+    } else {
+      download(request, response, outputFile.orElse(null));
+    }
+  }
+
+  private void downloadPartialOutput(
+      HttpServletRequest request, HttpServletResponse response, String id) throws IOException {
+    response.setHeader(PARTIAL_OUTPUT_HEADER, "true");
+    response.setHeader(CACHE_CONTROL, "no-cache");
+    long length = outputUploads.getCompleteLinesOffset(id);
+    if (length == 0) {
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+    FileDownload.write(
+        request,
+        response,
+        format("%s-partial", id),
+        PARTIAL_OUTPUT_FILENAME,
+        null,
+        outputUploads.getFile(id),
+        length);
   }
 
   @RunAsSystem
   @GetMapping(value = "/run/{id}/download/input", produces = APPLICATION_OCTET_STREAM_VALUE)
-  public FileSystemResource downloadInputFile(
-      HttpServletResponse response, @PathVariable(value = "id") String id) {
+  public void downloadInputFile(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable(value = "id") String id)
+      throws IOException {
     Optional<FileMeta> inputFile = gavinService.get(id).getFilteredInputFile();
-    return prepareDownload(response, inputFile.orElse(null));
+    download(request, response, inputFile.orElse(null));
   }
 
   @RunAsSystem
   @GetMapping(value = "/run/{id}/download/error", produces = APPLICATION_OCTET_STREAM_VALUE)
-  public FileSystemResource downloadErrorFile(
-      HttpServletResponse response, @PathVariable(value = "id") String id) {
+  public void downloadErrorFile(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable(value = "id") String id)
+      throws IOException {
     Optional<FileMeta> errorFile = gavinService.get(id).getDiscardedInputFile();
-    return prepareDownload(response, errorFile.orElse(null));
+    download(request, response, errorFile.orElse(null));
   }
 
-  private FileSystemResource prepareDownload(HttpServletResponse response, FileMeta fileMeta) {
+  /** Downloads support conditional and range requests, see {@link FileDownload}. */
+  private void download(HttpServletRequest request, HttpServletResponse response, FileMeta fileMeta)
+      throws IOException {
     if (fileMeta == null) {
       response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-      return null;
+      return;
     }
 
     File file = fileStore.getFile(fileMeta.getId());
-    response.setHeader(
-        "Content-Disposition", format("attachment; filename=\"%s\"", fileMeta.getFilename()));
-    return new FileSystemResource(file);
+    FileDownload.write(request, response, fileMeta, file);
   }
 
   /**
@@ -158,10 +503,19 @@ public class GavinController {
     LOG.debug("Cleanup routine ended");
   }
 
+  /** Requeues runs of which the worker stopped sending heartbeats. */
+  @RunAsSystem
+  @Scheduled(fixedRate = 60 * 1000)
+  public void requeueExpiredRuns() {
+    LOG.debug("Requeueing GavinRuns with expired leases");
+    gavinService.requeueExpiredRuns();
+  }
+
   private boolean containsFiles(GavinRun gavinRun) {
     return gavinRun.getFilteredInputFile().isPresent()
         || gavinRun.getDiscardedInputFile().isPresent()
-        || gavinRun.getOutputFile().isPresent();
+        || gavinRun.getOutputFile().isPresent()
+        || runLogs.getLength(gavinRun.getId()) > 0;
   }
 
   private boolean hasExpired(GavinRun gavinRun) {
@@ -190,13 +544,27 @@ public class GavinController {
     deleteFile(filteredInput.orElse(null));
     deleteFile(discardedInput.orElse(null));
     deleteFile(output.orElse(null));
+    runLogs.delete(gavinRun.getId());
 
     LOG.info("Done deleting files of GavinRun '{}'", gavinRun.getId());
   }
 
+  /** Runs for identical uploads share files, a file is deleted with the last run that has it. */
   private void deleteFile(FileMeta fileMeta) {
-    if (fileMeta != null) {
+    if (fileMeta != null && !isReferenced(fileMeta)) {
       dataService.delete(FILE_META, fileMeta);
     }
   }
+
+  private boolean isReferenced(FileMeta fileMeta) {
+    return dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .eq(FILTERED_INPUT_FILE, fileMeta)
+            .or()
+            .eq(DISCARDED_INPUT_FILE, fileMeta)
+            .or()
+            .eq(OUTPUT_FILE, fileMeta)
+            .count()
+        > 0;
+  }
 }
@@ -0,0 +1,29 @@
+package org.molgenis.app.gavin;
+
+import static java.lang.String.format;
+import static org.molgenis.app.gavin.GavinController.GAVIN;
+
+import com.google.auto.value.AutoValue;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.util.AutoGson;
+
+/**
+ * A GavinRun claimed by a worker, with the location of the input to annotate. The worker passes the
+ * lease token on its calls for the run.
+ */
+@AutoValue
+@AutoGson(autoValueClass = AutoValue_GavinRunClaim.class)
+public abstract class GavinRunClaim {
+  public abstract String getId();
+
+  public abstract String getFilteredInputFileUri();
+
+  public abstract String getLeaseToken();
+
+  static GavinRunClaim create(GavinRun gavinRun) {
+    return new AutoValue_GavinRunClaim(
+        gavinRun.getId(),
+        format("%s/run/%s/download/input", GAVIN, gavinRun.getId()),
+        gavinRun.getLeaseToken().orElseThrow(IllegalStateException::new));
+  }
+}
@@ -7,7 +7,7 @@ import com.google.auto.value.AutoValue;
 import java.time.Instant;
 import javax.annotation.Nullable;
 import org.molgenis.app.gavin.meta.GavinRun;
-import org.molgenis.jobs.model.JobExecution.Status;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.util.AutoGson;
 
 @AutoValue
@@ -26,8 +26,7 @@ public abstract class GavinRunResponse {
 
   public abstract Status getStatus();
 
-  @Nullable
-  public abstract String getLog();
+  public abstract String getLogUri();
 
   public abstract Instant getSubmittedAt();
 
@@ -37,7 +36,16 @@ public abstract class GavinRunResponse {
   @Nullable
   public abstract Instant getFinishedAt();
 
-  static GavinRunResponse create(GavinRun gavinRun) {
+  /** @return the number of variants in the filtered input, 0 while the input is parsed */
+  public abstract int getNumberOfVariants();
+
+  public abstract long getProcessedVariants();
+
+  /** @return the estimated time at which a running run finishes, if known */
+  @Nullable
+  public abstract Instant getEstimatedFinishAt();
+
+  static GavinRunResponse create(GavinRun gavinRun, RunProgress.Estimate progress) {
     String outputUrl =
         gavinRun.getOutputFile().isPresent()
             ? format("%s/run/%s/download/output", GAVIN, gavinRun.getId())
@@ -50,9 +58,12 @@ public abstract class GavinRunResponse {
         format("%s/run/%s/download/error", GAVIN, gavinRun.getId()),
         outputUrl,
         gavinRun.getStatus(),
-        gavinRun.getLog().orElse(null),
+        format("%s/run/%s/log", GAVIN, gavinRun.getId()),
         gavinRun.getSubmittedAt(),
         gavinRun.getStartedAt().orElse(null),
-        gavinRun.getFinishedAt().orElse(null));
+        gavinRun.getFinishedAt().orElse(null),
+        gavinRun.getNumberOfVariants(),
+        progress.getProcessedVariants(),
+        progress.getEstimatedFinishAt());
   }
 }
@@ -1,19 +1,123 @@
 package org.molgenis.app.gavin;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import org.molgenis.app.gavin.meta.GavinRun;
 import org.molgenis.data.UnknownEntityException;
 
 public interface GavinService {
-  String upload(HttpServletRequest httpServletRequest) throws IOException;
+  /**
+   * Creates a GavinRun for a file that is uploaded as the request body or as a multipart file.
+   *
+   * @param submittedBy the client that uploaded the file, see {@link ClientIdentifier}
+   * @param largeFile whether to keep all lines of the uploaded file, splitting runs with more than
+   *     the maximum number of lines into shards
+   */
+  String upload(HttpServletRequest httpServletRequest, String submittedBy, boolean largeFile)
+      throws IOException;
+
+  /**
+   * Creates a GavinRun for input that was not uploaded in a request.
+   *
+   * @param inputFileName the file name to show for the input
+   * @param input the input, is closed afterwards
+   * @param submittedBy the client that submitted the input, see {@link ClientIdentifier}
+   * @param largeFile whether to keep all lines of the input
+   */
+  String upload(String inputFileName, InputStream input, String submittedBy, boolean largeFile)
+      throws IOException;
 
   /** @throws UnknownEntityException if the GavinRun doesn't exist */
   GavinRun get(String id);
 
-  void start(String id);
+  /** @return the shards of a GavinRun in shard order, empty if the run is not split into shards */
+  List<GavinRun> getShards(GavinRun gavinRun);
+
+  /**
+   * @param changedSince if not null, only the GavinRuns that changed after this time or are running
+   * @return the GavinRuns with the given ids, GavinRuns that do not exist are left out
+   */
+  List<GavinRun> getRuns(Collection<String> ids, @Nullable Instant changedSince);
+
+  /** @return the shards of GavinRuns in shard order by the id of their parent */
+  Map<String, List<GavinRun>> getShardsByParentId(Collection<GavinRun> gavinRuns);
+
+  /**
+   * Atomically claims the next pending GavinRun, which is started. The claimed GavinRun has a lease
+   * token that the worker passes on its calls for the run.
+   *
+   * @return the claimed GavinRun, or empty if no GavinRun is pending
+   */
+  Optional<GavinRun> claim();
+
+  /**
+   * Atomically claims a GavinRun if it is pending, the claimed GavinRun is started.
+   *
+   * @return the claimed GavinRun, or empty if it is no longer pending
+   */
+  Optional<GavinRun> claim(String id);
+
+  /** Puts a claimed GavinRun back in the queue of pending runs. */
+  void requeue(String id);
+
+  /**
+   * Extends the lease of a running GavinRun. Workers send heartbeats while they process a run, runs
+   * without a heartbeat for the lease duration are requeued.
+   *
+   * @return false if the GavinRun is no longer running under the lease and its worker should stop
+   */
+  boolean heartbeat(String id, String leaseToken);
+
+  /** @return whether a GavinRun is running under a lease */
+  boolean holdsLease(String id, String leaseToken);
+
+  /** Requeues or fails the running GavinRuns of which the lease expired. */
+  void requeueExpiredRuns();
+
+  /** @throws LeaseException if the GavinRun is not running under the lease */
+  void finish(String id, String leaseToken, String log, HttpServletRequest httpServletRequest)
+      throws IOException;
+
+  /**
+   * Appends text to the log of a GavinRun.
+   *
+   * @throws LeaseException if the GavinRun is not running under the lease
+   */
+  void appendLog(String id, String leaseToken, String text);
+
+  /**
+   * @return the number of bytes of the output of a GavinRun that were received
+   * @throws LeaseException if the GavinRun is not running under the lease
+   */
+  long getOutputOffset(String id, String leaseToken) throws IOException;
+
+  /**
+   * Appends a chunk to the output of a GavinRun, a chunk at offset 0 starts the upload over.
+   *
+   * @return the number of bytes of the output that were received
+   * @throws OutputUploadException if the offset is not the number of bytes received
+   * @throws LeaseException if the GavinRun is not running under the lease
+   */
+  long appendOutput(String id, String leaseToken, long offset, InputStream chunk)
+      throws IOException;
 
-  void finish(String id, String log, HttpServletRequest httpServletRequest) throws IOException;
+  /**
+   * Finishes a GavinRun with the output that was uploaded in chunks.
+   *
+   * @param sha256 the hex encoded SHA-256 of the output
+   * @throws OutputUploadException if the checksum does not match the uploaded output
+   * @throws LeaseException if the GavinRun is not running under the lease
+   */
+  void commitOutput(String id, String leaseToken, String filename, String sha256, String log)
+      throws IOException;
 
-  void fail(String id, String log);
+  /** @throws LeaseException if the GavinRun is not running under the lease */
+  void fail(String id, String leaseToken, String log);
 }
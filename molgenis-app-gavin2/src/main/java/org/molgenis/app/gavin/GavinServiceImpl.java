@@ -1,25 +1,59 @@
 package org.molgenis.app.gavin;
 
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Comparator.comparing;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.CHANGED_AT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.FINISHED_AT;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.GAVIN_RUN;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.ID;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.INPUT_SHA256;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LARGE_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LEASE_EXPIRES_AT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.PARENT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.STATUS;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.TOOL_VERSION;
 import static org.molgenis.data.file.model.FileMetaMetaData.FILE_META;
 
 import com.google.common.collect.Multiset;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
+import org.molgenis.app.gavin.input.ClassificationCache;
 import org.molgenis.app.gavin.input.Parser;
+import org.molgenis.app.gavin.input.VcfShards;
 import org.molgenis.app.gavin.input.model.LineType;
 import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.app.gavin.meta.GavinRunFactory;
 import org.molgenis.core.ui.file.FileDownloadController;
 import org.molgenis.data.DataService;
+import org.molgenis.data.Query;
+import org.molgenis.data.Sort;
 import org.molgenis.data.UnknownEntityException;
 import org.molgenis.data.file.FileStore;
 import org.molgenis.data.file.model.FileMeta;
@@ -27,11 +61,17 @@ import org.molgenis.data.file.model.FileMetaFactory;
 import org.molgenis.data.populate.IdGenerator;
 import org.molgenis.data.populate.IdGenerator.Strategy;
 import org.molgenis.data.rest.service.ServletUriComponentsBuilderFactory;
-import org.molgenis.jobs.model.JobExecution.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponents;
 
@@ -39,6 +79,16 @@ import org.springframework.web.util.UriComponents;
 public class GavinServiceImpl implements GavinService {
 
   private static final Logger LOG = LoggerFactory.getLogger(GavinServiceImpl.class);
+  private static final int SHARD_SIZE = Parser.MAX_LINES;
+  private static final Duration LEASE_DURATION = Duration.ofMinutes(5);
+  private static final int MAX_RETRIES = 3;
+  /** The request parameter with the file name of an upload that is sent as the request body */
+  private static final String FILENAME_PARAMETER = "filename";
+  /** The file name of an upload that is sent as the request body without a file name */
+  private static final String DEFAULT_INPUT_FILENAME = "input.vcf";
+  /** The file name of output that consists of cached output only */
+  static final String CACHED_OUTPUT_FILENAME = "gavin_output.vcf";
+
   private final IdGenerator idGenerator;
   private final FileStore fileStore;
   private final FileMetaFactory fileMetaFactory;
@@ -46,6 +96,16 @@ public class GavinServiceImpl implements GavinService {
   private final DataService dataService;
   private final GavinRunFactory gavinRunFactory;
   private final Parser parser;
+  private final VcfShards vcfShards;
+  private final Executor parseExecutor;
+  private final TransactionTemplate transactionTemplate;
+  private final ApplicationEventPublisher eventPublisher;
+  private final OutputUploads outputUploads;
+  private final RunProgress runProgress;
+  private final RunLogs runLogs;
+  private final ClassificationCache classificationCache;
+  private final RunLocks runLocks;
+  private final RunScheduler runScheduler;
 
   GavinServiceImpl(
       IdGenerator idGenerator,
@@ -54,7 +114,17 @@ public class GavinServiceImpl implements GavinService {
       ServletUriComponentsBuilderFactory servletUriComponentsBuilderFactory,
       DataService dataService,
       GavinRunFactory gavinRunFactory,
-      Parser parser) {
+      Parser parser,
+      VcfShards vcfShards,
+      ParseExecutor parseExecutor,
+      PlatformTransactionManager transactionManager,
+      ApplicationEventPublisher eventPublisher,
+      OutputUploads outputUploads,
+      RunProgress runProgress,
+      RunLogs runLogs,
+      ClassificationCache classificationCache,
+      RunLocks runLocks,
+      RunScheduler runScheduler) {
     this.idGenerator = requireNonNull(idGenerator);
     this.fileStore = requireNonNull(fileStore);
     this.fileMetaFactory = requireNonNull(fileMetaFactory);
@@ -62,66 +132,389 @@ public class GavinServiceImpl implements GavinService {
     this.dataService = requireNonNull(dataService);
     this.gavinRunFactory = requireNonNull(gavinRunFactory);
     this.parser = requireNonNull(parser);
+    this.vcfShards = requireNonNull(vcfShards);
+    this.parseExecutor = requireNonNull(parseExecutor);
+    this.transactionTemplate = new TransactionTemplate(requireNonNull(transactionManager));
+    // parses may fail from an afterCommit callback, where the committed transaction is still bound
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.eventPublisher = requireNonNull(eventPublisher);
+    this.outputUploads = requireNonNull(outputUploads);
+    this.runProgress = requireNonNull(runProgress);
+    this.runLogs = requireNonNull(runLogs);
+    this.classificationCache = requireNonNull(classificationCache);
+    this.runLocks = requireNonNull(runLocks);
+    this.runScheduler = requireNonNull(runScheduler);
   }
 
   /**
-   * Saves the uploaded file, parses it and creates a GavinRun.
+   * Parses an upload while it is received and creates a GavinRun with status {@link
+   * Status#PARSING}. Only the filtered and discarded lines are written, the upload itself is not
+   * stored. Once the run is committed, the filtered input is sorted on the {@link ParseExecutor},
+   * after which the run becomes pending.
+   *
+   * <p>In large file mode all lines are kept. If there are more than {@link Parser#MAX_LINES}
+   * variants, the filtered input is split into shards that are processed as separate child runs.
+   *
+   * <p>Variants of which the classification is in the {@link ClassificationCache} are removed from
+   * the filtered input. Their output is merged into the output of the run when it finishes, a run
+   * of which all variants are cached finishes right away.
+   *
+   * <p>If an identical file was uploaded in the same mode by a run that succeeded and has not
+   * expired yet, the new run succeeds right away and shares the files of that run.
    *
-   * <p>Requires the HttpServletRequest to contain a multipart form with a file named "file".
+   * <p>The upload is parsed and hashed before a short transaction that creates the run, so that
+   * slow uploads do not hold a transaction open.
+   *
+   * <p>The file is read from the request body, with its name in the "filename" parameter. A file
+   * named "file" in a multipart form is also accepted, the servlet container buffers it before it
+   * is parsed.
    */
   @Override
-  @Transactional
-  public String upload(HttpServletRequest httpServletRequest) throws IOException {
+  public String upload(
+      HttpServletRequest httpServletRequest, String submittedBy, boolean largeFile)
+      throws IOException {
+    if (!isMultipart(httpServletRequest)) {
+      String fileName = httpServletRequest.getParameter(FILENAME_PARAMETER);
+      return upload(
+          fileName != null ? fileName : DEFAULT_INPUT_FILENAME,
+          httpServletRequest.getInputStream(),
+          submittedBy,
+          largeFile);
+    }
     Part part;
     try {
       part = httpServletRequest.getPart("file");
     } catch (ServletException e) {
       throw new IllegalStateException("Request is not of type multipart/form-data");
     }
+    return upload(part.getSubmittedFileName(), part.getInputStream(), submittedBy, largeFile);
+  }
 
-    FileMeta inputFile = storeUploadedFile(part);
-    FileMeta filteredInput = createEmptyFile("filteredInput.vcf");
-    FileMeta discardedInput = createEmptyFile("discardedInput.txt");
+  private static boolean isMultipart(HttpServletRequest httpServletRequest) {
+    String contentType = httpServletRequest.getContentType();
+    return contentType != null && contentType.regionMatches(true, 0, "multipart/", 0, 10);
+  }
 
-    GavinRun gavinRun = createGavinRun(part, filteredInput, discardedInput);
-    LOG.info("GavinRun created: '{}'", gavinRun.getId());
+  @Override
+  public String upload(
+      String inputFileName, InputStream input, String submittedBy, boolean largeFile)
+      throws IOException {
+    String filteredInputId = idGenerator.generateId();
+    String discardedInputId = idGenerator.generateId();
+    int maxLines = largeFile ? Integer.MAX_VALUE : Parser.MAX_LINES;
+    Multiset<LineType> parsedLineTypes;
+    String inputSha256;
+    try (HashingInputStream inputStream = new HashingInputStream(Hashing.sha256(), input)) {
+      parsedLineTypes =
+          parser.tryTransform(
+              inputStream,
+              fileStore.getFile(filteredInputId),
+              fileStore.getFile(discardedInputId),
+              maxLines);
+      inputSha256 = inputStream.hash().toString();
+    } catch (IOException | RuntimeException e) {
+      fileStore.delete(filteredInputId);
+      fileStore.delete(discardedInputId);
+      throw e;
+    }
 
-    Multiset<LineType> parsedLineTypes = parseInputFile(inputFile, filteredInput, discardedInput);
-    if (parsedLineTypes.count(LineType.VCF) == 0) {
-      fail(gavinRun.getId(), "No usable lines were found in the uploaded file");
+    try {
+      return transactionTemplate.execute(
+          status ->
+              createRun(
+                  inputFileName,
+                  submittedBy,
+                  inputSha256,
+                  largeFile,
+                  filteredInputId,
+                  discardedInputId,
+                  parsedLineTypes));
+    } catch (RuntimeException e) {
+      fileStore.delete(filteredInputId);
+      fileStore.delete(discardedInputId);
+      throw e;
     }
+  }
 
-    dataService.delete(FILE_META, inputFile);
+  /**
+   * Creates the run for a parsed upload. The filtered input is prepared once the run is committed,
+   * unless the run reuses an identical run.
+   */
+  private String createRun(
+      String inputFileName,
+      String submittedBy,
+      String inputSha256,
+      boolean largeFile,
+      String filteredInputId,
+      String discardedInputId,
+      Multiset<LineType> parsedLineTypes) {
+    Optional<GavinRun> identicalRun = findIdenticalRun(inputSha256, largeFile);
+    if (identicalRun.isPresent()) {
+      fileStore.delete(filteredInputId);
+      fileStore.delete(discardedInputId);
+      GavinRun gavinRun =
+          createReusingRun(
+              identicalRun.get(), inputFileName, submittedBy, inputSha256, largeFile);
+      LOG.info(
+          "GavinRun created: '{}', reusing identical GavinRun '{}'",
+          gavinRun.getId(),
+          identicalRun.get().getId());
+      return gavinRun.getId();
+    }
+
+    ServletUriComponentsBuilder currentRequest =
+        servletUriComponentsBuilderFactory.fromCurrentRequest();
+    FileMeta filteredInput =
+        createFileMeta(filteredInputId, "filteredInput.vcf", "text/tsv", currentRequest);
+    FileMeta discardedInput =
+        createFileMeta(discardedInputId, "discardedInput.txt", "text/tsv", currentRequest);
+
+    GavinRun gavinRun =
+        createGavinRun(
+            inputFileName,
+            submittedBy,
+            inputSha256,
+            largeFile,
+            filteredInput,
+            discardedInput);
+    LOG.info("GavinRun created: '{}'", gavinRun.getId());
 
-    return gavinRun.getId();
+    String id = gavinRun.getId();
+    afterCommit(
+        () -> submitPrepare(id, filteredInput, discardedInput, parsedLineTypes, currentRequest));
+    return id;
   }
 
-  private Multiset<LineType> parseInputFile(
-      FileMeta inputFile, FileMeta filteredInput, FileMeta discardedInput) throws IOException {
-    Multiset<LineType> parsedLineTypes =
-        parser.tryTransform(
-            fileStore.getFile(inputFile.getId()),
-            fileStore.getFile(filteredInput.getId()),
-            fileStore.getFile(discardedInput.getId()));
+  private void submitPrepare(
+      String id,
+      FileMeta filteredInput,
+      FileMeta discardedInput,
+      Multiset<LineType> parsedLineTypes,
+      ServletUriComponentsBuilder currentRequest) {
+    try {
+      parseExecutor.execute(
+          () -> prepare(id, filteredInput, discardedInput, parsedLineTypes, currentRequest));
+    } catch (RejectedExecutionException e) {
+      inTransaction(
+          () -> fail(id, "Too many uploads are being processed, please try again later"));
+    }
+  }
+
+  /**
+   * Sorts the filtered input of a run and extracts its cached variants outside of a transaction,
+   * and then updates the run in a transaction of its own. Errors fail the run.
+   */
+  private void prepare(
+      String id,
+      FileMeta filteredInput,
+      FileMeta discardedInput,
+      Multiset<LineType> parsedLineTypes,
+      ServletUriComponentsBuilder currentRequest) {
+    LOG.debug("Preparing input of GavinRun '{}'", id);
+    try {
+      File filteredFile = fileStore.getFile(filteredInput.getId());
+      int numberOfRecords = parser.sort(filteredFile);
+      int numberOfCachedVariants =
+          classificationCache.extractCached(filteredFile, fileStore.getFile(getCachedOutputId(id)));
+      inTransaction(
+          () ->
+              finishParsing(
+                  id,
+                  filteredInput,
+                  discardedInput,
+                  parsedLineTypes,
+                  numberOfRecords,
+                  numberOfCachedVariants,
+                  currentRequest));
+    } catch (IOException | RuntimeException e) {
+      LOG.error(format("Preparing input of GavinRun '%s' failed", id), e);
+      inTransaction(() -> fail(id, "Parsing the uploaded file failed"));
+    }
+  }
 
+  /**
+   * @param numberOfRecords the number of records of the filtered input, multi-allelic lines are
+   *     decomposed into a record per allele
+   * @param numberOfCachedVariants the number of these records that were found in the cache
+   */
+  private void finishParsing(
+      String id,
+      FileMeta filteredInput,
+      FileMeta discardedInput,
+      Multiset<LineType> parsedLineTypes,
+      int numberOfRecords,
+      int numberOfCachedVariants,
+      ServletUriComponentsBuilder currentRequest) {
     filteredInput.setSize(fileStore.getFile(filteredInput.getId()).length());
     discardedInput.setSize(fileStore.getFile(discardedInput.getId()).length());
     dataService.update(FILE_META, Stream.of(filteredInput, discardedInput));
-    return parsedLineTypes;
+
+    GavinRun gavinRun = get(id);
+    int numberOfVariants = numberOfRecords - numberOfCachedVariants;
+    gavinRun.setNumberOfVariants(numberOfVariants);
+    if (numberOfCachedVariants > 0) {
+      runLogs.append(
+          id, format("Using the cached output of %d variants\n", numberOfCachedVariants));
+    }
+    if (numberOfVariants == 0 && numberOfCachedVariants == 0) {
+      fail(id, "No usable lines were found in the uploaded file");
+    } else if (numberOfVariants == 0) {
+      FileMeta outputFile =
+          createFileMeta(
+              getCachedOutputId(id), CACHED_OUTPUT_FILENAME, "text/tsv", currentRequest);
+      succeed(gavinRun, outputFile, "");
+    } else if (numberOfVariants > SHARD_SIZE) {
+      createShards(gavinRun, filteredInput, currentRequest);
+    } else {
+      gavinRun.setStatus(Status.PENDING);
+      gavinRun.setChangedAt(Instant.now());
+      dataService.update(GAVIN_RUN, gavinRun);
+      eventPublisher.publishEvent(new RunChangedEvent(id));
+      eventPublisher.publishEvent(new RunPendingEvent(id));
+    }
+    LOG.info("Parsed input of GavinRun '{}'. LineTypes: {}", id, parsedLineTypes);
   }
 
-  private GavinRun createGavinRun(Part part, FileMeta filteredInput, FileMeta discardedInput) {
+  private GavinRun createGavinRun(
+      String inputFileName,
+      String submittedBy,
+      String inputSha256,
+      boolean largeFile,
+      FileMeta filteredInput,
+      FileMeta discardedInput) {
     GavinRun gavinRun = gavinRunFactory.create();
     gavinRun.setId(idGenerator.generateId(Strategy.LONG_SECURE_RANDOM));
-    gavinRun.setInputFileName(part.getSubmittedFileName());
+    gavinRun.setInputFileName(inputFileName);
+    gavinRun.setInputSha256(inputSha256);
+    gavinRun.setLargeFile(largeFile);
+    classificationCache.getToolVersion().ifPresent(gavinRun::setToolVersion);
     gavinRun.setFilteredInputFile(filteredInput);
     gavinRun.setDiscardedInputFile(discardedInput);
-    gavinRun.setSubmittedAt(Instant.now());
-    gavinRun.setStatus(Status.PENDING);
+    Instant now = Instant.now();
+    gavinRun.setSubmittedAt(now);
+    gavinRun.setSubmittedBy(submittedBy);
+    gavinRun.setStatus(Status.PARSING);
+    gavinRun.setChangedAt(now);
     dataService.add(GAVIN_RUN, gavinRun);
     return gavinRun;
   }
 
+  /**
+   * Finds the latest run that succeeded for an identical upload with the same version of the
+   * classification tool, and of which the files have not been cleaned up yet. Without a configured
+   * tool version, runs of other versions cannot be told apart, so no run is reused.
+   */
+  private Optional<GavinRun> findIdenticalRun(String inputSha256, boolean largeFile) {
+    Optional<String> toolVersion = classificationCache.getToolVersion();
+    if (!toolVersion.isPresent()) {
+      return Optional.empty();
+    }
+    Instant expiredBefore = Instant.now().minus(GavinController.RUN_EXPIRATION_TIME);
+    GavinRun gavinRun =
+        dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .eq(INPUT_SHA256, inputSha256)
+            .and()
+            .eq(LARGE_FILE, largeFile)
+            .and()
+            .eq(TOOL_VERSION, toolVersion.get())
+            .and()
+            .eq(STATUS, Status.SUCCESS)
+            .and()
+            .gt(FINISHED_AT, expiredBefore)
+            .sort(new Sort(FINISHED_AT, Sort.Direction.DESC))
+            .findOne();
+    return Optional.ofNullable(gavinRun).filter(run -> run.getOutputFile().isPresent());
+  }
+
+  /** Creates a run that succeeded right away, sharing the files and log of an identical run. */
+  private GavinRun createReusingRun(
+      GavinRun identicalRun,
+      String inputFileName,
+      String submittedBy,
+      String inputSha256,
+      boolean largeFile) {
+    GavinRun gavinRun = gavinRunFactory.create();
+    gavinRun.setId(idGenerator.generateId(Strategy.LONG_SECURE_RANDOM));
+    gavinRun.setInputFileName(inputFileName);
+    gavinRun.setInputSha256(inputSha256);
+    gavinRun.setLargeFile(largeFile);
+    identicalRun.getToolVersion().ifPresent(gavinRun::setToolVersion);
+    identicalRun.getFilteredInputFile().ifPresent(gavinRun::setFilteredInputFile);
+    identicalRun.getDiscardedInputFile().ifPresent(gavinRun::setDiscardedInputFile);
+    identicalRun.getOutputFile().ifPresent(gavinRun::setOutputFile);
+    gavinRun.setNumberOfVariants(identicalRun.getNumberOfVariants());
+    Instant now = Instant.now();
+    gavinRun.setSubmittedAt(now);
+    gavinRun.setSubmittedBy(submittedBy);
+    gavinRun.setFinishedAt(now);
+    gavinRun.setStatus(Status.SUCCESS);
+    gavinRun.setChangedAt(now);
+    dataService.add(GAVIN_RUN, gavinRun);
+
+    runLogs.append(
+        gavinRun.getId(),
+        format(
+            "The input is identical to that of run '%s', reusing its output\n",
+            identicalRun.getId()));
+    runLogs.appendLogOf(gavinRun.getId(), identicalRun.getId());
+    return gavinRun;
+  }
+
+  /**
+   * Splits the filtered input of a run into shards of {@link #SHARD_SIZE} variants and creates a
+   * pending child run for each shard. The parent run is marked as running so that it is not picked
+   * up itself.
+   */
+  private void createShards(
+      GavinRun gavinRun, FileMeta filteredInput, ServletUriComponentsBuilder currentRequest) {
+    List<FileMeta> shardInputs = new ArrayList<>();
+    List<Integer> numberOfVariantsPerShard;
+    try {
+      numberOfVariantsPerShard =
+          vcfShards.split(
+              fileStore.getFile(filteredInput.getId()),
+              SHARD_SIZE,
+              shardIndex -> {
+                FileMeta shardInput =
+                    createEmptyFile(format("filteredInput.%d.vcf", shardIndex), currentRequest);
+                shardInputs.add(shardInput);
+                return fileStore.getFile(shardInput.getId());
+              });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    shardInputs.forEach(
+        shardInput -> shardInput.setSize(fileStore.getFile(shardInput.getId()).length()));
+    dataService.update(FILE_META, shardInputs.stream());
+
+    Instant now = Instant.now();
+    List<GavinRun> shards = new ArrayList<>();
+    for (int shardIndex = 0; shardIndex < shardInputs.size(); shardIndex++) {
+      GavinRun shard = gavinRunFactory.create();
+      shard.setId(idGenerator.generateId(Strategy.LONG_SECURE_RANDOM));
+      shard.setInputFileName(gavinRun.getInputFileName());
+      shard.setFilteredInputFile(shardInputs.get(shardIndex));
+      shard.setParent(gavinRun);
+      shard.setShardIndex(shardIndex);
+      shard.setSubmittedAt(gavinRun.getSubmittedAt());
+      gavinRun.getSubmittedBy().ifPresent(shard::setSubmittedBy);
+      shard.setNumberOfVariants(numberOfVariantsPerShard.get(shardIndex));
+      shard.setStatus(Status.PENDING);
+      shard.setChangedAt(now);
+      shards.add(shard);
+    }
+    dataService.add(GAVIN_RUN, shards.stream());
+
+    gavinRun.setNumberOfShards(shards.size());
+    gavinRun.setStatus(Status.RUNNING);
+    gavinRun.setChangedAt(now);
+    dataService.update(GAVIN_RUN, gavinRun);
+    LOG.info("GavinRun '{}' split into {} shards", gavinRun.getId(), shards.size());
+    eventPublisher.publishEvent(new RunChangedEvent(gavinRun.getId()));
+    shards.forEach(shard -> eventPublisher.publishEvent(new RunPendingEvent(shard.getId())));
+  }
+
   @Override
   public GavinRun get(String id) {
     LOG.debug("Getting GavinRun '{}'", id);
@@ -133,51 +526,603 @@ public class GavinServiceImpl implements GavinService {
     return gavinRun;
   }
 
+  /** Starts a run under a new lease, with a token that only the worker that started it knows. */
+  private void start(GavinRun gavinRun) {
+    LOG.info("GavinRun has started: '{}'", gavinRun.getId());
+
+    Instant now = Instant.now();
+    gavinRun.setStartedAt(now);
+    gavinRun.setLeaseExpiresAt(now.plus(LEASE_DURATION));
+    gavinRun.setLeaseToken(idGenerator.generateId(Strategy.LONG_SECURE_RANDOM));
+    gavinRun.setStatus(Status.RUNNING);
+    gavinRun.setChangedAt(now);
+    dataService.update(GAVIN_RUN, gavinRun);
+    eventPublisher.publishEvent(new RunChangedEvent(gavinRun.getId()));
+
+    gavinRun.getParent().map(GavinRun::getId).ifPresent(this::startParent);
+  }
+
+  private void startParent(String parentId) {
+    runLocks.lock(parentId);
+    GavinRun parent = get(parentId);
+    if (!parent.getStartedAt().isPresent()) {
+      Instant now = Instant.now();
+      parent.setStartedAt(now);
+      parent.setChangedAt(now);
+      dataService.update(GAVIN_RUN, parent);
+    }
+    eventPublisher.publishEvent(new RunChangedEvent(parent.getId()));
+  }
+
+  /**
+   * Claims the pending run that the {@link RunScheduler} selects, given the runs that are already
+   * running. The pending runs are tried in the order of the scheduler, a run that
+   * another transaction holds the {@link RunLocks lock} of is skipped, so that concurrent claims do
+   * not wait for each other and never start the same run.
+   *
+   * <p>Claims and requeues run in a new transaction because they are also made from after commit
+   * callbacks, in which the committed transaction is still bound.
+   */
   @Override
-  @Transactional
-  public void start(String id) {
-    LOG.info("GavinRun has started: '{}'", id);
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public Optional<GavinRun> claim() {
+    List<GavinRun> pendingRuns =
+        dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .eq(STATUS, Status.PENDING)
+            .findAll()
+            .collect(toList());
+    if (pendingRuns.isEmpty()) {
+      return Optional.empty();
+    }
+    Instant now = Instant.now();
+    for (GavinRun candidate : runScheduler.order(pendingRuns, getRunningRuns(), now)) {
+      if (runLocks.tryLock(candidate.getId())) {
+        GavinRun gavinRun = get(candidate.getId());
+        if (gavinRun.getStatus() == Status.PENDING) {
+          start(gavinRun);
+          return Optional.of(gavinRun);
+        }
+      }
+    }
+    return Optional.empty();
+  }
 
+  /**
+   * Only pending runs are claimed, parent runs of shards are never pending. A large run is not
+   * claimed while the {@link RunScheduler} reserves the remaining workers for small runs.
+   */
+  @Override
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public Optional<GavinRun> claim(String id) {
+    runLocks.lock(id);
     GavinRun gavinRun = get(id);
-    gavinRun.setStartedAt(Instant.now());
-    gavinRun.setStatus(Status.RUNNING);
+    if (gavinRun.getStatus() != Status.PENDING || gavinRun.getNumberOfShards().isPresent()) {
+      return Optional.empty();
+    }
+    if (runScheduler.order(singletonList(gavinRun), getRunningRuns(), Instant.now()).isEmpty()) {
+      return Optional.empty();
+    }
+    start(gavinRun);
+    return Optional.of(gavinRun);
+  }
+
+  private List<GavinRun> getRunningRuns() {
+    return dataService
+        .query(GAVIN_RUN, GavinRun.class)
+        .eq(STATUS, Status.RUNNING)
+        .findAll()
+        // parent runs of shards hold no lease and do not occupy a worker
+        .filter(gavinRun -> gavinRun.getLeaseExpiresAt().isPresent())
+        .collect(toList());
+  }
+
+  /** Only running runs are requeued, a run that finished meanwhile is left alone. */
+  @Override
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void requeue(String id) {
+    runLocks.lock(id);
+    GavinRun gavinRun = get(id);
+    if (gavinRun.getStatus() == Status.RUNNING) {
+      requeue(gavinRun);
+    }
+  }
+
+  /** Requeues a run, the output that its worker uploaded so far is discarded. */
+  private void requeue(GavinRun gavinRun) {
+    LOG.info("GavinRun is requeued: '{}'", gavinRun.getId());
+
+    gavinRun.setStartedAt(null);
+    gavinRun.setLeaseExpiresAt(null);
+    gavinRun.setLeaseToken(null);
+    gavinRun.setStatus(Status.PENDING);
+    gavinRun.setChangedAt(Instant.now());
     dataService.update(GAVIN_RUN, gavinRun);
+    outputUploads.discard(gavinRun.getId());
+    runProgress.remove(gavinRun.getId());
+    eventPublisher.publishEvent(new RunChangedEvent(gavinRun.getId()));
+    eventPublisher.publishEvent(new RunPendingEvent(gavinRun.getId()));
   }
 
   @Override
   @Transactional
-  public void finish(String id, String log, HttpServletRequest httpServletRequest)
-      throws IOException {
-    LOG.info("GavinRun has finished: '{}'", id);
+  public boolean heartbeat(String id, String leaseToken) {
+    runLocks.lock(id);
+    GavinRun gavinRun = get(id);
+    if (!holdsLease(gavinRun, leaseToken)) {
+      return false;
+    }
+    gavinRun.setLeaseExpiresAt(Instant.now().plus(LEASE_DURATION));
+    dataService.update(GAVIN_RUN, gavinRun);
+    return true;
+  }
+
+  @Override
+  public boolean holdsLease(String id, String leaseToken) {
+    return holdsLease(get(id), leaseToken);
+  }
 
+  private static boolean holdsLease(GavinRun gavinRun, String leaseToken) {
+    return gavinRun.getStatus() == Status.RUNNING
+        && gavinRun.getLeaseToken().filter(token -> token.equals(leaseToken)).isPresent();
+  }
+
+  /**
+   * Locks the run, so that in a transaction the lease holds until the transaction completes.
+   *
+   * @return the run, if it is running under a lease
+   * @throws LeaseException if the run was requeued, finished or started under another lease
+   */
+  private GavinRun getLeased(String id, String leaseToken) {
+    runLocks.lock(id);
     GavinRun gavinRun = get(id);
-    FileMeta outputFile;
+    if (!holdsLease(gavinRun, leaseToken)) {
+      throw new LeaseException(id);
+    }
+    return gavinRun;
+  }
+
+  /**
+   * Requeues the running runs whose worker stopped sending heartbeats. Runs that were requeued
+   * {@link #MAX_RETRIES} times already are failed instead. Parent runs of which the output was not
+   * concatenated in time, because the node that concatenated it stopped, are finished again.
+   */
+  @Override
+  @Transactional
+  public void requeueExpiredRuns() {
+    Instant now = Instant.now();
+    List<String> ids =
+        dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .in(STATUS, asList(Status.RUNNING, Status.FINISHING))
+            .and()
+            .lt(LEASE_EXPIRES_AT, now)
+            .findAll()
+            .map(GavinRun::getId)
+            .sorted()
+            .collect(toList());
+    for (String id : ids) {
+      // a heartbeat or finish may have come in since the query
+      runLocks.lock(id);
+      GavinRun gavinRun = get(id);
+      if (!gavinRun.getLeaseExpiresAt().filter(now::isAfter).isPresent()) {
+        continue;
+      }
+      Status status = gavinRun.getStatus();
+      if (status == Status.RUNNING) {
+        expireLease(gavinRun);
+      } else if (status == Status.FINISHING) {
+        LOG.info("Finishing GavinRun '{}' again", id);
+        gavinRun.setLeaseExpiresAt(null);
+        gavinRun.setStatus(Status.RUNNING);
+        gavinRun.setChangedAt(now);
+        dataService.update(GAVIN_RUN, gavinRun);
+        afterCommit(() -> finishParentIfComplete(id));
+      }
+    }
+  }
+
+  private void expireLease(GavinRun gavinRun) {
+    if (gavinRun.getRetries() < MAX_RETRIES) {
+      gavinRun.setRetries(gavinRun.getRetries() + 1);
+      runLogs.append(gavinRun.getId(), "Lease expired, run requeued\n");
+      requeue(gavinRun);
+    } else {
+      fail(gavinRun.getId(), format("Lease expired after %d retries", MAX_RETRIES));
+    }
+  }
+
+  @Override
+  public void finish(
+      String id, String leaseToken, String log, HttpServletRequest httpServletRequest)
+      throws IOException {
+    getLeased(id, leaseToken);
+
+    Part part;
     try {
-      outputFile = storeUploadedFile(httpServletRequest.getPart("outputFile"));
+      part = httpServletRequest.getPart("outputFile");
     } catch (ServletException e) {
       throw new IllegalStateException("Request is not of type multipart/form-data");
     }
+    String outputId = storeUploadedFile(part);
+    outputUploads.discard(id);
+    try {
+      finish(id, leaseToken, outputId, part.getSubmittedFileName(), part.getContentType(), log);
+    } catch (IOException | RuntimeException e) {
+      fileStore.delete(outputId);
+      throw e;
+    }
+  }
+
+  @Override
+  public void appendLog(String id, String leaseToken, String text) {
+    getLeased(id, leaseToken);
+    runLogs.append(id, text);
+  }
+
+  @Override
+  public long getOutputOffset(String id, String leaseToken) throws IOException {
+    getLeased(id, leaseToken);
+    return outputUploads.getOffset(id);
+  }
+
+  @Override
+  public long appendOutput(String id, String leaseToken, long offset, InputStream chunk)
+      throws IOException {
+    getLeased(id, leaseToken);
+    return outputUploads.append(id, offset, chunk);
+  }
+
+  /**
+   * Only the commit of an upload runs in a transaction, the chunks are written and checksummed
+   * before.
+   */
+  @Override
+  public void commitOutput(
+      String id, String leaseToken, String filename, String sha256, String log)
+      throws IOException {
+    getLeased(id, leaseToken);
+
+    String outputId = outputUploads.commit(id, sha256);
+    finish(id, leaseToken, outputId, filename, "text/tsv", log);
+  }
+
+  /**
+   * Finishes a run with the output that its worker uploaded. The file work happens outside of the
+   * short transaction in which the run succeeds: the cached output of the run is merged into a new
+   * output file before it, and the output is added to the {@link ClassificationCache} on the
+   * {@link ParseExecutor} after it committed.
+   *
+   * @param uploadedOutputId the uploaded output in the file store, deleted after the run succeeded
+   *     if cached output was merged into a new file
+   * @throws LeaseException if the run is no longer running under the lease, the merged output is
+   *     deleted then
+   */
+  private void finish(
+      String id,
+      String leaseToken,
+      String uploadedOutputId,
+      String filename,
+      String contentType,
+      String log)
+      throws IOException {
+    File cachedOutput = fileStore.getFile(getCachedOutputId(id));
+    boolean merged = cachedOutput.exists();
+    String outputId = merged ? idGenerator.generateId() : uploadedOutputId;
+    try {
+      if (merged) {
+        classificationCache.merge(
+            fileStore.getFile(uploadedOutputId), cachedOutput, fileStore.getFile(outputId));
+      }
+      inTransaction(
+          () ->
+              succeed(
+                  getLeased(id, leaseToken),
+                  createFileMeta(outputId, filename, contentType),
+                  log));
+    } catch (IOException | RuntimeException e) {
+      if (merged) {
+        fileStore.delete(outputId);
+      }
+      throw e;
+    }
+    LOG.info("GavinRun has finished: '{}'", id);
+
+    if (merged) {
+      fileStore.delete(getCachedOutputId(id));
+      fileStore.delete(uploadedOutputId);
+    }
+    submitCachePut(outputId);
+  }
+
+  /** Adds output to the {@link ClassificationCache} in the background, if there is room. */
+  private void submitCachePut(String outputId) {
+    try {
+      parseExecutor.execute(
+          () -> {
+            try {
+              classificationCache.put(fileStore.getFile(outputId));
+            } catch (IOException | RuntimeException e) {
+              LOG.warn("Adding output '{}' to the classification cache failed", outputId, e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Output '{}' is not added to the classification cache, too busy", outputId);
+    }
+  }
 
+  private void succeed(GavinRun gavinRun, FileMeta outputFile, String log) {
     gavinRun.setOutputFile(outputFile);
-    gavinRun.setLog(gavinRun.getLog().orElse("") + log);
-    gavinRun.setFinishedAt(Instant.now());
+    runLogs.append(gavinRun.getId(), log);
+    Instant now = Instant.now();
+    gavinRun.setFinishedAt(now);
     gavinRun.setStatus(Status.SUCCESS);
+    gavinRun.setChangedAt(now);
     dataService.update(GAVIN_RUN, gavinRun);
+    runProgress.remove(gavinRun.getId());
+    eventPublisher.publishEvent(new RunChangedEvent(gavinRun.getId()));
+
+    if (gavinRun.getParent().isPresent()) {
+      String parentId = gavinRun.getParent().get().getId();
+      afterCommit(() -> finishParentIfComplete(parentId));
+      // the progress of the parent includes the finished shard
+      eventPublisher.publishEvent(new RunChangedEvent(parentId));
+    }
+  }
+
+  /**
+   * Finishes the parent of a shard if all its shards succeeded, concatenating their output in
+   * shard order. Shards finish concurrently, on any node, so a short transaction first moves the
+   * parent from {@link Status#RUNNING} to {@link Status#FINISHING} under its {@link RunLocks lock},
+   * and only the caller that made this transition concatenates. The output is concatenated outside
+   * of any transaction, after which a second short transaction lets the parent succeed.
+   *
+   * <p>The transition holds a lease, if the concatenation does not finish in time, {@link
+   * #requeueExpiredRuns()} moves the parent back and finishes it again.
+   *
+   * <p>This runs after the shard or requeue committed, so failures are logged instead of thrown.
+   */
+  private void finishParentIfComplete(String parentId) {
+    try {
+      finishParent(parentId);
+    } catch (RuntimeException e) {
+      LOG.error("Finishing GavinRun '{}' failed", parentId, e);
+    }
+  }
+
+  private void finishParent(String parentId) {
+    List<GavinRun> shards = transactionTemplate.execute(status -> startFinishing(parentId));
+    if (shards.isEmpty()) {
+      return;
+    }
+    LOG.info("All shards of GavinRun '{}' have finished", parentId);
+
+    String outputId = idGenerator.generateId();
+    try {
+      concatenateOutputs(parentId, shards, fileStore.getFile(outputId));
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Concatenating the output of the shards of GavinRun '{}' failed", parentId, e);
+      fileStore.delete(outputId);
+      inTransaction(
+          () -> {
+            runLocks.lock(parentId);
+            if (get(parentId).getStatus() == Status.FINISHING) {
+              fail(parentId, "Concatenating the output of the shards failed");
+            }
+          });
+      return;
+    }
+
+    FileMeta firstShardOutput = shards.get(0).getOutputFile().get();
+    boolean succeeded =
+        transactionTemplate.execute(
+            status -> {
+              runLocks.lock(parentId);
+              GavinRun parent = get(parentId);
+              if (parent.getStatus() != Status.FINISHING) {
+                return false;
+              }
+              parent.setOutputFile(
+                  createFileMeta(
+                      outputId,
+                      firstShardOutput.getFilename(),
+                      firstShardOutput.getContentType()));
+              Instant now = Instant.now();
+              parent.setLeaseExpiresAt(null);
+              parent.setFinishedAt(now);
+              parent.setStatus(Status.SUCCESS);
+              parent.setChangedAt(now);
+              dataService.update(GAVIN_RUN, parent);
+              return true;
+            });
+    if (succeeded) {
+      fileStore.delete(getCachedOutputId(parentId));
+      eventPublisher.publishEvent(new RunChangedEvent(parentId));
+    } else {
+      // the parent was finished again meanwhile
+      fileStore.delete(outputId);
+    }
+  }
+
+  /**
+   * Moves the parent of shards to {@link Status#FINISHING} if all its shards succeeded.
+   *
+   * @return the shards of the parent in shard order, or empty if the parent is not finished by
+   *     this caller
+   */
+  private List<GavinRun> startFinishing(String parentId) {
+    runLocks.lock(parentId);
+    GavinRun parent = get(parentId);
+    if (parent.getStatus() != Status.RUNNING) {
+      return emptyList();
+    }
+    List<GavinRun> shards = getShards(parent);
+    if (shards.size() < parent.getNumberOfShards().orElse(0)
+        || !shards.stream().allMatch(shard -> shard.getStatus() == Status.SUCCESS)) {
+      return emptyList();
+    }
+    Instant now = Instant.now();
+    parent.setLeaseExpiresAt(now.plus(LEASE_DURATION));
+    parent.setStatus(Status.FINISHING);
+    parent.setChangedAt(now);
+    dataService.update(GAVIN_RUN, parent);
+    return shards;
+  }
+
+  /**
+   * Concatenates the output of shards, and merges the output of the variants of their parent that
+   * were found in the {@link ClassificationCache} into it.
+   */
+  private void concatenateOutputs(String parentId, List<GavinRun> shards, File output)
+      throws IOException {
+    List<File> shardOutputs = new ArrayList<>();
+    for (GavinRun shard : shards) {
+      FileMeta shardOutput = shard.getOutputFile().orElseThrow(IllegalStateException::new);
+      shardOutputs.add(fileStore.getFile(shardOutput.getId()));
+      runLogs.appendLogOf(parentId, shard.getId());
+    }
+    vcfShards.concatenate(shardOutputs, output);
+    File cachedOutput = fileStore.getFile(getCachedOutputId(parentId));
+    if (cachedOutput.exists()) {
+      classificationCache.merge(output, cachedOutput);
+    }
+  }
+
+  private static String getCachedOutputId(String id) {
+    return id + "-cached";
   }
 
   @Override
   @Transactional
-  public void fail(String id, String log) {
+  public void fail(String id, String leaseToken, String log) {
+    getLeased(id, leaseToken);
+    fail(id, log);
+  }
+
+  private void fail(String id, String log) {
     LOG.info("GavinRun failed: '{}'", id);
 
     GavinRun gavinRun = get(id);
-    gavinRun.setLog(gavinRun.getLog().orElse("") + log);
-    gavinRun.setFinishedAt(Instant.now());
+    runLogs.append(id, log);
+    Instant now = Instant.now();
+    gavinRun.setFinishedAt(now);
     gavinRun.setStatus(Status.FAILED);
+    gavinRun.setChangedAt(now);
     dataService.update(GAVIN_RUN, gavinRun);
+    outputUploads.discard(id);
+    fileStore.delete(getCachedOutputId(id));
+    runProgress.remove(id);
+    eventPublisher.publishEvent(new RunChangedEvent(id));
+
+    if (gavinRun.getParent().isPresent()) {
+      String parentId = gavinRun.getParent().get().getId();
+      String message = format("Shard %d failed: %s", gavinRun.getShardIndex().orElse(-1), log);
+      runLocks.lock(parentId);
+      failParent(parentId, message);
+      eventPublisher.publishEvent(new RunChangedEvent(parentId));
+    }
+  }
+
+  /** Fails the parent of a failed shard and cancels its shards that have not started yet. */
+  private void failParent(String parentId, String log) {
+    GavinRun parent = get(parentId);
+    if (parent.getStatus() != Status.RUNNING) {
+      return;
+    }
+    Instant now = Instant.now();
+    runLogs.append(parentId, log);
+    parent.setFinishedAt(now);
+    parent.setStatus(Status.FAILED);
+    parent.setChangedAt(now);
+    dataService.update(GAVIN_RUN, parent);
+    fileStore.delete(getCachedOutputId(parentId));
+
+    List<GavinRun> pendingShards =
+        getShards(parent)
+            .stream()
+            .filter(shard -> shard.getStatus() == Status.PENDING)
+            .collect(toList());
+    pendingShards.forEach(
+        shard -> {
+          runLogs.append(shard.getId(), "Canceled because another shard failed");
+          shard.setFinishedAt(now);
+          shard.setStatus(Status.FAILED);
+          shard.setChangedAt(now);
+        });
+    dataService.update(GAVIN_RUN, pendingShards.stream());
+    pendingShards.forEach(
+        shard -> eventPublisher.publishEvent(new RunChangedEvent(shard.getId())));
   }
 
-  private FileMeta createEmptyFile(String fileName) {
+  @Override
+  public List<GavinRun> getShards(GavinRun parent) {
+    return dataService
+        .query(GAVIN_RUN, GavinRun.class)
+        .eq(PARENT, parent.getId())
+        .findAll()
+        .sorted(comparing(shard -> shard.getShardIndex().orElse(-1)))
+        .collect(toList());
+  }
+
+  /**
+   * Finds the runs with a single query. If changedSince is given, running runs are found even if
+   * their status did not change, because their progress changes all the time.
+   */
+  @Override
+  public List<GavinRun> getRuns(Collection<String> ids, @Nullable Instant changedSince) {
+    if (ids.isEmpty()) {
+      return emptyList();
+    }
+    Query<GavinRun> query = dataService.query(GAVIN_RUN, GavinRun.class).in(ID, ids);
+    if (changedSince != null) {
+      query.and().nest().gt(CHANGED_AT, changedSince).or().eq(STATUS, Status.RUNNING).unnest();
+    }
+    return query.findAll().collect(toList());
+  }
+
+  @Override
+  public Map<String, List<GavinRun>> getShardsByParentId(Collection<GavinRun> gavinRuns) {
+    List<String> parentIds =
+        gavinRuns
+            .stream()
+            .filter(gavinRun -> gavinRun.getNumberOfShards().isPresent())
+            .map(GavinRun::getId)
+            .collect(toList());
+    if (parentIds.isEmpty()) {
+      return emptyMap();
+    }
+    return dataService
+        .query(GAVIN_RUN, GavinRun.class)
+        .in(PARENT, parentIds)
+        .findAll()
+        .sorted(comparing(shard -> shard.getShardIndex().orElse(-1)))
+        .collect(groupingBy(shard -> shard.getParent().get().getId()));
+  }
+
+  private void inTransaction(Runnable action) {
+    transactionTemplate.execute(
+        status -> {
+          action.run();
+          return null;
+        });
+  }
+
+  /** Runs an action after the surrounding transaction, if any, has committed. */
+  private static void afterCommit(Runnable action) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      action.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            action.run();
+          }
+        });
+  }
+
+  private FileMeta createEmptyFile(String fileName, ServletUriComponentsBuilder currentRequest) {
     String id = idGenerator.generateId();
     try (InputStream inputStream = new ByteArrayInputStream(new byte[] {})) {
       fileStore.store(inputStream, id);
@@ -185,33 +1130,44 @@ public class GavinServiceImpl implements GavinService {
       throw new UncheckedIOException(e);
     }
 
-    return createFileMeta(id, fileName, "text/tsv");
+    return createFileMeta(id, fileName, "text/tsv", currentRequest);
   }
 
-  private FileMeta storeUploadedFile(Part part) {
+  /** @return the id of the uploaded file in the file store */
+  private String storeUploadedFile(Part part) throws IOException {
     String id = idGenerator.generateId();
     try (InputStream inputStream = part.getInputStream()) {
       fileStore.store(inputStream, id);
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
     }
-
-    return createFileMeta(id, part.getSubmittedFileName(), part.getContentType());
+    return id;
   }
 
   private FileMeta createFileMeta(String id, String fileName, String contentType) {
-    FileMeta fileEntity = fileMetaFactory.create(id);
-    fileEntity.setFilename(fileName);
-    fileEntity.setContentType(contentType);
-    fileEntity.setSize(fileStore.getFile(id).length());
-    ServletUriComponentsBuilder currentRequest =
-        servletUriComponentsBuilderFactory.fromCurrentRequest();
+    return createFileMeta(
+        id, fileName, contentType, servletUriComponentsBuilderFactory.fromCurrentRequest());
+  }
+
+  /**
+   * @param currentRequest builder for the request that the download URL is relative to, files that
+   *     are created in the background use the builder of the upload request
+   */
+  private FileMeta createFileMeta(
+      String id, String fileName, String contentType, ServletUriComponentsBuilder currentRequest) {
     UriComponents downloadUri =
         currentRequest
             .replacePath(FileDownloadController.URI + '/' + id)
             .replaceQuery(null)
             .build();
-    fileEntity.setUrl(downloadUri.toUriString());
+    return createFileMeta(id, fileName, contentType, downloadUri.toUriString());
+  }
+
+  private FileMeta createFileMeta(
+      String id, String fileName, String contentType, String downloadUrl) {
+    FileMeta fileEntity = fileMetaFactory.create(id);
+    fileEntity.setFilename(fileName);
+    fileEntity.setContentType(contentType);
+    fileEntity.setSize(fileStore.getFile(id).length());
+    fileEntity.setUrl(downloadUrl);
     dataService.add(FILE_META, fileEntity);
     return fileEntity;
   }
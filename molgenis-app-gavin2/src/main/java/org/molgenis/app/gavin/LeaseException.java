@@ -0,0 +1,11 @@
+package org.molgenis.app.gavin;
+
+/**
+ * Thrown if a worker calls for a GavinRun that it does not hold the lease of, because the run was
+ * requeued or finished in the meantime.
+ */
+class LeaseException extends RuntimeException {
+  LeaseException(String id) {
+    super(String.format("GavinRun '%s' is not running under the given lease", id));
+  }
+}
@@ -0,0 +1,16 @@
+package org.molgenis.app.gavin;
+
+/** Thrown if a chunk or commit of an output upload is rejected. */
+class OutputUploadException extends RuntimeException {
+  private final long offset;
+
+  OutputUploadException(String message, long offset) {
+    super(message);
+    this.offset = offset;
+  }
+
+  /** @return the offset at which the worker should resume the upload */
+  long getOffset() {
+    return offset;
+  }
+}
@@ -0,0 +1,217 @@
+package org.molgenis.app.gavin;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.io.BaseEncoding;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.molgenis.data.file.FileStore;
+import org.springframework.stereotype.Component;
+
+/**
+ * Receives the output of a run in chunks, so that a worker that loses its connection can resume
+ * the upload at the offset that was received. The SHA-256 of the output is computed while the
+ * chunks are written and checked when the upload is committed.
+ *
+ * <p>Each run has one upload at a time, stored in the file store under a name derived from the run
+ * id. The digest is kept in memory. After a restart it is restored by reading the received part of
+ * the output once.
+ */
+@Component
+class OutputUploads {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileStore fileStore;
+  private final ConcurrentMap<String, OutputUpload> uploads = new ConcurrentHashMap<>();
+
+  OutputUploads(FileStore fileStore) {
+    this.fileStore = requireNonNull(fileStore);
+  }
+
+  /** @return the number of bytes of the output of a run that were received */
+  long getOffset(String runId) throws IOException {
+    return getUpload(runId).getOffset();
+  }
+
+  /**
+   * @return the number of bytes of the output of a run that were received up to and including the
+   *     last line separator, so that partial output never ends with half a line
+   */
+  long getCompleteLinesOffset(String runId) throws IOException {
+    return getUpload(runId).getCompleteLinesOffset();
+  }
+
+  /** @return the file that the output of a run is uploaded to */
+  File getFile(String runId) {
+    return fileStore.getFile(getFileId(runId));
+  }
+
+  /**
+   * Appends a chunk to the output of a run. A chunk at offset 0 starts the upload over.
+   *
+   * @return the number of bytes received after the chunk
+   * @throws OutputUploadException if the offset is not the number of bytes received
+   */
+  long append(String runId, long offset, InputStream chunk) throws IOException {
+    return getUpload(runId).append(offset, chunk);
+  }
+
+  /**
+   * Completes the upload of the output of a run.
+   *
+   * @param sha256 the hex encoded SHA-256 of the whole output
+   * @return the id of the output in the file store
+   * @throws OutputUploadException if the checksum does not match, the upload is discarded then
+   */
+  String commit(String runId, String sha256) throws IOException {
+    OutputUpload upload = getUpload(runId);
+    if (!upload.getSha256().equalsIgnoreCase(sha256)) {
+      discard(runId);
+      throw new OutputUploadException("Checksum of the output does not match", 0);
+    }
+    uploads.remove(runId);
+    return getFileId(runId);
+  }
+
+  /** Discards the uploaded output of a run, if any. */
+  void discard(String runId) {
+    uploads.remove(runId);
+    fileStore.delete(getFileId(runId));
+  }
+
+  private OutputUpload getUpload(String runId) {
+    return uploads.computeIfAbsent(
+        runId, key -> new OutputUpload(fileStore.getFile(getFileId(key))));
+  }
+
+  private static String getFileId(String runId) {
+    return runId + "-output";
+  }
+
+  /** A partially received output. Chunks of one upload are written one at a time. */
+  private static class OutputUpload {
+    private final File file;
+    private final MessageDigest digest;
+    private long offset;
+    private boolean restored;
+
+    OutputUpload(File file) {
+      this.file = file;
+      this.digest = createDigest();
+    }
+
+    synchronized long getOffset() throws IOException {
+      restore();
+      return offset;
+    }
+
+    synchronized long getCompleteLinesOffset() throws IOException {
+      restore();
+      if (offset == 0) {
+        return 0;
+      }
+      try (FileChannel fileChannel = FileChannel.open(file.toPath(), READ)) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = offset;
+        while (end > 0) {
+          long start = Math.max(0, end - BUFFER_SIZE);
+          buffer.clear();
+          buffer.limit((int) (end - start));
+          while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, start + buffer.position()) == -1) {
+              throw new EOFException(format("File '%s' was truncated", file.getName()));
+            }
+          }
+          for (int i = (int) (end - start) - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+              return start + i + 1;
+            }
+          }
+          end = start;
+        }
+      }
+      return 0;
+    }
+
+    synchronized long append(long chunkOffset, InputStream chunk) throws IOException {
+      if (chunkOffset == 0) {
+        digest.reset();
+        offset = 0;
+        restored = true;
+      } else {
+        restore();
+      }
+      if (chunkOffset != offset) {
+        throw new OutputUploadException(
+            format("Chunk starts at offset %d, expected offset %d", chunkOffset, offset), offset);
+      }
+
+      try (FileChannel fileChannel = FileChannel.open(file.toPath(), CREATE, WRITE)) {
+        fileChannel.truncate(offset);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = chunk.read(buffer)) != -1) {
+          ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+          while (byteBuffer.hasRemaining()) {
+            fileChannel.write(byteBuffer, offset + length - byteBuffer.remaining());
+          }
+          digest.update(buffer, 0, length);
+          offset += length;
+        }
+      }
+      return offset;
+    }
+
+    synchronized String getSha256() throws IOException {
+      restore();
+      try {
+        MessageDigest copy = (MessageDigest) digest.clone();
+        return BaseEncoding.base16().lowerCase().encode(copy.digest());
+      } catch (CloneNotSupportedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /** Restores the offset and digest from the received output after a restart. */
+    private void restore() throws IOException {
+      if (restored) {
+        return;
+      }
+      digest.reset();
+      offset = 0;
+      if (file.exists()) {
+        try (InputStream inputStream =
+            new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int length;
+          while ((length = inputStream.read(buffer)) != -1) {
+            offset += length;
+          }
+        }
+      }
+      restored = true;
+    }
+
+    private static MessageDigest createDigest() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
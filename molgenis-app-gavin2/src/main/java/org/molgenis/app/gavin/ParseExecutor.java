@@ -0,0 +1,45 @@
+package org.molgenis.app.gavin;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.annotation.PreDestroy;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Prepares parsed uploads in the background, so that uploads do not hold a request thread or a
+ * database connection while their filtered input is sorted and looked up in the classification
+ * cache. The output of finished runs is added to the classification cache here as well. The number
+ * of threads and of waiting tasks are bounded, tasks run in the security context of the request
+ * that submitted them.
+ */
+@Component
+class ParseExecutor implements Executor {
+  private static final int NUMBER_OF_THREADS = 2;
+  private static final int QUEUE_SIZE = 100;
+
+  private final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          NUMBER_OF_THREADS,
+          NUMBER_OF_THREADS,
+          0L,
+          MILLISECONDS,
+          new ArrayBlockingQueue<>(QUEUE_SIZE),
+          new ThreadFactoryBuilder().setNameFormat("gavin-parser-%d").setDaemon(true).build());
+
+  /** @throws RejectedExecutionException if too many preparations are waiting */
+  @Override
+  public void execute(Runnable command) {
+    executor.execute(new DelegatingSecurityContextRunnable(command));
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
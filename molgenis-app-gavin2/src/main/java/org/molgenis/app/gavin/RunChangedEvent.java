@@ -0,0 +1,16 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Objects.requireNonNull;
+
+/** Published when the status of a GavinRun changes, so that its status streams get the change. */
+class RunChangedEvent {
+  private final String id;
+
+  RunChangedEvent(String id) {
+    this.id = requireNonNull(id);
+  }
+
+  String getId() {
+    return id;
+  }
+}
@@ -0,0 +1,40 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Objects.requireNonNull;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locks GavinRuns in the database for the rest of the transaction, with PostgreSQL advisory locks
+ * keyed by run id. Unlike a lock in the JVM, a run lock also excludes the transactions of other
+ * application nodes. A transaction that changes the status or lease of a run holds its lock, and
+ * reads the run after it acquired the lock, so that it sees the changes of the previous holder.
+ *
+ * <p>Advisory locks are released when the transaction completes, so they require a transaction.
+ */
+@Component
+class RunLocks {
+  /** Keeps the run locks apart from advisory locks that other code may take */
+  private static final int LOCK_CLASS = "gavin_GavinRun".hashCode();
+
+  private final JdbcTemplate jdbcTemplate;
+
+  RunLocks(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(requireNonNull(dataSource));
+  }
+
+  /** Waits until the lock of a run is acquired. */
+  void lock(String id) {
+    jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(?, hashtext(?))", LOCK_CLASS, id);
+  }
+
+  /** @return whether the lock of a run was acquired, false if another transaction holds it */
+  boolean tryLock(String id) {
+    Boolean locked =
+        jdbcTemplate.queryForObject(
+            "SELECT pg_try_advisory_xact_lock(?, hashtext(?))", Boolean.class, LOCK_CLASS, id);
+    return Boolean.TRUE.equals(locked);
+  }
+}
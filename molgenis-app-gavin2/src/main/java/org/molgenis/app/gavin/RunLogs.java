@@ -0,0 +1,134 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.locks.Lock;
+import org.molgenis.data.file.FileStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores the log of each run in an append-only file in the file store, so that adding to a log
+ * writes only the added text instead of rewriting the whole log. Workers append to the log of a run
+ * while they process it and clients read it back from any offset.
+ *
+ * <p>A log is truncated at a maximum length, so that a worker that keeps logging cannot fill the
+ * file store. The text that does not fit is dropped and a marker is logged once in its place.
+ */
+@Component
+class RunLogs {
+  static final String TRUNCATED_MARKER = "\n[Log truncated]\n";
+
+  private final FileStore fileStore;
+  private final long maxLength;
+  /** Appends to the log of one run are written one at a time */
+  private final Striped<Lock> locks = Striped.lock(64);
+
+  RunLogs(FileStore fileStore, @Value("${gavin.log.maxLength:10485760}") long maxLength) {
+    this.fileStore = requireNonNull(fileStore);
+    this.maxLength = maxLength;
+  }
+
+  void append(String runId, String text) {
+    if (text.isEmpty()) {
+      return;
+    }
+    byte[] bytes = text.getBytes(UTF_8);
+    Lock lock = locks.get(runId);
+    lock.lock();
+    try {
+      long remaining = maxLength - getLength(runId);
+      if (remaining <= 0) {
+        return;
+      }
+      try (OutputStream outputStream =
+          Files.newOutputStream(getFile(runId).toPath(), CREATE, APPEND)) {
+        if (bytes.length <= remaining) {
+          outputStream.write(bytes);
+        } else {
+          outputStream.write(bytes, 0, getCharacterBoundary(bytes, (int) remaining));
+          outputStream.write(TRUNCATED_MARKER.getBytes(UTF_8));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @return the last position at or before an index that does not split a UTF-8 character */
+  private static int getCharacterBoundary(byte[] bytes, int index) {
+    int boundary = index;
+    while (boundary > 0 && (bytes[boundary] & 0xC0) == 0x80) {
+      boundary--;
+    }
+    return boundary;
+  }
+
+  /** Appends the log of another run, the log of a shard to the log of its parent for example. */
+  void appendLogOf(String runId, String otherRunId) {
+    File otherFile = getFile(otherRunId);
+    if (!otherFile.exists()) {
+      return;
+    }
+    Lock lock = locks.get(runId);
+    lock.lock();
+    try {
+      long remaining = maxLength - getLength(runId);
+      if (remaining <= 0) {
+        return;
+      }
+      try (InputStream inputStream = Files.newInputStream(otherFile.toPath());
+          OutputStream outputStream =
+              Files.newOutputStream(getFile(runId).toPath(), CREATE, APPEND)) {
+        ByteStreams.copy(ByteStreams.limit(inputStream, remaining), outputStream);
+        if (otherFile.length() > remaining) {
+          outputStream.write(TRUNCATED_MARKER.getBytes(UTF_8));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the log of a run. Logs that were appended to other logs are copies, so the log of each
+   * run can be deleted on its own.
+   */
+  void delete(String runId) {
+    Lock lock = locks.get(runId);
+    lock.lock();
+    try {
+      fileStore.delete(getFileId(runId));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @return the number of bytes in the log of a run, 0 if nothing was logged */
+  long getLength(String runId) {
+    return getFile(runId).length();
+  }
+
+  File getFile(String runId) {
+    return fileStore.getFile(getFileId(runId));
+  }
+
+  private static String getFileId(String runId) {
+    return runId + "-log";
+  }
+}
@@ -0,0 +1,16 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Objects.requireNonNull;
+
+/** Published when a GavinRun becomes pending, so that waiting workers can claim it. */
+class RunPendingEvent {
+  private final String id;
+
+  RunPendingEvent(String id) {
+    this.id = requireNonNull(id);
+  }
+
+  String getId() {
+    return id;
+  }
+}
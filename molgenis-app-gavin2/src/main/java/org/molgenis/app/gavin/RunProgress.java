@@ -0,0 +1,138 @@
+package org.molgenis.app.gavin;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the number of variants that workers have processed per running run. Workers report their
+ * progress often, so reports are only kept in memory, a newer report replaces the previous one.
+ *
+ * <p>The throughput of a run is a moving average of the rates between its reports. Runs that have
+ * not reported twice yet are estimated with the moving average of all runs.
+ */
+@Component
+class RunProgress {
+  /** The weight of the newest rate in the moving averages */
+  private static final double SMOOTHING = 0.3;
+
+  private final ConcurrentMap<String, Report> reports = new ConcurrentHashMap<>();
+  /** Variants per second of a single worker, or 0 if no throughput was measured yet */
+  private volatile double throughput;
+
+  void report(String runId, long processedVariants) {
+    report(runId, processedVariants, Instant.now());
+  }
+
+  void report(String runId, long processedVariants, Instant now) {
+    reports.compute(
+        runId,
+        (key, previous) -> {
+          if (previous == null) {
+            return new Report(processedVariants, now, 0);
+          }
+          long millis = Duration.between(previous.reportedAt, now).toMillis();
+          if (millis <= 0 || processedVariants <= previous.processedVariants) {
+            return new Report(processedVariants, previous.reportedAt, previous.throughput);
+          }
+          double rate = (processedVariants - previous.processedVariants) * 1000.0 / millis;
+          throughput = average(throughput, rate);
+          return new Report(processedVariants, now, average(previous.throughput, rate));
+        });
+  }
+
+  /** Forgets the progress of a run that stopped running. */
+  void remove(String runId) {
+    reports.remove(runId);
+  }
+
+  /**
+   * Estimates the progress of a run. The progress of a parent run is the progress of its shards,
+   * processed by as many workers as there are running shards.
+   *
+   * @param shards the shards of the run, empty if the run is not split into shards
+   */
+  Estimate estimate(GavinRun gavinRun, List<GavinRun> shards, Instant now) {
+    int numberOfVariants = gavinRun.getNumberOfVariants();
+    if (gavinRun.getStatus() == Status.SUCCESS || gavinRun.getStatus() == Status.FINISHING) {
+      return new Estimate(numberOfVariants, null);
+    }
+    if (gavinRun.getStatus() != Status.RUNNING) {
+      return new Estimate(0, null);
+    }
+
+    long processedVariants = 0;
+    double runThroughput = 0;
+    if (shards.isEmpty()) {
+      Report report = reports.get(gavinRun.getId());
+      if (report != null) {
+        processedVariants = report.processedVariants;
+        runThroughput = report.throughput;
+      }
+      if (runThroughput == 0) {
+        runThroughput = throughput;
+      }
+    } else {
+      int runningShards = 0;
+      for (GavinRun shard : shards) {
+        if (shard.getStatus() == Status.SUCCESS) {
+          processedVariants += shard.getNumberOfVariants();
+        } else if (shard.getStatus() == Status.RUNNING) {
+          runningShards++;
+          Report report = reports.get(shard.getId());
+          processedVariants += report != null ? report.processedVariants : 0;
+        }
+      }
+      runThroughput = throughput * Math.max(1, runningShards);
+    }
+    processedVariants = Math.min(processedVariants, numberOfVariants);
+
+    Instant estimatedFinishAt = null;
+    if (runThroughput > 0) {
+      long remainingMillis = (long) ((numberOfVariants - processedVariants) * 1000 / runThroughput);
+      estimatedFinishAt = now.plusMillis(remainingMillis);
+    }
+    return new Estimate(processedVariants, estimatedFinishAt);
+  }
+
+  private static double average(double average, double value) {
+    return average == 0 ? value : SMOOTHING * value + (1 - SMOOTHING) * average;
+  }
+
+  private static class Report {
+    private final long processedVariants;
+    private final Instant reportedAt;
+    private final double throughput;
+
+    Report(long processedVariants, Instant reportedAt, double throughput) {
+      this.processedVariants = processedVariants;
+      this.reportedAt = reportedAt;
+      this.throughput = throughput;
+    }
+  }
+
+  static class Estimate {
+    private final long processedVariants;
+    @Nullable private final Instant estimatedFinishAt;
+
+    Estimate(long processedVariants, @Nullable Instant estimatedFinishAt) {
+      this.processedVariants = processedVariants;
+      this.estimatedFinishAt = estimatedFinishAt;
+    }
+
+    long getProcessedVariants() {
+      return processedVariants;
+    }
+
+    @Nullable
+    Instant getEstimatedFinishAt() {
+      return estimatedFinishAt;
+    }
+  }
+}
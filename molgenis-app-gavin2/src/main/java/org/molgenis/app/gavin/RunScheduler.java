@@ -0,0 +1,102 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides which pending run is claimed next. Runs with few variants go first, so that a single
+ * variant check does not wait behind large batch uploads. To keep large runs from starving, the
+ * cost of a run drops the longer it waits. A run costs more for each run of the same client that is
+ * already running, so that one client with many uploads does not occupy all workers.
+ *
+ * <p>Ordering alone does not help a small run that arrives while every worker is busy with a large
+ * run. Therefore only a limited number of large runs may run at once, the other workers are
+ * reserved for small runs.
+ */
+@Component
+class RunScheduler {
+  /** The number of variants a pending run is moved forward for each minute that it waits */
+  static final long AGING_VARIANTS_PER_MINUTE = 1000;
+  /** Runs with more variants than this are large runs */
+  static final int SMALL_RUN_MAX_VARIANTS = 1000;
+
+  private final int largeRunSlots;
+
+  /** @param largeRunSlots the maximum number of large runs that may run at once */
+  RunScheduler(@Value("${gavin.scheduler.largeRunSlots:2}") int largeRunSlots) {
+    if (largeRunSlots < 1) {
+      throw new IllegalArgumentException("largeRunSlots must be at least 1");
+    }
+    this.largeRunSlots = largeRunSlots;
+  }
+
+  /**
+   * @param pendingRuns the runs to choose from
+   * @param runningRuns the runs that occupy a worker
+   * @param now the time of the claim
+   * @return the pending run with the lowest cost, or empty if there are no pending runs that may
+   *     start
+   */
+  Optional<GavinRun> select(
+      Collection<GavinRun> pendingRuns, Collection<GavinRun> runningRuns, Instant now) {
+    return order(pendingRuns, runningRuns, now).stream().findFirst();
+  }
+
+  /**
+   * @param pendingRuns the runs to order
+   * @param runningRuns the runs that occupy a worker
+   * @param now the time of the claim
+   * @return the pending runs that may start from the lowest to the highest cost, to try in turn if
+   *     the first run is claimed by someone else. Large runs are left out if all large run slots
+   *     are taken.
+   */
+  List<GavinRun> order(
+      Collection<GavinRun> pendingRuns, Collection<GavinRun> runningRuns, Instant now) {
+    Multiset<String> runningRunsPerClient = HashMultiset.create();
+    runningRuns.forEach(gavinRun -> runningRunsPerClient.add(getClient(gavinRun)));
+    boolean largeRunSlotFree =
+        runningRuns.stream().filter(RunScheduler::isLarge).count() < largeRunSlots;
+    return pendingRuns
+        .stream()
+        .filter(gavinRun -> largeRunSlotFree || !isLarge(gavinRun))
+        .sorted(getOrder(runningRunsPerClient, now))
+        .collect(toList());
+  }
+
+  private static boolean isLarge(GavinRun gavinRun) {
+    return gavinRun.getNumberOfVariants() > SMALL_RUN_MAX_VARIANTS;
+  }
+
+  private static Comparator<GavinRun> getOrder(
+      Multiset<String> runningRunsPerClient, Instant now) {
+    Comparator<GavinRun> byCost =
+        comparingLong(gavinRun -> getCost(gavinRun, runningRunsPerClient, now));
+    return byCost
+        .thenComparing(GavinRun::getSubmittedAt)
+        .thenComparing(gavinRun -> gavinRun.getShardIndex().orElse(0));
+  }
+
+  private static long getCost(
+      GavinRun gavinRun, Multiset<String> runningRunsPerClient, Instant now) {
+    long runningRuns = runningRunsPerClient.count(getClient(gavinRun));
+    long waitingSeconds = Duration.between(gavinRun.getSubmittedAt(), now).getSeconds();
+    return gavinRun.getNumberOfVariants() * (1 + runningRuns)
+        - waitingSeconds * AGING_VARIANTS_PER_MINUTE / 60;
+  }
+
+  private static String getClient(GavinRun gavinRun) {
+    return gavinRun.getSubmittedBy().orElse("");
+  }
+}
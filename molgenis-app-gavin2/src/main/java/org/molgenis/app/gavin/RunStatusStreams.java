@@ -0,0 +1,253 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Collections.emptyList;
+import static java.util.Objects.requireNonNull;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
+import org.molgenis.data.UnknownEntityException;
+import org.molgenis.security.core.runas.RunAsSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Pushes the status of GavinRuns to clients that subscribed to it, instead of letting them poll.
+ * A run is read once per change, however many clients subscribed to it. Progress reports only
+ * update the estimate of the run that was read last, so they are pushed without reading the run,
+ * at most once per {@link #PROGRESS_INTERVAL}.
+ *
+ * <p>The streams of a run are completed when the run has succeeded or failed.
+ */
+@Component
+class RunStatusStreams {
+  private static final Logger LOG = LoggerFactory.getLogger(RunStatusStreams.class);
+
+  static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+
+  private final GavinService gavinService;
+  private final RunProgress runProgress;
+  private final ConcurrentMap<String, RunStream> streams = new ConcurrentHashMap<>();
+  /** The ids of the runs with a stream by the ids of their shards */
+  private final ConcurrentMap<String, String> parentIds = new ConcurrentHashMap<>();
+
+  RunStatusStreams(GavinService gavinService, RunProgress runProgress) {
+    this.gavinService = requireNonNull(gavinService);
+    this.runProgress = requireNonNull(runProgress);
+  }
+
+  /**
+   * Subscribes an emitter to the status of a run. The current status is sent right away. The
+   * emitter is registered before the run is read, so that changes made while it is read are pushed
+   * as well. If such a change was read meanwhile, the status read here is outdated and the changed
+   * status is sent instead.
+   *
+   * @throws UnknownEntityException if the run does not exist
+   */
+  void subscribe(String runId, SseEmitter emitter) {
+    emitter.onCompletion(() -> unsubscribe(runId, emitter));
+    emitter.onTimeout(() -> unsubscribe(runId, emitter));
+    RunStream runStream =
+        streams.compute(
+            runId,
+            (key, stream) -> {
+              RunStream newStream = stream != null ? stream : new RunStream();
+              newStream.emitters.add(emitter);
+              return newStream;
+            });
+
+    long version = runStream.startRead();
+    GavinRun gavinRun;
+    try {
+      gavinRun = gavinService.get(runId);
+    } catch (UnknownEntityException e) {
+      unsubscribe(runId, emitter);
+      throw e;
+    }
+    update(runId, runStream, version, gavinRun, getShards(gavinRun));
+    GavinRun currentRun;
+    boolean sent;
+    synchronized (runStream) {
+      currentRun = requireNonNull(runStream.gavinRun);
+      GavinRunResponse response =
+          GavinRunResponse.create(currentRun, estimate(currentRun, runStream.shards));
+      sent = send(emitter, response);
+    }
+    if (isFinished(currentRun)) {
+      unsubscribe(runId, emitter);
+      emitter.complete();
+    } else if (!sent) {
+      unsubscribe(runId, emitter);
+    }
+  }
+
+  @RunAsSystem
+  @TransactionalEventListener(fallbackExecution = true)
+  public void onRunChanged(RunChangedEvent event) {
+    String runId = event.getId();
+    RunStream stream = streams.get(runId);
+    if (stream == null) {
+      return;
+    }
+    LOG.debug("Sending status of GavinRun '{}'", runId);
+
+    long version = stream.startRead();
+    GavinRun gavinRun = gavinService.get(runId);
+    List<GavinRun> shards = getShards(gavinRun);
+    GavinRunResponse response = GavinRunResponse.create(gavinRun, estimate(gavinRun, shards));
+    synchronized (stream) {
+      if (!update(runId, stream, version, gavinRun, shards)) {
+        return;
+      }
+      sendAll(runId, stream, response);
+    }
+    if (isFinished(gavinRun)) {
+      remove(runId, stream);
+      stream.emitters.forEach(SseEmitter::complete);
+    }
+  }
+
+  /** Sends the progress of a run, or of a shard, to the stream of the run. */
+  void onProgress(String runId) {
+    onProgress(runId, Instant.now());
+  }
+
+  void onProgress(String runId, Instant now) {
+    String streamRunId = parentIds.getOrDefault(runId, runId);
+    RunStream stream = streams.get(streamRunId);
+    if (stream == null || !stream.claimProgress(now)) {
+      return;
+    }
+    synchronized (stream) {
+      GavinRun gavinRun = stream.gavinRun;
+      if (gavinRun != null) {
+        GavinRunResponse response =
+            GavinRunResponse.create(gavinRun, runProgress.estimate(gavinRun, stream.shards, now));
+        sendAll(streamRunId, stream, response);
+      }
+    }
+  }
+
+  /**
+   * Keeps the run that was read last, and indexes its shards, so that their progress is found.
+   *
+   * @return false if a run that was read later was sent already, then the given run is outdated
+   */
+  private boolean update(
+      String runId, RunStream stream, long version, GavinRun gavinRun, List<GavinRun> shards) {
+    if (!stream.update(version, gavinRun, shards)) {
+      return false;
+    }
+    shards.forEach(shard -> parentIds.put(shard.getId(), runId));
+    return true;
+  }
+
+  private void sendAll(String runId, RunStream stream, GavinRunResponse response) {
+    stream.emitters.forEach(
+        emitter -> {
+          if (!send(emitter, response)) {
+            unsubscribe(runId, emitter);
+          }
+        });
+  }
+
+  /** @return whether the response was sent, emitters of disconnected clients fail to send */
+  private static boolean send(SseEmitter emitter, GavinRunResponse response) {
+    try {
+      emitter.send(SseEmitter.event().data(response, APPLICATION_JSON));
+      return true;
+    } catch (IOException | IllegalStateException e) {
+      LOG.debug("Status stream closed", e);
+      return false;
+    }
+  }
+
+  private void unsubscribe(String runId, SseEmitter emitter) {
+    RunStream remainingStream =
+        streams.computeIfPresent(
+            runId,
+            (key, stream) -> {
+              stream.emitters.remove(emitter);
+              return stream.emitters.isEmpty() ? null : stream;
+            });
+    if (remainingStream == null) {
+      removeParentIds(runId);
+    }
+  }
+
+  private void remove(String runId, RunStream stream) {
+    if (streams.remove(runId, stream)) {
+      removeParentIds(runId);
+    }
+  }
+
+  private void removeParentIds(String runId) {
+    parentIds.values().removeIf(runId::equals);
+  }
+
+  private List<GavinRun> getShards(GavinRun gavinRun) {
+    return gavinRun.getNumberOfShards().isPresent()
+        ? gavinService.getShards(gavinRun)
+        : emptyList();
+  }
+
+  private RunProgress.Estimate estimate(GavinRun gavinRun, List<GavinRun> shards) {
+    return runProgress.estimate(gavinRun, shards, Instant.now());
+  }
+
+  private static boolean isFinished(GavinRun gavinRun) {
+    return gavinRun.getStatus() == Status.SUCCESS || gavinRun.getStatus() == Status.FAILED;
+  }
+
+  /**
+   * The subscribed emitters of a run and the run as it was read last, null until the first
+   * subscriber has read it. Every read of the run gets a version, a run is only kept and sent if no
+   * run that was read later was kept already. Sends to the emitters synchronize on the stream, so
+   * that they are not reordered.
+   */
+  private static class RunStream {
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    private final AtomicLong reads = new AtomicLong();
+    @Nullable private volatile GavinRun gavinRun;
+    private volatile List<GavinRun> shards = emptyList();
+    private long version = -1;
+    private Instant progressSentAt = Instant.MIN;
+
+    /** @return the version of a read that is about to start */
+    long startRead() {
+      return reads.getAndIncrement();
+    }
+
+    /** @return whether the run was kept, false if a run that was read later was kept already */
+    synchronized boolean update(long version, GavinRun gavinRun, List<GavinRun> shards) {
+      if (version < this.version) {
+        return false;
+      }
+      this.version = version;
+      this.gavinRun = gavinRun;
+      this.shards = shards;
+      return true;
+    }
+
+    /** @return whether progress may be sent, it is sent at most once per interval */
+    synchronized boolean claimProgress(Instant now) {
+      if (now.isBefore(progressSentAt.plus(PROGRESS_INTERVAL))) {
+        return false;
+      }
+      progressSentAt = now;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.molgenis.app.gavin.input.ClassificationCache;
+import org.molgenis.app.gavin.input.Parser;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+import org.molgenis.app.gavin.input.model.VcfVariant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Classifies small batches of variants while the client waits, see {@link
+ * GavinController#classify}. A batch of which all variants are in the {@link ClassificationCache}
+ * gets their output right away. Any other batch becomes a GavinRun that the client can follow like
+ * an upload.
+ */
+@Component
+class SyncClassifications {
+  private static final Logger LOG = LoggerFactory.getLogger(SyncClassifications.class);
+
+  /** The maximum number of variants of a batch, larger sets of variants are uploaded as a file */
+  static final int MAX_VARIANTS = 100;
+
+  static final String INPUT_FILENAME = "variants.vcf";
+
+  private final Parser parser;
+  private final ClassificationCache classificationCache;
+  private final GavinService gavinService;
+
+  SyncClassifications(
+      Parser parser, ClassificationCache classificationCache, GavinService gavinService) {
+    this.parser = requireNonNull(parser);
+    this.classificationCache = requireNonNull(classificationCache);
+    this.gavinService = requireNonNull(gavinService);
+  }
+
+  /**
+   * Parses and classifies a batch of variants. Nothing is classified if any of the variants is
+   * invalid.
+   *
+   * @param variantRequests at most {@link #MAX_VARIANTS} variants
+   * @param submittedBy the client, for the GavinRun that may be created
+   * @return the results in the order of the requests, with the id of the GavinRun that classifies
+   *     the variants if not all of them are cached
+   * @throws IOException if storing the input of the GavinRun fails
+   */
+  ClassifyResponse classify(List<VariantRequest> variantRequests, String submittedBy)
+      throws IOException {
+    Map<VariantRequest, List<VcfVariant>> variants = new LinkedHashMap<>();
+    Map<VariantRequest, DiscardReason> discardReasons = new HashMap<>();
+    for (VariantRequest variantRequest : variantRequests) {
+      variants.put(
+          variantRequest,
+          parser.parseVariants(
+              variantRequest.toVcfLine(),
+              discardReason -> discardReasons.put(variantRequest, discardReason)));
+    }
+    if (!discardReasons.isEmpty()) {
+      return ClassifyResponse.create(
+          variantRequests
+              .stream()
+              .map(request -> ClassifiedVariant.create(discardReasons.get(request), emptyList()))
+              .collect(toList()),
+          null);
+    }
+
+    Set<VcfVariant> uniqueVariants = new LinkedHashSet<>();
+    variants.values().forEach(uniqueVariants::addAll);
+    Optional<Map<VcfVariant, String>> records = getCachedRecords(uniqueVariants);
+    if (records.isPresent()) {
+      return ClassifyResponse.create(
+          variantRequests
+              .stream()
+              .map(
+                  request ->
+                      ClassifiedVariant.create(
+                          null,
+                          variants
+                              .get(request)
+                              .stream()
+                              .map(records.get()::get)
+                              .collect(toList())))
+              .collect(toList()),
+          null);
+    }
+
+    String input = variantRequests.stream().map(VariantRequest::toVcfLine).collect(joining("\n"));
+    String runId =
+        gavinService.upload(
+            INPUT_FILENAME, new ByteArrayInputStream(input.getBytes(UTF_8)), submittedBy, false);
+    LOG.debug("Classifying {} variants in GavinRun '{}'", variantRequests.size(), runId);
+    return ClassifyResponse.create(
+        variantRequests
+            .stream()
+            .map(request -> ClassifiedVariant.create(null, emptyList()))
+            .collect(toList()),
+        runId);
+  }
+
+  /** @return the output record of each variant, or empty if not all variants are cached */
+  private Optional<Map<VcfVariant, String>> getCachedRecords(Collection<VcfVariant> variants) {
+    Map<VcfVariant, String> records = new HashMap<>();
+    for (VcfVariant variant : variants) {
+      Optional<String> record = classificationCache.get(variant);
+      if (!record.isPresent()) {
+        return Optional.empty();
+      }
+      records.put(variant, record.get());
+    }
+    return Optional.of(records);
+  }
+}
@@ -0,0 +1,45 @@
+package org.molgenis.app.gavin;
+
+import com.google.auto.value.AutoValue;
+import javax.annotation.Nullable;
+import org.molgenis.util.AutoGson;
+
+/** A variant to classify with {@link GavinController#classify}, with the columns of a VCF line. */
+@AutoValue
+@AutoGson(autoValueClass = AutoValue_VariantRequest.class)
+public abstract class VariantRequest {
+  public abstract String getChrom();
+
+  public abstract long getPos();
+
+  @Nullable
+  public abstract String getId();
+
+  public abstract String getRef();
+
+  public abstract String getAlt();
+
+  /**
+   * @return the first five columns of a VCF line. Tabs and line breaks inside values are replaced
+   *     by spaces, so that a value cannot be parsed as another column.
+   */
+  String toVcfLine() {
+    return String.join(
+        "\t",
+        column(getChrom()),
+        Long.toString(getPos()),
+        getId() != null ? column(getId()) : ".",
+        column(getRef()),
+        column(getAlt()));
+  }
+
+  /** Values that are missing from the request body are null, they are parsed as empty columns. */
+  private static String column(@Nullable String value) {
+    return value != null ? value.replaceAll("[\t\r\n]", " ") : "";
+  }
+
+  static VariantRequest create(
+      String chrom, long pos, @Nullable String id, String ref, String alt) {
+    return new AutoValue_VariantRequest(chrom, pos, id, ref, alt);
+  }
+}
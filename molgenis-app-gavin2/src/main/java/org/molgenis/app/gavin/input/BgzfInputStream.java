@@ -0,0 +1,250 @@
+package org.molgenis.app.gavin.input;
+
+import static java.util.Objects.requireNonNull;
+import static org.molgenis.app.gavin.input.Compression.unsignedShort;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates BGZF compressed input on multiple threads. BGZF files consist of independently
+ * compressed gzip blocks of at most 64 KB, so blocks are read ahead, inflated in parallel and
+ * returned in their original order.
+ */
+class BgzfInputStream extends InputStream {
+  private static final int HEADER_SIZE = 12;
+  private static final int TRAILER_SIZE = 8;
+  private static final int GZIP_FLAG_EXTRA = 0x04;
+  /** The maximum number of uncompressed bytes in a BGZF block */
+  private static final int MAX_INFLATED_SIZE = 65536;
+  private static final int DEFAULT_NUMBER_OF_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Shared by the streams of all uploads. Unlike the common pool, it is not shared with unrelated
+   * tasks, and each stream queues at most its read ahead of blocks.
+   */
+  private static final ThreadPoolExecutor DEFAULT_EXECUTOR = createExecutor();
+
+  private final InputStream inputStream;
+  private final Executor executor;
+  private final int readAhead;
+  private final Deque<CompletableFuture<byte[]>> blocks = new ArrayDeque<>();
+  private boolean endOfStream;
+
+  private byte[] block = new byte[0];
+  private int position;
+
+  BgzfInputStream(InputStream inputStream) {
+    this(inputStream, DEFAULT_EXECUTOR, 2 * DEFAULT_NUMBER_OF_THREADS);
+  }
+
+  BgzfInputStream(InputStream inputStream, Executor executor, int readAhead) {
+    this.inputStream = requireNonNull(inputStream);
+    this.executor = requireNonNull(executor);
+    this.readAhead = Math.max(readAhead, 1);
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("gavin-bgzf-inflater-%d").setDaemon(true).build();
+    return new ThreadPoolExecutor(
+        DEFAULT_NUMBER_OF_THREADS,
+        DEFAULT_NUMBER_OF_THREADS,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        threadFactory);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBlock()) {
+      return -1;
+    }
+    return block[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (!ensureBlock()) {
+      return -1;
+    }
+    int read = Math.min(length, block.length - position);
+    System.arraycopy(block, position, bytes, offset, read);
+    position += read;
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return block.length - position;
+  }
+
+  /** @return false if all blocks have been read */
+  private boolean ensureBlock() throws IOException {
+    while (position == block.length) {
+      submitBlocks();
+      if (blocks.isEmpty()) {
+        return false;
+      }
+      block = await(blocks.removeFirst());
+      position = 0;
+    }
+    return true;
+  }
+
+  /** Reads compressed blocks and schedules them for inflation until the read ahead is full. */
+  private void submitBlocks() throws IOException {
+    while (!endOfStream && blocks.size() < readAhead) {
+      byte[] compressedBlock = readCompressedBlock();
+      if (compressedBlock == null) {
+        endOfStream = true;
+      } else {
+        blocks.add(CompletableFuture.supplyAsync(() -> inflate(compressedBlock), executor));
+      }
+    }
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while inflating BGZF block", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Reads the next BGZF block.
+   *
+   * @return the complete block including gzip header and trailer, or null at the end of the input
+   */
+  private byte[] readCompressedBlock() throws IOException {
+    byte[] header = new byte[HEADER_SIZE];
+    int read = readFully(header, 0, HEADER_SIZE);
+    if (read == 0) {
+      return null;
+    } else if (read < HEADER_SIZE
+        || (header[0] & 0xff) != 0x1f
+        || (header[1] & 0xff) != 0x8b
+        || (header[3] & GZIP_FLAG_EXTRA) == 0) {
+      throw new ZipException("Invalid BGZF block header");
+    }
+
+    int extraLength = unsignedShort(header, 10);
+    byte[] extra = new byte[extraLength];
+    if (readFully(extra, 0, extraLength) < extraLength) {
+      throw new EOFException("Unexpected end of BGZF block header");
+    }
+    int blockSize = -1;
+    for (int i = 0; i + 4 <= extraLength; i += 4 + unsignedShort(extra, i + 2)) {
+      if (extra[i] == 'B' && extra[i + 1] == 'C' && i + 6 <= extraLength) {
+        blockSize = unsignedShort(extra, i + 4) + 1;
+      }
+    }
+    if (blockSize < HEADER_SIZE + extraLength + TRAILER_SIZE) {
+      throw new ZipException("Missing or invalid BGZF block size");
+    }
+
+    byte[] compressedBlock = new byte[blockSize];
+    System.arraycopy(header, 0, compressedBlock, 0, HEADER_SIZE);
+    System.arraycopy(extra, 0, compressedBlock, HEADER_SIZE, extraLength);
+    int remaining = blockSize - HEADER_SIZE - extraLength;
+    if (readFully(compressedBlock, HEADER_SIZE + extraLength, remaining) < remaining) {
+      throw new EOFException("Unexpected end of BGZF block");
+    }
+    int inflatedSize = readInt(compressedBlock, blockSize - 4);
+    if (inflatedSize < 0 || inflatedSize > MAX_INFLATED_SIZE) {
+      throw new ZipException("Invalid BGZF block inflated size");
+    }
+    return compressedBlock;
+  }
+
+  private static byte[] inflate(byte[] compressedBlock) {
+    int dataStart = HEADER_SIZE + unsignedShort(compressedBlock, 10);
+    int dataEnd = compressedBlock.length - TRAILER_SIZE;
+    int expectedCrc = readInt(compressedBlock, dataEnd);
+    int inflatedSize = readInt(compressedBlock, dataEnd + 4);
+    // one spare byte, so that data that inflates to more than the stored size is detected
+    byte[] block = new byte[inflatedSize + 1];
+
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressedBlock, dataStart, dataEnd - dataStart);
+      int inflated = 0;
+      while (inflated < block.length && !inflater.finished()) {
+        int count = inflater.inflate(block, inflated, block.length - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != inflatedSize || !inflater.finished()) {
+        throw new UncheckedIOException(new ZipException("BGZF block size mismatch"));
+      }
+    } catch (DataFormatException e) {
+      throw new UncheckedIOException(new ZipException(e.getMessage()));
+    } finally {
+      inflater.end();
+    }
+    block = Arrays.copyOf(block, inflatedSize);
+
+    CRC32 crc = new CRC32();
+    crc.update(block, 0, block.length);
+    if ((int) crc.getValue() != expectedCrc) {
+      throw new UncheckedIOException(new ZipException("BGZF block CRC mismatch"));
+    }
+    return block;
+  }
+
+  private static int readInt(byte[] bytes, int index) {
+    return unsignedShort(bytes, index) | unsignedShort(bytes, index + 2) << 16;
+  }
+
+  /** @return the number of bytes read, less than length only at the end of the input */
+  private int readFully(byte[] bytes, int offset, int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int read = inputStream.read(bytes, offset + total, length - total);
+      if (read == -1) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  @Override
+  public void close() throws IOException {
+    blocks.forEach(future -> future.cancel(false));
+    blocks.clear();
+    inputStream.close();
+  }
+}
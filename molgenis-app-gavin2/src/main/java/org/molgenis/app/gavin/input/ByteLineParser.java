@@ -0,0 +1,371 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_ALT;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_CHROM;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_POS;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_REF;
+import static org.molgenis.app.gavin.input.model.DiscardReason.TOO_FEW_COLUMNS;
+
+import java.util.Arrays;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+import org.molgenis.app.gavin.input.model.VcfVariant;
+
+/**
+ * Parses the raw bytes of a VCF line without decoding them to a String. Only the first five
+ * columns are scanned, chromosomes and alleles are validated with lookup tables and the parsed
+ * variant is written to a reusable output buffer.
+ *
+ * <p>Multi-allelic records are decomposed into one record per alternative allele. Each record is
+ * normalized by trimming the bases that its reference and alternative allele share at the end and
+ * then at the start, keeping at least one base in both alleles.
+ *
+ * <p>Instances are not thread-safe, use one instance per parsed input.
+ */
+final class ByteLineParser {
+  private static final byte TAB = '\t';
+  private static final byte[] MISSING_ID = {'.'};
+  private static final byte[] VCF_SUFFIX = "\t.\t.\t.".getBytes(US_ASCII);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(US_ASCII);
+
+  private static final boolean[] NUCLEOTIDES = new boolean[256];
+
+  static {
+    for (byte nucleotide : "ACTG".getBytes(US_ASCII)) {
+      NUCLEOTIDES[nucleotide] = true;
+    }
+  }
+
+  private byte[] line;
+  private DiscardReason discardReason;
+  private int contig;
+  private long pos;
+  private int idStart;
+  private int idEnd;
+  private int refStart;
+  private int refEnd;
+  private int altStart;
+  private int altEnd;
+  private int numAlleles;
+  private int[] alleleStarts = new int[4];
+  private int[] alleleEnds = new int[4];
+
+  private long normalizedPos;
+  private int normalizedRefStart;
+  private int normalizedRefEnd;
+  private int normalizedAltStart;
+  private int normalizedAltEnd;
+
+  private byte[] buffer = new byte[1024];
+  private int length;
+
+  /** Determines if a line is a comment line. Comment lines start with "#". */
+  static boolean isComment(byte[] bytes, int from, int to) {
+    return to > from && bytes[from] == '#';
+  }
+
+  /**
+   * Parses the first five tab separated columns of a line. Columns are trimmed the way {@link
+   * String#trim()} trims them.
+   *
+   * @return true if the line contains a valid variant, false otherwise, see {@link
+   *     #getDiscardReason()} for the reason
+   */
+  boolean parse(byte[] bytes, int from, int to) {
+    line = bytes;
+    discardReason = null;
+
+    int chromEnd = indexOfTab(bytes, from, to);
+    int posEnd = indexOfTab(bytes, chromEnd + 1, to);
+    int idEndIndex = indexOfTab(bytes, posEnd + 1, to);
+    int refEndIndex = indexOfTab(bytes, idEndIndex + 1, to);
+    if (refEndIndex == to) {
+      return discard(TOO_FEW_COLUMNS);
+    }
+    int altEndIndex = indexOfTab(bytes, refEndIndex + 1, to);
+
+    int chromStart = trimStart(bytes, from, chromEnd);
+    contig = ContigDictionary.indexOf(bytes, chromStart, trimEnd(bytes, chromStart, chromEnd));
+    if (contig == -1) {
+      return discard(BAD_CHROM);
+    }
+
+    int posStart = trimStart(bytes, chromEnd + 1, posEnd);
+    if (!parsePos(bytes, posStart, trimEnd(bytes, posStart, posEnd))) {
+      return discard(BAD_POS);
+    }
+
+    idStart = trimStart(bytes, posEnd + 1, idEndIndex);
+    idEnd = trimEnd(bytes, idStart, idEndIndex);
+
+    refStart = trimStart(bytes, idEndIndex + 1, refEndIndex);
+    refEnd = trimEnd(bytes, refStart, refEndIndex);
+    if (!isNucleotides(bytes, refStart, refEnd)) {
+      return discard(BAD_REF);
+    }
+
+    altStart = trimStart(bytes, refEndIndex + 1, altEndIndex);
+    altEnd = trimEnd(bytes, altStart, altEndIndex);
+    return parseAlleles(bytes, altStart, altEnd) || discard(BAD_ALT);
+  }
+
+  private boolean discard(DiscardReason reason) {
+    discardReason = reason;
+    return false;
+  }
+
+  /** @return the reason why the last line passed to {@link #parse} was not a valid variant */
+  DiscardReason getDiscardReason() {
+    return discardReason;
+  }
+
+  /** Parses a '.' or one or more comma separated alternative alleles. */
+  private boolean parseAlleles(byte[] bytes, int from, int to) {
+    numAlleles = 0;
+    if (to - from == 1 && bytes[from] == '.') {
+      addAllele(from, to);
+      return true;
+    }
+    int alleleStart = from;
+    for (int i = from; i <= to; i++) {
+      if (i == to || bytes[i] == ',') {
+        if (!isNucleotides(bytes, alleleStart, i)) {
+          return false;
+        }
+        addAllele(alleleStart, i);
+        alleleStart = i + 1;
+      }
+    }
+    return true;
+  }
+
+  private void addAllele(int from, int to) {
+    if (numAlleles == alleleStarts.length) {
+      alleleStarts = Arrays.copyOf(alleleStarts, numAlleles * 2);
+      alleleEnds = Arrays.copyOf(alleleEnds, numAlleles * 2);
+    }
+    alleleStarts[numAlleles] = from;
+    alleleEnds[numAlleles] = to;
+    numAlleles++;
+  }
+
+  /** @return the number of alternative alleles of the last successfully parsed line */
+  int getNumAlleles() {
+    return numAlleles;
+  }
+
+  /** Trims the bases shared by the reference and an alternative allele. */
+  private void normalize(int allele) {
+    long normalizedPosition = pos;
+    int refFrom = refStart;
+    int refTo = refEnd;
+    int altFrom = alleleStarts[allele];
+    int altTo = alleleEnds[allele];
+    if (line[altFrom] != '.') {
+      while (refTo - refFrom > 1 && altTo - altFrom > 1 && line[refTo - 1] == line[altTo - 1]) {
+        refTo--;
+        altTo--;
+      }
+      while (refTo - refFrom > 1 && altTo - altFrom > 1 && line[refFrom] == line[altFrom]) {
+        refFrom++;
+        altFrom++;
+        normalizedPosition++;
+      }
+    }
+    normalizedPos = normalizedPosition;
+    normalizedRefStart = refFrom;
+    normalizedRefEnd = refTo;
+    normalizedAltStart = altFrom;
+    normalizedAltEnd = altTo;
+  }
+
+  /**
+   * Computes a 64 bit fingerprint of the normalized chromosome, position, reference and
+   * alternative allele of a record, with which a {@link VariantSet} finds duplicate variants
+   * without creating objects.
+   */
+  long fingerprint(int allele) {
+    normalize(allele);
+    long hash = 0xcbf29ce484222325L;
+    hash = (hash ^ contig) * 0x100000001b3L;
+    hash = (hash ^ normalizedPos) * 0x100000001b3L;
+    for (int i = normalizedRefStart; i < normalizedRefEnd; i++) {
+      hash = (hash ^ line[i]) * 0x100000001b3L;
+    }
+    hash = (hash ^ '\t') * 0x100000001b3L;
+    for (int i = normalizedAltStart; i < normalizedAltEnd; i++) {
+      hash = (hash ^ line[i]) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** @return the normalized variant of an alternative allele of the last parsed line */
+  VcfVariant toVariant(int allele) {
+    normalize(allele);
+    return VcfVariant.create(
+        ContigDictionary.getName(contig),
+        normalizedPos,
+        getId(),
+        new String(line, normalizedRefStart, normalizedRefEnd - normalizedRefStart, US_ASCII),
+        new String(line, normalizedAltStart, normalizedAltEnd - normalizedAltStart, US_ASCII));
+  }
+
+  private String getId() {
+    return idEnd > idStart ? new String(line, idStart, idEnd - idStart, UTF_8) : ".";
+  }
+
+  /** Parses the position like {@link Long#parseLong(String)} does. */
+  private boolean parsePos(byte[] bytes, int from, int to) {
+    if (from == to) {
+      return false;
+    }
+    boolean negative = bytes[from] == '-';
+    int i = negative || bytes[from] == '+' ? from + 1 : from;
+    if (i == to) {
+      return false;
+    }
+
+    // accumulate negatively to be able to represent Long.MIN_VALUE
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyMin = limit / 10;
+    long result = 0;
+    for (; i < to; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return bytes[i] < 0 && parseNonAsciiPos(bytes, from, to);
+      }
+      if (result < multiplyMin) {
+        return false;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return false;
+      }
+      result -= digit;
+    }
+    pos = negative ? result : -result;
+    return true;
+  }
+
+  /** {@link Long#parseLong(String)} also accepts non-ASCII digits. */
+  private boolean parseNonAsciiPos(byte[] bytes, int from, int to) {
+    try {
+      pos = Long.parseLong(new String(bytes, from, to - from, UTF_8));
+      return true;
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+  }
+
+  /** Writes the normalized record of an alternative allele of the last parsed line. */
+  void writeVcfLine(int allele) {
+    normalize(allele);
+    length = 0;
+    write(ContigDictionary.getNameBytes(contig));
+    write(TAB);
+    writeLong(normalizedPos);
+    write(TAB);
+    if (idEnd > idStart) {
+      write(line, idStart, idEnd);
+    } else {
+      write(MISSING_ID);
+    }
+    write(TAB);
+    write(line, normalizedRefStart, normalizedRefEnd);
+    write(TAB);
+    write(line, normalizedAltStart, normalizedAltEnd);
+    write(VCF_SUFFIX);
+  }
+
+  /** @return the buffer containing the last written line */
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  /** @return the length of the last written line */
+  int getLength() {
+    return length;
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      write(MIN_LONG);
+      return;
+    }
+    if (value < 0) {
+      write((byte) '-');
+      value = -value;
+    }
+    int numDigits = 1;
+    for (long remainder = value / 10; remainder > 0; remainder /= 10) {
+      numDigits++;
+    }
+    ensureCapacity(numDigits);
+    for (int i = length + numDigits - 1; i >= length; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    length += numDigits;
+  }
+
+  private void write(byte value) {
+    ensureCapacity(1);
+    buffer[length++] = value;
+  }
+
+  private void write(byte[] bytes) {
+    write(bytes, 0, bytes.length);
+  }
+
+  private void write(byte[] bytes, int from, int to) {
+    ensureCapacity(to - from);
+    System.arraycopy(bytes, from, buffer, length, to - from);
+    length += to - from;
+  }
+
+  private void ensureCapacity(int extraLength) {
+    if (length + extraLength > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extraLength));
+    }
+  }
+
+  private static boolean isNucleotides(byte[] bytes, int from, int to) {
+    if (from == to) {
+      return false;
+    }
+    for (int i = from; i < to; i++) {
+      if (!NUCLEOTIDES[bytes[i] & 0xff]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the index of the next tab or {@code to} if there is none */
+  private static int indexOfTab(byte[] bytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == TAB) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  private static int trimStart(byte[] bytes, int from, int to) {
+    while (from < to && (bytes[from] & 0xff) <= ' ') {
+      from++;
+    }
+    return from;
+  }
+
+  private static int trimEnd(byte[] bytes, int from, int to) {
+    while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+      to--;
+    }
+    return to;
+  }
+}
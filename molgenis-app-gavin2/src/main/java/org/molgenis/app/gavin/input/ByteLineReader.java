@@ -0,0 +1,129 @@
+package org.molgenis.app.gavin.input;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits an {@link InputStream} into lines without decoding them. Recognizes the same line
+ * terminators as {@link java.io.BufferedReader#readLine()}: "\n", "\r" and "\r\n".
+ */
+class ByteLineReader implements LineSource {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream inputStream;
+  private byte[] buffer;
+  private int position;
+  private int limit;
+  private boolean endOfStream;
+  private boolean skipLineFeed;
+
+  private int lineStart;
+  private int lineEnd;
+
+  ByteLineReader(InputStream inputStream) {
+    this(inputStream, DEFAULT_BUFFER_SIZE);
+  }
+
+  ByteLineReader(InputStream inputStream, int bufferSize) {
+    this.inputStream = requireNonNull(inputStream);
+    this.buffer = new byte[bufferSize];
+  }
+
+  /** Creates a reader for the lines in the first {@code length} bytes of an array. */
+  ByteLineReader(byte[] bytes, int length) {
+    this.inputStream = null;
+    this.buffer = bytes;
+    this.limit = length;
+    this.endOfStream = true;
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (skipLineFeed) {
+      if (position == limit && !endOfStream) {
+        fill();
+      }
+      if (position < limit && buffer[position] == '\n') {
+        position++;
+      }
+      skipLineFeed = false;
+    }
+
+    int scanned = position;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        byte value = buffer[i];
+        if (value == '\n' || value == '\r') {
+          lineStart = position;
+          lineEnd = i;
+          position = i + 1;
+          if (value == '\r') {
+            if (position < limit) {
+              if (buffer[position] == '\n') {
+                position++;
+              }
+            } else {
+              skipLineFeed = true;
+            }
+          }
+          return true;
+        }
+      }
+      if (endOfStream) {
+        if (position == limit) {
+          return false;
+        }
+        lineStart = position;
+        lineEnd = limit;
+        position = limit;
+        return true;
+      }
+      scanned = limit - position;
+      fill();
+    }
+  }
+
+  @Override
+  public byte[] getBytes() {
+    return buffer;
+  }
+
+  @Override
+  public int getStart() {
+    return lineStart;
+  }
+
+  @Override
+  public int getEnd() {
+    return lineEnd;
+  }
+
+  /** Moves the unconsumed bytes to the start of the buffer and reads more bytes after them. */
+  private void fill() throws IOException {
+    int remaining = limit - position;
+    if (remaining == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    } else if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, remaining);
+    }
+    position = 0;
+    limit = remaining;
+
+    int read = inputStream.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      endOfStream = true;
+    } else {
+      limit += read;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inputStream != null) {
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,436 @@
+package org.molgenis.app.gavin.input;
+
+import static java.util.Objects.requireNonNull;
+import static org.molgenis.app.gavin.input.model.LineType.COMMENT;
+import static org.molgenis.app.gavin.input.model.LineType.DUPLICATE;
+import static org.molgenis.app.gavin.input.model.LineType.ERROR;
+import static org.molgenis.app.gavin.input.model.LineType.SKIPPED;
+import static org.molgenis.app.gavin.input.model.LineType.VCF;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.EnumMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+import org.molgenis.app.gavin.input.model.LineType;
+
+/**
+ * Transforms uncompressed input by reading it in newline aligned chunks and parsing the chunks on a
+ * dedicated thread pool while the next chunks are read. The parsed chunks are written to the sinks
+ * in the original line order, so line numbers in the error output and the maximum number of valid
+ * lines are the same as when the input is transformed sequentially, and so are the variants that
+ * are skipped because they were already written.
+ *
+ * <p>The input is read once, front to back, so an upload can be transformed while it is being
+ * received. Parsing does not run on the common pool that the rest of the JVM shares. Once the
+ * maximum number of valid lines is reached no more chunks are parsed, the remaining lines are only
+ * counted.
+ */
+class ChunkedTransformer {
+  private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  private static final int DEFAULT_NUMBER_OF_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+  private static final LineType[] LINE_TYPES = LineType.values();
+  private static final DiscardReason[] DISCARD_REASONS = DiscardReason.values();
+
+  /** Shared by the transformers of all uploads, each keeps at most one chunk more than it */
+  private static final ThreadPoolExecutor DEFAULT_EXECUTOR =
+      createExecutor(DEFAULT_NUMBER_OF_THREADS);
+
+  private final ThreadPoolExecutor executor;
+  private final int chunkSize;
+  private final int maxLines;
+
+  ChunkedTransformer() {
+    this(DEFAULT_EXECUTOR, DEFAULT_CHUNK_SIZE, Parser.MAX_LINES);
+  }
+
+  ChunkedTransformer(ThreadPoolExecutor executor, int chunkSize, int maxLines) {
+    this.executor = requireNonNull(executor);
+    this.chunkSize = chunkSize;
+    this.maxLines = maxLines;
+  }
+
+  /**
+   * Creates a pool of daemon threads. A transform submits at most one more chunk than there are
+   * threads, so the queue only grows with the number of concurrent transforms.
+   */
+  static ThreadPoolExecutor createExecutor(int numberOfThreads) {
+    return new ThreadPoolExecutor(
+        numberOfThreads,
+        numberOfThreads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("gavin-chunk-parser-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Transforms the lines of uncompressed input.
+   *
+   * @param in the input to transform, it is read to the end but not closed
+   * @param outputSink {@link LineSink} to write transformed lines to
+   * @param discardedSink {@link DiscardedLineSink} to report unparseable lines to
+   * @return Multiset counting the {@link LineType}s found in the input
+   * @throws IOException if reading the input fails
+   */
+  Multiset<LineType> transformLines(
+      InputStream in, LineSink outputSink, DiscardedLineSink discardedSink) throws IOException {
+    return transformLines(in, maxLines, outputSink, discardedSink);
+  }
+
+  /**
+   * Transforms the lines of uncompressed input, skipping the lines after a maximum number of valid
+   * lines.
+   *
+   * @param in the input to transform, it is read to the end but not closed
+   * @param maxLines the maximum number of valid lines, further lines are skipped
+   * @param outputSink {@link LineSink} to write transformed lines to
+   * @param discardedSink {@link DiscardedLineSink} to report unparseable lines to
+   * @return Multiset counting the {@link LineType}s found in the input
+   * @throws IOException if reading the input fails
+   */
+  Multiset<LineType> transformLines(
+      InputStream in, int maxLines, LineSink outputSink, DiscardedLineSink discardedSink)
+      throws IOException {
+    Merger merger = new Merger(maxLines, outputSink, discardedSink);
+    ChunkReader chunkReader = new ChunkReader(in, chunkSize);
+    Deque<Task> tasks = new ArrayDeque<>();
+    int maxTasks = executor.getMaximumPoolSize() + 1;
+    try {
+      while (!chunkReader.isDone() || !tasks.isEmpty()) {
+        if (merger.isFull()) {
+          int numSkippedLines = 0;
+          for (Task task : tasks) {
+            numSkippedLines += countLines(task.bytes, task.length);
+          }
+          merger.skip(numSkippedLines + chunkReader.countRemainingLines());
+          break;
+        }
+        while (!chunkReader.isDone() && tasks.size() < maxTasks) {
+          byte[] bytes = chunkReader.next();
+          int length = chunkReader.getLength();
+          if (length > 0) {
+            tasks.add(new Task(bytes, length, executor.submit(() -> parseChunk(bytes, length))));
+          }
+        }
+        if (!tasks.isEmpty()) {
+          merger.merge(join(tasks.removeFirst().future));
+        }
+      }
+    } finally {
+      tasks.forEach(task -> task.future.cancel(false));
+    }
+    return merger.lineTypes;
+  }
+
+  private static Chunk join(Future<Chunk> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while parsing");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Counts the lines of a chunk without parsing them. */
+  private static int countLines(byte[] bytes, int length) throws IOException {
+    int numLines = 0;
+    try (LineSource lines = new ByteLineReader(bytes, length)) {
+      while (lines.next()) {
+        numLines++;
+      }
+    }
+    return numLines;
+  }
+
+  private static Chunk parseChunk(byte[] bytes, int length) throws IOException {
+    Chunk chunk = new Chunk();
+    ByteLineParser lineParser = new ByteLineParser();
+    try (LineSource lines = new ByteLineReader(bytes, length)) {
+      while (lines.next()) {
+        byte[] lineBytes = lines.getBytes();
+        int from = lines.getStart();
+        int to = lines.getEnd();
+        if (ByteLineParser.isComment(lineBytes, from, to)) {
+          chunk.addLineType(COMMENT);
+        } else if (lineParser.parse(lineBytes, from, to)) {
+          int numAlleles = lineParser.getNumAlleles();
+          for (int allele = 0; allele < numAlleles; allele++) {
+            lineParser.writeVcfLine(allele);
+            chunk.addRecord(
+                lineParser.getBuffer(), lineParser.getLength(), lineParser.fingerprint(allele));
+          }
+          chunk.addVcfLine(numAlleles);
+        } else {
+          chunk.addError(lineBytes, from, to, lineParser.getDiscardReason());
+        }
+      }
+    }
+    return chunk;
+  }
+
+  /**
+   * Reads input in chunks of at least the chunk size that end on a line terminator, so that no
+   * line spans two chunks. The bytes after the last line terminator of a read are carried over to
+   * the next chunk. A chunk does not end between the "\r" and "\n" of a line terminator.
+   */
+  private static class ChunkReader {
+    private final InputStream in;
+    private final int chunkSize;
+    private byte[] remainder = new byte[0];
+    private int length;
+    private boolean done;
+
+    ChunkReader(InputStream in, int chunkSize) {
+      this.in = in;
+      this.chunkSize = chunkSize;
+    }
+
+    /** @return whether the end of the input was reached */
+    boolean isDone() {
+      return done;
+    }
+
+    /** @return the number of bytes of the chunk that {@link #next()} returned last */
+    int getLength() {
+      return length;
+    }
+
+    /** Reads the next chunk into a new array, so that it can be parsed while the next is read. */
+    byte[] next() throws IOException {
+      byte[] bytes = Arrays.copyOf(remainder, Math.max(2 * chunkSize, 2 * remainder.length));
+      int limit = remainder.length;
+      int scanned = 0;
+      int end = -1;
+      while (end == -1 && !done) {
+        if (limit == bytes.length) {
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        int read = in.read(bytes, limit, bytes.length - limit);
+        if (read == -1) {
+          done = true;
+          end = limit;
+        } else {
+          limit += read;
+          if (limit >= chunkSize) {
+            end = findChunkEnd(bytes, scanned, limit);
+            scanned = Math.max(scanned, limit - 1);
+          }
+        }
+      }
+      remainder = Arrays.copyOfRange(bytes, end, limit);
+      length = end;
+      return bytes;
+    }
+
+    /**
+     * @return the index after the last line terminator in a range that is known to be complete, or
+     *     -1 if there is none
+     */
+    private static int findChunkEnd(byte[] bytes, int from, int limit) {
+      for (int i = limit - 1; i >= from; i--) {
+        if (bytes[i] == '\n' || (bytes[i] == '\r' && i < limit - 1)) {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Counts the lines that have not been read as chunks yet, without keeping them. The input is
+     * not closed, it belongs to the caller.
+     */
+    int countRemainingLines() throws IOException {
+      LineSource lines =
+          new ByteLineReader(new SequenceInputStream(new ByteArrayInputStream(remainder), in));
+      int numLines = 0;
+      while (lines.next()) {
+        numLines++;
+      }
+      remainder = new byte[0];
+      done = true;
+      return numLines;
+    }
+  }
+
+  /**
+   * Writes parsed chunks to the sinks in order, applying the global line counts and skipping
+   * variants that were already written.
+   */
+  private class Merger {
+    private final LineSink outputSink;
+    private final int maxLines;
+    private final DiscardedLineSink discardedSink;
+    private final Multiset<LineType> lineTypes = EnumMultiset.create(LineType.class);
+    private final VariantSet writtenVariants = new VariantSet();
+    private int numLines = 0;
+    private int numValidLines = 0;
+
+    Merger(int maxLines, LineSink outputSink, DiscardedLineSink discardedSink) {
+      this.maxLines = maxLines;
+      this.outputSink = outputSink;
+      this.discardedSink = discardedSink;
+    }
+
+    /** @return whether the maximum number of valid lines is reached, further lines are skipped */
+    boolean isFull() {
+      return numValidLines >= maxLines;
+    }
+
+    void skip(int numSkippedLines) {
+      lineTypes.add(SKIPPED, numSkippedLines);
+      numLines += numSkippedLines;
+    }
+
+    void merge(Chunk chunk) {
+      int vcfLine = 0;
+      int record = 0;
+      int error = 0;
+      for (int i = 0; i < chunk.numLines; i++) {
+        numLines++;
+        if (numValidLines >= maxLines) {
+          lineTypes.add(SKIPPED, chunk.numLines - i);
+          numLines += chunk.numLines - i - 1;
+          return;
+        }
+
+        LineType lineType = LINE_TYPES[chunk.lineTypes[i]];
+        if (lineType == VCF) {
+          boolean written = false;
+          for (int end = record + chunk.numAlleles[vcfLine++]; record < end; record++) {
+            Records records = chunk.records;
+            if (writtenVariants.add(
+                chunk.fingerprints[record],
+                records.bytes,
+                records.start(record),
+                records.ends[record])) {
+              records.writeTo(record, outputSink);
+              written = true;
+            }
+          }
+          if (written) {
+            numValidLines++;
+          } else {
+            lineType = DUPLICATE;
+          }
+        } else if (lineType == ERROR) {
+          Records errors = chunk.errors;
+          discardedSink.accept(
+              DISCARD_REASONS[chunk.discardReasons[error]],
+              numLines,
+              errors.bytes,
+              errors.start(error),
+              errors.ends[error]);
+          error++;
+        }
+        lineTypes.add(lineType);
+      }
+    }
+  }
+
+  /** A chunk that is being parsed. */
+  private static class Task {
+    private final byte[] bytes;
+    private final int length;
+    private final Future<Chunk> future;
+
+    Task(byte[] bytes, int length, Future<Chunk> future) {
+      this.bytes = bytes;
+      this.length = length;
+      this.future = future;
+    }
+  }
+
+  /** The parse results of one chunk of the input. */
+  private static class Chunk {
+    private byte[] lineTypes = new byte[1024];
+    private int numLines;
+    private int[] numAlleles = new int[1024];
+    private int numVcfLines;
+    private final Records records = new Records();
+    private long[] fingerprints = new long[1024];
+    private final Records errors = new Records();
+    private byte[] discardReasons = new byte[1024];
+
+    void addRecord(byte[] bytes, int length, long fingerprint) {
+      if (records.count == fingerprints.length) {
+        fingerprints = Arrays.copyOf(fingerprints, records.count * 2);
+      }
+      fingerprints[records.count] = fingerprint;
+      records.add(bytes, 0, length);
+    }
+
+    void addVcfLine(int numLineAlleles) {
+      if (numVcfLines == numAlleles.length) {
+        numAlleles = Arrays.copyOf(numAlleles, numVcfLines * 2);
+      }
+      numAlleles[numVcfLines++] = numLineAlleles;
+      addLineType(VCF);
+    }
+
+    void addError(byte[] bytes, int from, int to, DiscardReason discardReason) {
+      if (errors.count == discardReasons.length) {
+        discardReasons = Arrays.copyOf(discardReasons, errors.count * 2);
+      }
+      discardReasons[errors.count] = (byte) discardReason.ordinal();
+      errors.add(bytes, from, to);
+      addLineType(ERROR);
+    }
+
+    void addLineType(LineType lineType) {
+      if (numLines == lineTypes.length) {
+        lineTypes = Arrays.copyOf(lineTypes, numLines * 2);
+      }
+      lineTypes[numLines++] = (byte) lineType.ordinal();
+    }
+  }
+
+  /** Lines stored back to back in a single growing byte array. */
+  private static class Records {
+    private byte[] bytes = new byte[64 * 1024];
+    private int length;
+    private int[] ends = new int[1024];
+    private int count;
+
+    void add(byte[] source, int from, int to) {
+      int recordLength = to - from;
+      if (length + recordLength > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + recordLength));
+      }
+      System.arraycopy(source, from, bytes, length, recordLength);
+      length += recordLength;
+
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      ends[count++] = length;
+    }
+
+    int start(int index) {
+      return index == 0 ? 0 : ends[index - 1];
+    }
+
+    void writeTo(int index, LineSink sink) {
+      int start = start(index);
+      sink.accept(bytes, start, ends[index] - start);
+    }
+  }
+}
@@ -0,0 +1,365 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createTempFile;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.molgenis.app.gavin.input.model.VcfVariant;
+import org.molgenis.data.file.FileStore;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persistent cache of classified VCF records, so that variants that were classified before are not
+ * sent to a worker again. Records are keyed on the version of the classification tool and their
+ * chromosome, position, reference and alternative allele. The cache holds a bounded number of
+ * records, the least recently used records are evicted first.
+ *
+ * <p>The value of a record is its output after the ALT column. The header of the latest output of a
+ * tool version is kept as well, so that runs of which all variants are cached get a complete
+ * output.
+ *
+ * <p>The cache is disabled if no tool version is configured, the cached output of different
+ * versions could not be told apart then.
+ */
+@Component
+public class ClassificationCache {
+  private static final Logger LOG = getLogger(ClassificationCache.class);
+  private static final String FILE_NAME = "gavin-classification-cache.db";
+  /** Records that are not read for this many days are evicted, even if the cache is not full */
+  private static final long EXPIRE_AFTER_ACCESS_DAYS = 90;
+
+  @Nullable private final DB db;
+  @Nullable private final Map<String, String> records;
+  @Nullable private final Map<String, String> headers;
+  private final String toolVersion;
+
+  @Autowired
+  public ClassificationCache(
+      FileStore fileStore,
+      @Value("${gavin.cache.toolVersion:}") String toolVersion,
+      @Value("${gavin.cache.maxSize:10000000}") long maxSize) {
+    this.toolVersion = requireNonNull(toolVersion);
+    if (toolVersion.isEmpty()) {
+      LOG.info("No GAVIN tool version configured, classification cache disabled");
+      this.db = null;
+      this.records = null;
+      this.headers = null;
+    } else {
+      this.db = open(new File(fileStore.getStorageDir(), FILE_NAME));
+      this.records =
+          db.createHashMap("records")
+              .keySerializer(Serializer.STRING)
+              .valueSerializer(Serializer.STRING)
+              .expireMaxSize(maxSize)
+              .expireAfterAccess(EXPIRE_AFTER_ACCESS_DAYS, DAYS)
+              .makeOrGet();
+      this.headers = db.getHashMap("headers");
+    }
+  }
+
+  ClassificationCache(
+      Map<String, String> records, Map<String, String> headers, String toolVersion) {
+    this.db = null;
+    this.records = requireNonNull(records);
+    this.headers = requireNonNull(headers);
+    this.toolVersion = requireNonNull(toolVersion);
+  }
+
+  /** @return the configured version of the classification tool, empty if none is configured */
+  public Optional<String> getToolVersion() {
+    return Optional.of(toolVersion).filter(version -> !version.isEmpty());
+  }
+
+  /**
+   * Opens the cache store. Writes are not transactional, so a store that was not closed properly
+   * may be corrupt, the cache then starts over.
+   */
+  private static DB open(File file) {
+    try {
+      return newDb(file);
+    } catch (RuntimeException e) {
+      LOG.warn("Classification cache '{}' cannot be opened, starting over", file, e);
+      for (String suffix : new String[] {"", ".p", ".t"}) {
+        new File(file.getPath() + suffix).delete();
+      }
+      return newDb(file);
+    }
+  }
+
+  private static DB newDb(File file) {
+    return DBMaker.newFileDB(file)
+        .transactionDisable()
+        .mmapFileEnableIfSupported()
+        .closeOnJvmShutdown()
+        .make();
+  }
+
+  @PreDestroy
+  void close() {
+    if (db != null) {
+      db.close();
+    }
+  }
+
+  /**
+   * Moves the records of a sorted VCF file that are in the cache to a separate output file. The
+   * cached output of each of these records is written to the output file, after the cached header.
+   * The file is left untouched if none of its records are cached.
+   *
+   * @param file the VCF file, the records that are not cached are kept
+   * @param cachedOutput the file to write the output of the cached records to
+   * @return the number of cached records
+   * @throws IOException if the file interaction fails
+   */
+  public int extractCached(File file, File cachedOutput) throws IOException {
+    String header = headers != null ? headers.get(toolVersion) : null;
+    if (header == null) {
+      return 0;
+    }
+    LOG.debug("Looking up the records of {} in the classification cache...", file);
+    Path path = file.toPath();
+    Path uncachedFile = createTempFile(path.toAbsolutePath().getParent(), "uncached", ".vcf");
+    int numCached = 0;
+    try {
+      try (LineSource lines = MappedLineSource.open(path);
+          LineSink uncachedSink = new LineSink(uncachedFile.toFile());
+          LineSink cachedSink = new LineSink(cachedOutput)) {
+        for (String headerLine : header.split("\n")) {
+          cachedSink.accept(headerLine);
+        }
+        while (lines.next()) {
+          byte[] bytes = lines.getBytes();
+          int from = lines.getStart();
+          int to = lines.getEnd();
+          String key = ByteLineParser.isComment(bytes, from, to) ? null : key(bytes, from, to);
+          String output = key != null ? records.get(key) : null;
+          if (output == null) {
+            uncachedSink.accept(bytes, from, to - from);
+          } else {
+            int altEnd = indexOfColumnEnd(bytes, from, to, 5);
+            cachedSink.accept(new String(bytes, from, altEnd - from, UTF_8) + output);
+            numCached++;
+          }
+        }
+      }
+      if (numCached > 0) {
+        move(uncachedFile, path, REPLACE_EXISTING);
+      } else {
+        deleteIfExists(cachedOutput.toPath());
+      }
+    } finally {
+      deleteIfExists(uncachedFile);
+    }
+    LOG.debug("Found {} records of {} in the classification cache.", numCached, file);
+    return numCached;
+  }
+
+  /**
+   * Looks up the cached output of a single variant.
+   *
+   * @param variant a normalized variant with one alternative allele
+   * @return the output record of the variant, or empty if it is not cached
+   */
+  public Optional<String> get(VcfVariant variant) {
+    if (records == null) {
+      return Optional.empty();
+    }
+    String record = variant.getChrom() + '\t' + variant.getPos();
+    String alleles = variant.getRef() + '\t' + variant.getAlt();
+    String output = records.get(toolVersion + '\t' + record + '\t' + alleles);
+    if (output == null) {
+      return Optional.empty();
+    }
+    return Optional.of(record + '\t' + variant.getId() + '\t' + alleles + output);
+  }
+
+  /**
+   * Adds the records of a classified VCF file to the cache. Records of which the alternative
+   * allele is not decomposed are skipped.
+   *
+   * @param output the output of the classification tool
+   * @throws IOException if the file interaction fails
+   */
+  public void put(File output) throws IOException {
+    if (records == null) {
+      return;
+    }
+    StringBuilder header = new StringBuilder();
+    int numRecords = 0;
+    try (LineSource lines = MappedLineSource.open(output.toPath())) {
+      while (lines.next()) {
+        byte[] bytes = lines.getBytes();
+        int from = lines.getStart();
+        int to = lines.getEnd();
+        if (ByteLineParser.isComment(bytes, from, to)) {
+          header.append(header.length() > 0 ? "\n" : "");
+          header.append(new String(bytes, from, to - from, UTF_8));
+          continue;
+        }
+        String key = key(bytes, from, to);
+        if (key != null) {
+          int altEnd = indexOfColumnEnd(bytes, from, to, 5);
+          records.put(key, new String(bytes, altEnd, to - altEnd, UTF_8));
+          numRecords++;
+        }
+      }
+    }
+    if (numRecords > 0 && header.length() > 0) {
+      headers.put(toolVersion, header.toString());
+    }
+    LOG.debug("Added {} records of {} to the classification cache.", numRecords, output);
+  }
+
+  /**
+   * Merges the output of cached records into the output of the classification tool. Both files
+   * must be sorted like the {@link VcfSorter} sorts them. Only the header lines of the output are
+   * kept.
+   *
+   * @param output the output of the classification tool, the merged output is written to it
+   * @param cachedOutput the output written by {@link #extractCached(File, File)}
+   * @throws IOException if the file interaction fails
+   */
+  public void merge(File output, File cachedOutput) throws IOException {
+    Path path = output.toPath();
+    Path mergedFile = createTempFile(path.toAbsolutePath().getParent(), "merged", ".vcf");
+    try {
+      merge(output, cachedOutput, mergedFile.toFile());
+      move(mergedFile, path, REPLACE_EXISTING);
+    } finally {
+      deleteIfExists(mergedFile);
+    }
+  }
+
+  /**
+   * Merges the output of cached records and the output of the classification tool into a new
+   * file, leaving both inputs untouched. See {@link #merge(File, File)}.
+   *
+   * @param mergedOutput the file to write the merged output to
+   * @throws IOException if the file interaction fails
+   */
+  public void merge(File output, File cachedOutput, File mergedOutput) throws IOException {
+    try (Records outputRecords = new Records(MappedLineSource.open(output.toPath()));
+        Records cachedRecords = new Records(MappedLineSource.open(cachedOutput.toPath()));
+        LineSink mergedSink = new LineSink(mergedOutput)) {
+      outputRecords.next(mergedSink);
+      cachedRecords.next(null);
+      while (outputRecords.hasRecord || cachedRecords.hasRecord) {
+        if (!cachedRecords.hasRecord
+            || (outputRecords.hasRecord && outputRecords.compareTo(cachedRecords) <= 0)) {
+          outputRecords.writeTo(mergedSink);
+          outputRecords.next(null);
+        } else {
+          cachedRecords.writeTo(mergedSink);
+          cachedRecords.next(null);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the key of a VCF record, or null if the record has less than five columns, an
+   *     unsupported chromosome or more than one alternative allele
+   */
+  @Nullable
+  private String key(byte[] bytes, int from, int to) {
+    int altEnd = indexOfColumnEnd(bytes, from, to, 5);
+    if (altEnd == -1) {
+      return null;
+    }
+    int chromEnd = indexOfColumnEnd(bytes, from, to, 1);
+    int posEnd = indexOfColumnEnd(bytes, from, to, 2);
+    int idEnd = indexOfColumnEnd(bytes, from, to, 3);
+    int contig = ContigDictionary.indexOf(bytes, from, chromEnd);
+    if (contig == -1) {
+      return null;
+    }
+    for (int i = idEnd + 1; i < altEnd; i++) {
+      if (bytes[i] == ',') {
+        return null;
+      }
+    }
+    return toolVersion
+        + '\t'
+        + ContigDictionary.getName(contig)
+        + new String(bytes, chromEnd, posEnd - chromEnd, UTF_8)
+        + new String(bytes, idEnd, altEnd - idEnd, UTF_8);
+  }
+
+  /** @return the index of the tab or line end after a column, or -1 if there are less columns */
+  private static int indexOfColumnEnd(byte[] bytes, int from, int to, int column) {
+    int numColumns = 0;
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == '\t' && ++numColumns == column) {
+        return i;
+      }
+    }
+    return numColumns + 1 == column ? to : -1;
+  }
+
+  /** Reads the records of a sorted VCF file, keeping the sort key of the current record. */
+  private static class Records implements AutoCloseable {
+    private final LineSource lines;
+    private boolean hasRecord;
+    private int contig;
+    private long position;
+
+    Records(LineSource lines) {
+      this.lines = lines;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @param headerSink writes the skipped header lines, or null if they are dropped
+     */
+    void next(@Nullable LineSink headerSink) throws IOException {
+      while (lines.next()) {
+        byte[] bytes = lines.getBytes();
+        int from = lines.getStart();
+        int to = lines.getEnd();
+        if (!ByteLineParser.isComment(bytes, from, to)) {
+          contig = VcfSorter.contig(bytes, from, to);
+          position = VcfSorter.position(bytes, from, to);
+          hasRecord = true;
+          return;
+        }
+        if (headerSink != null) {
+          headerSink.accept(bytes, from, to - from);
+        }
+      }
+      hasRecord = false;
+    }
+
+    int compareTo(Records other) {
+      int result = Integer.compare(contig, other.contig);
+      return result != 0 ? result : Long.compare(position, other.position);
+    }
+
+    void writeTo(LineSink sink) {
+      sink.accept(lines.getBytes(), lines.getStart(), lines.getEnd() - lines.getStart());
+    }
+
+    @Override
+    public void close() throws IOException {
+      lines.close();
+    }
+  }
+}
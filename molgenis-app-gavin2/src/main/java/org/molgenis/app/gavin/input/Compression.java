@@ -0,0 +1,64 @@
+package org.molgenis.app.gavin.input;
+
+/** Compression formats of input files, detected from their first bytes. */
+enum Compression {
+  NONE,
+  GZIP,
+  /** Blocked gzip as written by bgzip, a series of independently compressed gzip members. */
+  BGZF,
+  ZSTD,
+  BZIP2;
+
+  /** Number of bytes needed by {@link #detect(byte[], int)} to recognize all formats. */
+  static final int HEADER_SIZE = 64;
+
+  private static final int GZIP_FLAG_EXTRA = 0x04;
+
+  /**
+   * Detects the compression format from the first bytes of a file.
+   *
+   * @param header the first bytes of the file
+   * @param length the number of bytes in the header, may be less than {@link #HEADER_SIZE}
+   * @return the compression format, {@link #NONE} if the file is not compressed
+   */
+  static Compression detect(byte[] header, int length) {
+    if (startsWith(header, length, 0x1f, 0x8b, 0x08)) {
+      return isBgzf(header, length) ? BGZF : GZIP;
+    } else if (startsWith(header, length, 0x28, 0xb5, 0x2f, 0xfd)) {
+      return ZSTD;
+    } else if (startsWith(header, length, 'B', 'Z', 'h')) {
+      return BZIP2;
+    }
+    return NONE;
+  }
+
+  /** A gzip member is a BGZF block if its extra field contains a "BC" subfield. */
+  private static boolean isBgzf(byte[] header, int length) {
+    if (length < 12 || (header[3] & GZIP_FLAG_EXTRA) == 0) {
+      return false;
+    }
+    int extraEnd = Math.min(length, 12 + unsignedShort(header, 10));
+    for (int i = 12; i + 4 <= extraEnd; i += 4 + unsignedShort(header, i + 2)) {
+      if (header[i] == 'B' && header[i + 1] == 'C') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static int unsignedShort(byte[] bytes, int index) {
+    return (bytes[index] & 0xff) | (bytes[index + 1] & 0xff) << 8;
+  }
+
+  private static boolean startsWith(byte[] header, int length, int... magic) {
+    if (length < magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if ((header[i] & 0xff) != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
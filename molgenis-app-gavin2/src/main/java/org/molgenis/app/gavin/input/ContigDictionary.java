@@ -0,0 +1,121 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of the supported contigs in their sort order: 1-22, X, Y and MT. Contigs are looked up
+ * from raw bytes and their names are interned, so parsing a line does not create a String for its
+ * chromosome.
+ *
+ * <p>Besides the plain names, the UCSC names (chr1, chrX, chrM) and the GRCh38 RefSeq accessions
+ * (NC_000001.11) are recognized. Accessions of other assemblies are rejected because their
+ * positions differ.
+ */
+final class ContigDictionary {
+  private static final String[] NAMES = {
+    "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17",
+    "18", "19", "20", "21", "22", "X", "Y", "MT"
+  };
+  private static final byte[][] NAME_BYTES =
+      Arrays.stream(NAMES).map(name -> name.getBytes(US_ASCII)).toArray(byte[][]::new);
+  private static final byte[][] GRCH38_ACCESSIONS =
+      Arrays.stream(
+              new String[] {
+                "NC_000001.11", "NC_000002.12", "NC_000003.12", "NC_000004.12", "NC_000005.10",
+                "NC_000006.12", "NC_000007.14", "NC_000008.11", "NC_000009.12", "NC_000010.11",
+                "NC_000011.10", "NC_000012.12", "NC_000013.11", "NC_000014.9", "NC_000015.10",
+                "NC_000016.10", "NC_000017.11", "NC_000018.10", "NC_000019.10", "NC_000020.11",
+                "NC_000021.9", "NC_000022.11", "NC_000023.11", "NC_000024.10", "NC_012920.1"
+              })
+          .map(accession -> accession.getBytes(US_ASCII))
+          .toArray(byte[][]::new);
+  private static final int X = 22;
+  private static final int Y = 23;
+  private static final int MT = 24;
+
+  private ContigDictionary() {}
+
+  /** @return the number of contigs in the dictionary */
+  static int size() {
+    return NAMES.length;
+  }
+
+  /** @return the interned name of a contig */
+  static String getName(int index) {
+    return NAMES[index];
+  }
+
+  /** @return the ASCII bytes of the name of a contig, must not be modified */
+  static byte[] getNameBytes(int index) {
+    return NAME_BYTES[index];
+  }
+
+  /**
+   * Determines the index of a chromosome. Accepts chromosomes 1-22, X, Y, M and MT, optionally
+   * prefixed with "chr", case insensitive, and the GRCh38 RefSeq accessions of these chromosomes.
+   *
+   * @return the contig index or -1 if the chromosome is not supported
+   */
+  static int indexOf(byte[] bytes, int from, int to) {
+    if (to - from >= 3
+        && (bytes[from] | 0x20) == 'c'
+        && (bytes[from + 1] | 0x20) == 'h'
+        && (bytes[from + 2] | 0x20) == 'r') {
+      from += 3;
+    }
+    switch (to - from) {
+      case 1:
+        byte value = bytes[from];
+        if (value >= '1' && value <= '9') {
+          return value - '1';
+        }
+        switch (value | 0x20) {
+          case 'x':
+            return X;
+          case 'y':
+            return Y;
+          case 'm':
+            return MT;
+          default:
+            return -1;
+        }
+      case 2:
+        byte tens = bytes[from];
+        byte units = bytes[from + 1];
+        if (tens == '1' && units >= '0' && units <= '9') {
+          return 9 + units - '0';
+        } else if (tens == '2' && units >= '0' && units <= '2') {
+          return 19 + units - '0';
+        } else if ((tens | 0x20) == 'm' && (units | 0x20) == 't') {
+          return MT;
+        }
+        return -1;
+      default:
+        return indexOfAccession(bytes, from, to);
+    }
+  }
+
+  private static int indexOfAccession(byte[] bytes, int from, int to) {
+    if (to - from < 3 || bytes[from] != 'N' || bytes[from + 1] != 'C' || bytes[from + 2] != '_') {
+      return -1;
+    }
+    for (int index = 0; index < GRCH38_ACCESSIONS.length; index++) {
+      byte[] accession = GRCH38_ACCESSIONS[index];
+      if (accession.length == to - from && equals(accession, bytes, from)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean equals(byte[] expected, byte[] bytes, int from) {
+    for (int i = 0; i < expected.length; i++) {
+      if (bytes[from + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
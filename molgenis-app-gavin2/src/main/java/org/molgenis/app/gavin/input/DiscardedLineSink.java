@@ -0,0 +1,100 @@
+package org.molgenis.app.gavin.input;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+
+/**
+ * Collects the lines that could not be parsed. All lines are counted per {@link DiscardReason}, but
+ * only the first lines of each reason are kept as examples, so the discarded file stays small
+ * however bad the input is. The file is written when the sink is closed.
+ */
+public class DiscardedLineSink implements Closeable {
+  static final int MAX_EXAMPLES = 100;
+  static final int MAX_EXAMPLE_LENGTH = 1024;
+
+  private final LineSink lineSink;
+  private final long[] counts = new long[DiscardReason.values().length];
+  private final Map<DiscardReason, List<Example>> examples = new EnumMap<>(DiscardReason.class);
+
+  DiscardedLineSink(LineSink lineSink) {
+    this.lineSink = lineSink;
+  }
+
+  /**
+   * Counts a discarded line and keeps it if there are less than {@link #MAX_EXAMPLES} examples of
+   * its reason. Examples are truncated to {@link #MAX_EXAMPLE_LENGTH} bytes.
+   */
+  void accept(DiscardReason reason, int lineNumber, byte[] bytes, int from, int to) {
+    if (counts[reason.ordinal()]++ >= MAX_EXAMPLES) {
+      return;
+    }
+    int end = to;
+    if (end - from > MAX_EXAMPLE_LENGTH) {
+      end = from + MAX_EXAMPLE_LENGTH;
+      // do not cut a UTF-8 encoded character in two
+      while (end > from && (bytes[end] & 0xc0) == 0x80) {
+        end--;
+      }
+    }
+    examples
+        .computeIfAbsent(reason, key -> new ArrayList<>())
+        .add(new Example(lineNumber, Arrays.copyOfRange(bytes, from, end)));
+  }
+
+  void accept(DiscardReason reason, int lineNumber, String line) {
+    byte[] bytes = line.getBytes(UTF_8);
+    accept(reason, lineNumber, bytes, 0, bytes.length);
+  }
+
+  /** @return the number of discarded lines with a reason */
+  long getCount(DiscardReason reason) {
+    return counts[reason.ordinal()];
+  }
+
+  /**
+   * Writes the number of discarded lines per reason followed by the examples of that reason.
+   * Nothing is written if no lines were discarded.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (DiscardReason reason : DiscardReason.values()) {
+        long count = counts[reason.ordinal()];
+        if (count == 0) {
+          continue;
+        }
+        lineSink.accept(
+            count > MAX_EXAMPLES
+                ? format(
+                    "# %s: %d lines, showing the first %d",
+                    reason.getDescription(), count, MAX_EXAMPLES)
+                : format("# %s: %d lines", reason.getDescription(), count));
+        for (Example example : examples.get(reason)) {
+          lineSink.accept(
+              format("Line %d:\t%s", example.lineNumber, new String(example.line, UTF_8)));
+        }
+      }
+    } finally {
+      lineSink.close();
+    }
+  }
+
+  private static class Example {
+    private final int lineNumber;
+    private final byte[] line;
+
+    Example(int lineNumber, byte[] line) {
+      this.lineNumber = lineNumber;
+      this.line = line;
+    }
+  }
+}
@@ -1,61 +1,60 @@
 package org.molgenis.app.gavin.input;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
+import static java.lang.String.format;
+
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UncheckedIOException;
-import java.nio.charset.Charset;
-import java.nio.file.Path;
-import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
-/** Files methods, adapted to also work for {@link GZIPInputStream}. */
+/** Files methods, adapted to also work for compressed input. */
 class Files {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   private Files() {}
 
-  static Stream<String> getLines(Path path, Charset cs) throws IOException {
-    BufferedReader br = createBufferedReader(path, cs);
-    try {
-      return br.lines().onClose(asUncheckedRunnable(br));
-    } catch (Error | RuntimeException e) {
-      try {
-        br.close();
-      } catch (IOException ex) {
-        try {
-          e.addSuppressed(ex);
-        } catch (Throwable ignore) {
-        }
-      }
-      throw e;
+  /**
+   * Wraps an {@link InputStream} so that it returns uncompressed data. The compression is detected
+   * from the first bytes of the input instead of from the file name. BGZF input is inflated on
+   * multiple threads.
+   *
+   * @param in the possibly compressed input
+   * @return the uncompressed {@link InputStream}
+   * @throws IOException if the input cannot be read or uses an unsupported compression
+   */
+  static InputStream newInputStream(InputStream in) throws IOException {
+    BufferedInputStream bufferedIn = new BufferedInputStream(in, BUFFER_SIZE);
+    bufferedIn.mark(Compression.HEADER_SIZE);
+    byte[] header = new byte[Compression.HEADER_SIZE];
+    int headerLength = readHeader(bufferedIn, header);
+    bufferedIn.reset();
+
+    Compression compression = Compression.detect(header, headerLength);
+    switch (compression) {
+      case NONE:
+        return bufferedIn;
+      case GZIP:
+        return new GZIPInputStream(bufferedIn, BUFFER_SIZE);
+      case BGZF:
+        return new BgzfInputStream(bufferedIn);
+      default:
+        bufferedIn.close();
+        throw new IOException(
+            format(
+                "%s compressed input is not supported, use an uncompressed or gzipped file",
+                compression));
     }
   }
 
-  /** Convert a Closeable to a Runnable by converting checked IOException to UncheckedIOException */
-  private static Runnable asUncheckedRunnable(Closeable c) {
-    return () -> {
-      try {
-        c.close();
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
+  private static int readHeader(InputStream in, byte[] header) throws IOException {
+    int total = 0;
+    while (total < header.length) {
+      int read = in.read(header, total, header.length - total);
+      if (read == -1) {
+        break;
       }
-    };
-  }
-
-  /**
-   * Creates a {@link BufferedReader} for an input file with specified encoding. Unzips it if the
-   * file name ends with "gz".
-   *
-   * @param path the input {@link Path}
-   * @return the {@link BufferedReader}
-   * @throws IOException if the file cannot be read
-   */
-  private static BufferedReader createBufferedReader(Path path, Charset cs) throws IOException {
-    InputStream in = java.nio.file.Files.newInputStream(path);
-    if (path.toString().toLowerCase().endsWith("gz")) {
-      in = new GZIPInputStream(in);
+      total += read;
     }
-    return new BufferedReader(new InputStreamReader(in, cs));
+    return total;
   }
 }
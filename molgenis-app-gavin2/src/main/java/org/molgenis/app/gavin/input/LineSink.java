@@ -1,22 +1,23 @@
 package org.molgenis.app.gavin.input;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.util.function.Consumer;
 import org.slf4j.Logger;
 
 /** Writes lines to file. */
 public class LineSink implements Consumer<String>, Closeable {
   private static final Logger LOG = getLogger(LineSink.class);
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF_8);
   private final File file;
-  private BufferedWriter writer;
+  private OutputStream outputStream;
 
   LineSink(File file) {
     this.file = file;
@@ -24,28 +25,33 @@ public class LineSink implements Consumer<String>, Closeable {
 
   @Override
   public void accept(String line) {
+    byte[] bytes = line.getBytes(UTF_8);
+    accept(bytes, 0, bytes.length);
+  }
+
+  /** Writes a line that is already encoded as UTF-8. */
+  void accept(byte[] bytes, int offset, int length) {
     try {
-      if (writer == null) {
-        writer = createWriter(file);
+      if (outputStream == null) {
+        outputStream = createOutputStream(file);
       }
-      writer.write(line);
-      writer.newLine();
+      outputStream.write(bytes, offset, length);
+      outputStream.write(LINE_SEPARATOR);
     } catch (IOException ex) {
       LOG.error("Failed to write line to file {}.", file.getAbsolutePath(), ex);
     }
   }
 
-  private BufferedWriter createWriter(File file) throws IOException {
+  private OutputStream createOutputStream(File file) throws IOException {
     LOG.debug("Creating LineSink for {}.", file.getAbsolutePath());
-    return new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    return new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
   }
 
   @Override
   public void close() throws IOException {
-    if (writer != null) {
+    if (outputStream != null) {
       LOG.debug("Closing LineSink for {}.", file.getAbsolutePath());
-      writer.close();
+      outputStream.close();
     }
   }
 }
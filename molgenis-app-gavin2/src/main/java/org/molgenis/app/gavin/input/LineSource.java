@@ -0,0 +1,27 @@
+package org.molgenis.app.gavin.input;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Source of raw input lines. Lines are not decoded, the bytes of the current line are only valid
+ * until the next call to {@link #next()}.
+ */
+interface LineSource extends Closeable {
+  /**
+   * Advances to the next line.
+   *
+   * @return false if there are no more lines
+   * @throws IOException if reading the input fails
+   */
+  boolean next() throws IOException;
+
+  /** @return the buffer containing the current line */
+  byte[] getBytes();
+
+  /** @return index of the first byte of the current line */
+  int getStart();
+
+  /** @return index after the last byte of the current line, excluding line terminators */
+  int getEnd();
+}
@@ -0,0 +1,150 @@
+package org.molgenis.app.gavin.input;
+
+import static java.lang.String.format;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of an uncompressed file from memory mapped windows of the file. Line terminators
+ * are found by scanning the mapped bytes, only the bytes of the current line are copied to a
+ * reusable buffer. Recognizes the same line terminators as {@link ByteLineReader}.
+ */
+class MappedLineSource implements LineSource {
+  private static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final boolean ownsChannel;
+  private final long end;
+  private final long windowSize;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private boolean skipLineFeed;
+
+  private byte[] line = new byte[1024];
+  private int lineLength;
+
+  /**
+   * Creates a {@link MappedLineSource} for a whole file. Closing it closes the file.
+   *
+   * @param path the uncompressed file
+   * @throws IOException if the file cannot be opened
+   */
+  static MappedLineSource open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, READ);
+    try {
+      return new MappedLineSource(channel, 0, channel.size(), DEFAULT_WINDOW_SIZE, true);
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Creates a {@link MappedLineSource} for a region of a file that is closed by the caller. */
+  MappedLineSource(FileChannel channel, long start, long end) {
+    this(channel, start, end, DEFAULT_WINDOW_SIZE, false);
+  }
+
+  MappedLineSource(
+      FileChannel channel, long start, long end, long windowSize, boolean ownsChannel) {
+    this.channel = requireNonNull(channel);
+    this.windowStart = start;
+    this.end = end;
+    this.windowSize = windowSize;
+    this.ownsChannel = ownsChannel;
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (window == null) {
+      map(windowStart);
+    }
+    if (skipLineFeed) {
+      skipLineFeed = false;
+      if (!window.hasRemaining()) {
+        map(windowStart + window.position());
+      }
+      if (window.hasRemaining() && window.get(window.position()) == '\n') {
+        window.position(window.position() + 1);
+      }
+    }
+
+    while (true) {
+      int from = window.position();
+      int limit = window.limit();
+      for (int i = from; i < limit; i++) {
+        byte value = window.get(i);
+        if (value == '\n' || value == '\r') {
+          copyLine(from, i);
+          window.position(i + 1);
+          if (value == '\r') {
+            if (i + 1 < limit) {
+              if (window.get(i + 1) == '\n') {
+                window.position(i + 2);
+              }
+            } else {
+              skipLineFeed = true;
+            }
+          }
+          return true;
+        }
+      }
+
+      if (windowStart + limit == end) {
+        if (from == limit) {
+          return false;
+        }
+        copyLine(from, limit);
+        return true;
+      } else if (from == 0) {
+        throw new IOException(format("Line exceeds the maximum length of %d bytes", windowSize));
+      }
+      // the line continues after the window, remap starting at the line
+      map(windowStart + from);
+    }
+  }
+
+  private void map(long position) throws IOException {
+    windowStart = position;
+    window = channel.map(READ_ONLY, position, Math.min(windowSize, end - position));
+  }
+
+  /** Copies a line to the line buffer and moves the window position to its end. */
+  private void copyLine(int from, int to) {
+    lineLength = to - from;
+    if (lineLength > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength));
+    }
+    window.position(from);
+    window.get(line, 0, lineLength);
+  }
+
+  @Override
+  public byte[] getBytes() {
+    return line;
+  }
+
+  @Override
+  public int getStart() {
+    return 0;
+  }
+
+  @Override
+  public int getEnd() {
+    return lineLength;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    if (ownsChannel) {
+      channel.close();
+    }
+  }
+}
@@ -1,26 +1,19 @@
 package org.molgenis.app.gavin.input;
 
-import static java.lang.String.format;
-import static org.apache.commons.lang3.StringUtils.isEmpty;
-import static org.molgenis.app.gavin.input.Files.getLines;
-import static org.molgenis.app.gavin.input.model.LineType.COMMENT;
-import static org.molgenis.app.gavin.input.model.LineType.ERROR;
-import static org.molgenis.app.gavin.input.model.LineType.SKIPPED;
-import static org.molgenis.app.gavin.input.model.LineType.VCF;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import com.google.common.collect.EnumMultiset;
 import com.google.common.collect.Multiset;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import org.molgenis.app.gavin.input.model.DiscardReason;
 import org.molgenis.app.gavin.input.model.LineType;
-import org.molgenis.app.gavin.input.model.Variant;
 import org.molgenis.app.gavin.input.model.VcfVariant;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
@@ -30,188 +23,102 @@ import org.springframework.stereotype.Component;
 public class Parser {
   private static final Logger LOG = getLogger(Parser.class);
 
-  private static final int CHROM_INDEX = 0;
-  private static final int POS_INDEX = 1;
-  private static final int VCF_ID_INDEX = 2;
-  private static final int VCF_REF_INDEX = 3;
-  private static final int VCF_ALT_INDEX = 4;
-  private static final int VCF_NR_OF_COLUMNS = 5;
-  private static final int MAX_LINES = 100000;
+  /** The maximum number of valid lines of a run, further lines are skipped. */
+  public static final int MAX_LINES = 100000;
 
-  private static final Pattern CHROM_PATTERN =
-      Pattern.compile("([Cc][Hh][Rr])?(?<chrom>([1-9])|(1[0-9])|(2[0-2])|[xX]|[yY])");
-  private static final Pattern REF_PATTERN = Pattern.compile("[ACTG]+");
-  private static final Pattern ALT_PATTERN = Pattern.compile("[ACTG]+|\\.");
+  private final ChunkedTransformer chunkedTransformer = new ChunkedTransformer();
+  private final VcfSorter vcfSorter = new VcfSorter();
 
   /**
-   * Transforms gavin input file.
+   * Transforms gavin input while it is read, skipping the lines after a maximum number of valid
+   * lines. Only the transformed lines and the discarded lines summary are written, the input
+   * itself is not stored.
    *
-   * @param inputFile the file to transform
+   * @param input the possibly compressed input to transform, it is closed once it is read
    * @param output the file to output parsed variants to
-   * @param error the file to output error lines to
-   * @return Multiset counting the {@link LineType}s of the input file's lines
-   * @throws IOException if the file interaction fails
+   * @param error the file to output the discarded lines summary to, see {@link DiscardedLineSink}
+   * @param maxLines the maximum number of valid lines to transform
+   * @return Multiset counting the {@link LineType}s of the input's lines
+   * @throws IOException if reading the input or writing the files fails
    */
-  public Multiset<LineType> tryTransform(File inputFile, File output, File error)
+  public Multiset<LineType> tryTransform(InputStream input, File output, File error, int maxLines)
       throws IOException {
-    LOG.debug("Parsing {}...", inputFile.getAbsolutePath());
-    try (Stream<String> lines = getLines(inputFile.toPath(), StandardCharsets.UTF_8);
+    LOG.debug("Parsing input to {}...", output.getAbsolutePath());
+    try (InputStream uncompressedInput = Files.newInputStream(input);
         LineSink outputSink = new LineSink(output);
-        LineSink errorSink = new LineSink(error)) {
-      Multiset<LineType> lineTypes = transformLines(lines, outputSink, errorSink);
-      LOG.info("Parsed {}. LineTypes: {}", inputFile.getAbsolutePath(), lineTypes);
+        DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(error))) {
+      writeVcfHeader(outputSink);
+      Multiset<LineType> lineTypes =
+          chunkedTransformer.transformLines(
+              uncompressedInput, maxLines, outputSink, discardedSink);
+      LOG.info("Parsed input to {}. LineTypes: {}", output.getAbsolutePath(), lineTypes);
       return lineTypes;
     }
   }
 
   /**
-   * Transforms a stream of lines and sends them to the error sink
+   * Parses a single line the way the lines of an input file are parsed. Multi-allelic lines are
+   * returned as one normalized variant per alternative allele, without duplicates.
    *
-   * @param lines the Stream of lines to transform
-   * @param outputSink {@link LineSink} to write transformed lines to
-   * @param errorSink {@link LineSink} to write unparseable lines to
-   * @return Multiset counting the {@link LineType}s found in the stream
+   * @param line the line to parse, only its first five columns are used
+   * @param discardReasonConsumer receives the reason if the line cannot be parsed
+   * @return the normalized variants of the line, empty if the line cannot be parsed
    */
-  Multiset<LineType> transformLines(Stream<String> lines, LineSink outputSink, LineSink errorSink) {
-    Multiset<LineType> lineTypes = EnumMultiset.create(LineType.class);
-    writeVcfHeader(outputSink);
-    lines
-        .map(
-            line ->
-                transformLine(
-                    line, lineTypes.size(), countValidLines(lineTypes), outputSink, errorSink))
-        .forEach(lineTypes::add);
-    return lineTypes;
-  }
-
-  private int countValidLines(Multiset<LineType> lineTypes) {
-    return lineTypes.count(VCF);
-  }
-
-  private void writeVcfHeader(LineSink outputSink) {
-    outputSink.accept("##fileformat=VCFv4.0");
-    outputSink.accept("##INFO=<ID=CADD,Number=.,Type=String,Description=\"Raw CADD score\">");
-    outputSink.accept(
-        "##INFO=<ID=CADD_SCALED,Number=.,Type=String,Description=\"Scaled CADD score\">");
-    outputSink.accept("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
-  }
-
-  /**
-   * Transforms a single line.
-   *
-   * @param line the line to parse
-   * @param numValidLines the number of valid lines already parsed
-   * @param outputSink {@link LineSink} to write parsed variants to
-   * @param errorSink {@link LineSink} to write lines to that we cannot parse
-   * @return LineType of the parsed line
-   */
-  LineType transformLine(
-      String line, int numLines, int numValidLines, LineSink outputSink, LineSink errorSink) {
-    if (numValidLines >= MAX_LINES) {
-      return SKIPPED;
+  public List<VcfVariant> parseVariants(
+      String line, Consumer<DiscardReason> discardReasonConsumer) {
+    byte[] bytes = line.getBytes(UTF_8);
+    ByteLineParser lineParser = new ByteLineParser();
+    if (!lineParser.parse(bytes, 0, bytes.length)) {
+      discardReasonConsumer.accept(lineParser.getDiscardReason());
+      return emptyList();
     }
-    if (isComment(line)) {
-      return COMMENT;
+    VariantSet parsedVariants = new VariantSet();
+    List<VcfVariant> variants = new ArrayList<>(lineParser.getNumAlleles());
+    for (int allele = 0; allele < lineParser.getNumAlleles(); allele++) {
+      lineParser.writeVcfLine(allele);
+      long fingerprint = lineParser.fingerprint(allele);
+      if (parsedVariants.add(fingerprint, lineParser.getBuffer(), 0, lineParser.getLength())) {
+        variants.add(lineParser.toVariant(allele));
+      }
     }
-    Variant variant = tryParseVariant(line);
-    if (variant == null) {
-      errorSink.accept(format("Line %d:\t%s", numLines + 1, line));
-      return ERROR;
-    }
-    outputSink.accept(variant.toString());
-    return variant.getLineType();
-  }
-
-  /**
-   * Determines if a line is a comment line. Comment lines start with "#".
-   *
-   * @param line the line that may be a comment line
-   * @return true if the line is a comment line
-   */
-  private boolean isComment(String line) {
-    return line != null && line.startsWith("#");
+    return variants;
   }
 
   /**
-   * Parses a line into a {@link Variant}. It may be one of two formats, CADD output or five VCF
-   * columns.
+   * Writes variants to a file in the format of a transformed file, so that it can be used as the
+   * filtered input of a run.
    *
-   * @param line the line to parse
-   * @return parsed Variant, or null if the line could not be parsed
+   * @param variants the normalized variants to write
+   * @param output the file to write to
+   * @throws IOException if writing the file fails
    */
-  Variant tryParseVariant(String line) {
-    try {
-      return parseVariant(line);
-    } catch (Exception ex) {
-      LOG.debug("Error parsing line {}", line, ex);
-      return null;
+  public void writeVcf(Collection<VcfVariant> variants, File output) throws IOException {
+    try (LineSink outputSink = new LineSink(output)) {
+      writeVcfHeader(outputSink);
+      variants.forEach(variant -> outputSink.accept(variant.toString()));
     }
   }
 
-  private Variant parseVariant(String line) {
-    String[] columns = line.split("\t");
-    return parseVcfLine(columns);
-  }
-
   /**
-   * Determines if any of the values are null
+   * Sorts a transformed file by chromosome and position, so that it can be read in genomic order.
+   * Optional stage after {@link #tryTransform(InputStream, File, File, int)}.
    *
-   * @param values the values that may be null
-   * @return true if any of the values was null
-   */
-  private boolean anyNull(Object... values) {
-    return Arrays.stream(values).anyMatch(Objects::isNull);
-  }
-
-  /**
-   * Attempts to parse a line as a VCF record.
-   *
-   * @param columns the columns of the line
-   * @return parsed {@link VcfVariant}
+   * @param output the file with parsed variants to sort in place
+   * @return the number of records of the file, multi-allelic variants count once per allele
+   * @throws IOException if the file interaction fails
    */
-  private VcfVariant parseVcfLine(String[] columns) {
-    if (columns.length < VCF_NR_OF_COLUMNS) {
-      return null;
-    }
-    String chrom = parseChrom(columns[CHROM_INDEX].trim());
-    Long pos = parsePos(columns[POS_INDEX].trim());
-    String id = columns[VCF_ID_INDEX].trim();
-    if (isEmpty(id)) {
-      id = ".";
-    }
-    String ref = parseRef(columns[VCF_REF_INDEX].trim());
-    String alt = parseAlt(columns[VCF_ALT_INDEX].trim());
-
-    if (anyNull(chrom, pos, ref, alt)) {
-      return null;
-    }
-    return VcfVariant.create(chrom, pos, id, ref, alt);
-  }
-
-  String parseChrom(String chrom) {
-    Matcher m = CHROM_PATTERN.matcher(chrom);
-    return !m.matches() ? null : m.group("chrom").toUpperCase();
-  }
-
-  private Long parsePos(String pos) {
-    try {
-      return Long.parseLong(pos);
-    } catch (NumberFormatException ex) {
-      return null;
-    }
-  }
-
-  private String parseRef(String value) {
-    if (!REF_PATTERN.matcher(value).matches()) {
-      return null;
-    }
-    return value;
+  public int sort(File output) throws IOException {
+    LOG.debug("Sorting {}...", output.getAbsolutePath());
+    int numRecords = vcfSorter.sort(output.toPath());
+    LOG.debug("Sorted {} records of {}.", numRecords, output.getAbsolutePath());
+    return numRecords;
   }
 
-  private String parseAlt(String value) {
-    if (!ALT_PATTERN.matcher(value).matches()) {
-      return null;
-    }
-    return value;
+  private void writeVcfHeader(LineSink outputSink) {
+    outputSink.accept("##fileformat=VCFv4.0");
+    outputSink.accept("##INFO=<ID=CADD,Number=.,Type=String,Description=\"Raw CADD score\">");
+    outputSink.accept(
+        "##INFO=<ID=CADD_SCALED,Number=.,Type=String,Description=\"Scaled CADD score\">");
+    outputSink.accept("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
   }
 }
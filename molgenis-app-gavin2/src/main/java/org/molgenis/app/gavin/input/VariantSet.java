@@ -0,0 +1,126 @@
+package org.molgenis.app.gavin.input;
+
+import java.util.Arrays;
+
+/**
+ * Set of normalized variants, added as the records that {@link ByteLineParser#writeVcfLine(int)}
+ * writes, so that adding a variant does not create objects. Two records are the same variant if
+ * all columns except the ID are equal.
+ *
+ * <p>The 64 bit fingerprint of a variant locates it in a table with open addressing and linear
+ * probing. Fingerprints can collide, so a variant with a known fingerprint is compared byte by
+ * byte with the stored record, which is kept without its ID.
+ */
+class VariantSet {
+  private static final byte TAB = '\t';
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private long[] fingerprints = new long[INITIAL_CAPACITY];
+  /** The index of the stored record in each slot plus one, zero for an empty slot */
+  private int[] slots = new int[INITIAL_CAPACITY];
+  private byte[] records = new byte[64 * 1024];
+  private int recordsLength;
+  private int[] recordEnds = new int[1024];
+  private int size;
+
+  /**
+   * Adds a variant to the set.
+   *
+   * @param fingerprint the fingerprint of the variant, see {@link
+   *     ByteLineParser#fingerprint(int)}
+   * @return true if the variant was not yet in the set
+   */
+  boolean add(long fingerprint, byte[] record, int from, int to) {
+    int idStart = indexOfTab(record, indexOfTab(record, from, to) + 1, to) + 1;
+    int idEnd = indexOfTab(record, idStart, to);
+    if (2 * (size + 1) > slots.length) {
+      resize();
+    }
+    int mask = slots.length - 1;
+    for (int index = mix(fingerprint) & mask; ; index = (index + 1) & mask) {
+      int slot = slots[index];
+      if (slot == 0) {
+        fingerprints[index] = fingerprint;
+        slots[index] = store(record, from, idStart, idEnd, to) + 1;
+        size++;
+        return true;
+      } else if (fingerprints[index] == fingerprint
+          && isStored(slot - 1, record, from, idStart, idEnd, to)) {
+        return false;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Stores a record without its ID column. */
+  private int store(byte[] record, int from, int idStart, int idEnd, int to) {
+    int recordLength = (idStart - from) + (to - idEnd);
+    if (recordsLength + recordLength > records.length) {
+      records = Arrays.copyOf(records, Math.max(records.length * 2, recordsLength + recordLength));
+    }
+    System.arraycopy(record, from, records, recordsLength, idStart - from);
+    System.arraycopy(record, idEnd, records, recordsLength + idStart - from, to - idEnd);
+    recordsLength += recordLength;
+
+    if (size == recordEnds.length) {
+      recordEnds = Arrays.copyOf(recordEnds, size * 2);
+    }
+    recordEnds[size] = recordsLength;
+    return size;
+  }
+
+  private boolean isStored(int index, byte[] record, int from, int idStart, int idEnd, int to) {
+    int start = index == 0 ? 0 : recordEnds[index - 1];
+    int prefixLength = idStart - from;
+    if (recordEnds[index] - start != prefixLength + to - idEnd) {
+      return false;
+    }
+    for (int i = 0; i < prefixLength; i++) {
+      if (records[start + i] != record[from + i]) {
+        return false;
+      }
+    }
+    for (int i = idEnd; i < to; i++) {
+      if (records[start + prefixLength + i - idEnd] != record[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void resize() {
+    long[] newFingerprints = new long[fingerprints.length * 2];
+    int[] newSlots = new int[slots.length * 2];
+    int mask = newSlots.length - 1;
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] != 0) {
+        int index = mix(fingerprints[i]) & mask;
+        while (newSlots[index] != 0) {
+          index = (index + 1) & mask;
+        }
+        newFingerprints[index] = fingerprints[i];
+        newSlots[index] = slots[i];
+      }
+    }
+    fingerprints = newFingerprints;
+    slots = newSlots;
+  }
+
+  private static int indexOfTab(byte[] bytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == TAB) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  /** Spreads the bits of a fingerprint over the lower bits used as table index. */
+  private static int mix(long fingerprint) {
+    long hash = fingerprint * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
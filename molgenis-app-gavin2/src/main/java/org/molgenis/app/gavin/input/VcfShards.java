@@ -0,0 +1,95 @@
+package org.molgenis.app.gavin.input;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/** Splits transformed input into shards and concatenates the output of the shards. */
+@Component
+public class VcfShards {
+  private static final Logger LOG = getLogger(VcfShards.class);
+
+  /**
+   * Splits a VCF file into shards of at most a number of records. Every shard starts with the
+   * header lines of the file, which must precede its records.
+   *
+   * @param file the VCF file to split
+   * @param recordsPerShard the maximum number of records of a shard
+   * @param shardFiles supplies the file to write a shard to, by shard index
+   * @return the number of records of each shard, by shard index
+   * @throws IOException if the file interaction fails
+   */
+  public List<Integer> split(File file, int recordsPerShard, IntFunction<File> shardFiles)
+      throws IOException {
+    LOG.debug("Splitting {}...", file.getAbsolutePath());
+    List<byte[]> headerLines = new ArrayList<>();
+    List<Integer> numRecordsPerShard = new ArrayList<>();
+    int numShardRecords = 0;
+    LineSink shardSink = null;
+    try (LineSource lines = MappedLineSource.open(file.toPath())) {
+      while (lines.next()) {
+        byte[] bytes = lines.getBytes();
+        int from = lines.getStart();
+        int to = lines.getEnd();
+        if (ByteLineParser.isComment(bytes, from, to)) {
+          headerLines.add(Arrays.copyOfRange(bytes, from, to));
+          continue;
+        }
+        if (shardSink == null || numShardRecords == recordsPerShard) {
+          if (shardSink != null) {
+            shardSink.close();
+            numRecordsPerShard.add(numShardRecords);
+          }
+          shardSink = new LineSink(shardFiles.apply(numRecordsPerShard.size()));
+          for (byte[] headerLine : headerLines) {
+            shardSink.accept(headerLine, 0, headerLine.length);
+          }
+          numShardRecords = 0;
+        }
+        shardSink.accept(bytes, from, to - from);
+        numShardRecords++;
+      }
+    } finally {
+      if (shardSink != null) {
+        shardSink.close();
+      }
+    }
+    if (shardSink != null) {
+      numRecordsPerShard.add(numShardRecords);
+    }
+    LOG.debug("Split {} into {} shards.", file.getAbsolutePath(), numRecordsPerShard.size());
+    return numRecordsPerShard;
+  }
+
+  /**
+   * Concatenates VCF files in order. Only the header lines of the first file are written.
+   *
+   * @param files the files to concatenate
+   * @param target the file to write to
+   * @throws IOException if the file interaction fails
+   */
+  public void concatenate(List<File> files, File target) throws IOException {
+    LOG.debug("Concatenating {} files to {}...", files.size(), target.getAbsolutePath());
+    try (LineSink targetSink = new LineSink(target)) {
+      for (int i = 0; i < files.size(); i++) {
+        try (LineSource lines = MappedLineSource.open(files.get(i).toPath())) {
+          while (lines.next()) {
+            byte[] bytes = lines.getBytes();
+            int from = lines.getStart();
+            int to = lines.getEnd();
+            if (i == 0 || !ByteLineParser.isComment(bytes, from, to)) {
+              targetSink.accept(bytes, from, to - from);
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.file.Files.createTempFile;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts VCF files by chromosome, in {@link ContigDictionary} order, and position using an external
+ * merge sort. Records are collected in runs of bounded size, each run is sorted and spilled to a
+ * temporary file and the runs are merged, so the heap used does not depend on the size of the file.
+ *
+ * <p>Comment lines are written before the records. Records with the same chromosome and position
+ * keep their original order. Chromosomes that are not in the dictionary are sorted last.
+ */
+class VcfSorter {
+  private static final int DEFAULT_RUN_SIZE = 4 * 1024 * 1024;
+  private static final Comparator<RunReader> RUN_READER_COMPARATOR =
+      Comparator.<RunReader>comparingInt(reader -> reader.contig)
+          .thenComparingLong(reader -> reader.position)
+          .thenComparingInt(reader -> reader.run);
+
+  private final int runSize;
+
+  VcfSorter() {
+    this(DEFAULT_RUN_SIZE);
+  }
+
+  /** @param runSize the number of record bytes to sort in memory before spilling them */
+  VcfSorter(int runSize) {
+    this.runSize = runSize;
+  }
+
+  /**
+   * Sorts an uncompressed VCF file in place.
+   *
+   * @param path the file to sort
+   * @return the number of records of the file
+   * @throws IOException if reading or writing the file or the temporary files fails
+   */
+  int sort(Path path) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    List<Path> runFiles = new ArrayList<>();
+    Path sortedFile = createTempFile(directory, "sorted", ".vcf");
+    int numRecords = 0;
+    try {
+      try (LineSource lines = MappedLineSource.open(path);
+          LineSink outputSink = new LineSink(sortedFile.toFile())) {
+        Run run = new Run(runSize);
+        while (lines.next()) {
+          byte[] bytes = lines.getBytes();
+          int from = lines.getStart();
+          int to = lines.getEnd();
+          if (ByteLineParser.isComment(bytes, from, to)) {
+            outputSink.accept(bytes, from, to - from);
+          } else if (to > from) {
+            if (!run.add(bytes, from, to)) {
+              runFiles.add(run.spill(directory));
+              run.add(bytes, from, to);
+            }
+            numRecords++;
+          }
+        }
+
+        if (runFiles.isEmpty()) {
+          run.writeTo(outputSink);
+        } else {
+          if (run.count > 0) {
+            runFiles.add(run.spill(directory));
+          }
+          merge(runFiles, outputSink);
+        }
+      }
+      move(sortedFile, path, REPLACE_EXISTING);
+    } finally {
+      for (Path runFile : runFiles) {
+        deleteIfExists(runFile);
+      }
+      deleteIfExists(sortedFile);
+    }
+    return numRecords;
+  }
+
+  private static void merge(List<Path> runFiles, LineSink outputSink) throws IOException {
+    PriorityQueue<RunReader> readers = new PriorityQueue<>(RUN_READER_COMPARATOR);
+    try {
+      for (int run = 0; run < runFiles.size(); run++) {
+        RunReader reader = new RunReader(MappedLineSource.open(runFiles.get(run)), run);
+        if (reader.next()) {
+          readers.add(reader);
+        } else {
+          reader.lines.close();
+        }
+      }
+      while (!readers.isEmpty()) {
+        RunReader reader = readers.poll();
+        LineSource lines = reader.lines;
+        outputSink.accept(lines.getBytes(), lines.getStart(), lines.getEnd() - lines.getStart());
+        if (reader.next()) {
+          readers.add(reader);
+        } else {
+          lines.close();
+        }
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.lines.close();
+      }
+    }
+  }
+
+  /** @return the contig index of a record, or the dictionary size if the contig is unknown */
+  static int contig(byte[] bytes, int from, int to) {
+    int contig = ContigDictionary.indexOf(bytes, from, indexOfTab(bytes, from, to));
+    return contig == -1 ? ContigDictionary.size() : contig;
+  }
+
+  /** @return the position of a record, parsing the digits of its second column */
+  static long position(byte[] bytes, int from, int to) {
+    int index = indexOfTab(bytes, from, to) + 1;
+    boolean negative = index < to && bytes[index] == '-';
+    if (negative) {
+      index++;
+    }
+    long position = 0;
+    for (; index < to && bytes[index] >= '0' && bytes[index] <= '9'; index++) {
+      position = position * 10 - (bytes[index] - '0');
+    }
+    return negative ? position : -position;
+  }
+
+  private static int indexOfTab(byte[] bytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == '\t') {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  /** Records stored back to back in a byte array, with their sort keys in primitive arrays. */
+  private static class Run {
+    private final byte[] bytes;
+    private int length;
+    private int count;
+    private int[] ends = new int[1024];
+    private int[] contigs = new int[1024];
+    private long[] positions = new long[1024];
+    private byte[] oversizedRecord;
+
+    Run(int size) {
+      this.bytes = new byte[size];
+    }
+
+    /** @return false if the run is full, the record is only added to an empty run then */
+    boolean add(byte[] source, int from, int to) {
+      int recordLength = to - from;
+      if (length + recordLength > bytes.length) {
+        if (count > 0) {
+          return false;
+        }
+        oversizedRecord = Arrays.copyOfRange(source, from, to);
+      } else {
+        System.arraycopy(source, from, bytes, length, recordLength);
+      }
+      length += recordLength;
+
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+        contigs = Arrays.copyOf(contigs, count * 2);
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      ends[count] = length;
+      contigs[count] = contig(source, from, to);
+      positions[count] = position(source, from, to);
+      count++;
+      return true;
+    }
+
+    /** Writes the sorted records to a temporary file and clears the run. */
+    Path spill(Path directory) throws IOException {
+      Path runFile = createTempFile(directory, "run", ".vcf");
+      try (LineSink runSink = new LineSink(runFile.toFile())) {
+        writeTo(runSink);
+      } catch (IOException | RuntimeException e) {
+        deleteIfExists(runFile);
+        throw e;
+      }
+      length = 0;
+      count = 0;
+      oversizedRecord = null;
+      return runFile;
+    }
+
+    void writeTo(LineSink sink) {
+      if (oversizedRecord != null) {
+        sink.accept(oversizedRecord, 0, oversizedRecord.length);
+        return;
+      }
+      for (int record : sortedRecords()) {
+        int start = record == 0 ? 0 : ends[record - 1];
+        sink.accept(bytes, start, ends[record] - start);
+      }
+    }
+
+    /** @return the record indices in sort order, using a stable merge sort */
+    private int[] sortedRecords() {
+      int[] records = new int[count];
+      for (int i = 0; i < count; i++) {
+        records[i] = i;
+      }
+      mergeSort(records.clone(), records, 0, count);
+      return records;
+    }
+
+    /** Sorts target[from, to), using source, which starts as a copy of target, as scratch space. */
+    private void mergeSort(int[] source, int[] target, int from, int to) {
+      if (to - from < 2) {
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      mergeSort(target, source, from, middle);
+      mergeSort(target, source, middle, to);
+      int left = from;
+      int right = middle;
+      for (int i = from; i < to; i++) {
+        if (left < middle && (right == to || compare(source[left], source[right]) <= 0)) {
+          target[i] = source[left++];
+        } else {
+          target[i] = source[right++];
+        }
+      }
+    }
+
+    private int compare(int record, int otherRecord) {
+      int result = Integer.compare(contigs[record], contigs[otherRecord]);
+      return result != 0 ? result : Long.compare(positions[record], positions[otherRecord]);
+    }
+  }
+
+  /** Reads a spilled run, keeping the sort key of its current record. */
+  private static class RunReader {
+    private final LineSource lines;
+    private final int run;
+    private int contig;
+    private long position;
+
+    RunReader(LineSource lines, int run) {
+      this.lines = lines;
+      this.run = run;
+    }
+
+    boolean next() throws IOException {
+      if (!lines.next()) {
+        return false;
+      }
+      contig = contig(lines.getBytes(), lines.getStart(), lines.getEnd());
+      position = position(lines.getBytes(), lines.getStart(), lines.getEnd());
+      return true;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package org.molgenis.app.gavin.input.model;
+
+/** The reason why a line of the input could not be parsed. */
+public enum DiscardReason {
+  TOO_FEW_COLUMNS("Too few columns"),
+  BAD_CHROM("Unsupported chromosome"),
+  BAD_POS("Invalid position"),
+  BAD_REF("Invalid reference allele"),
+  BAD_ALT("Invalid alternative allele");
+
+  private final String description;
+
+  DiscardReason(String description) {
+    this.description = description;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+}
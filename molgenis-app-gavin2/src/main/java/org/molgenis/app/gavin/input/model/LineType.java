@@ -5,5 +5,7 @@ public enum LineType {
   COMMENT,
   VCF,
   ERROR,
-  SKIPPED
+  SKIPPED,
+  /** Valid line of which all variants were already found on earlier lines. */
+  DUPLICATE
 }
@@ -3,7 +3,6 @@ package org.molgenis.app.gavin.input.model;
 import static org.molgenis.app.gavin.input.model.LineType.VCF;
 
 import com.google.auto.value.AutoValue;
-import com.google.common.base.Joiner;
 
 @AutoValue
 public abstract class VcfVariant implements Variant {
@@ -24,7 +23,16 @@ public abstract class VcfVariant implements Variant {
 
   @Override
   public String toString() {
-    return Joiner.on('\t').join(getChrom(), getPos(), getId(), getRef(), getAlt(), '.', '.', '.');
+    return getChrom()
+        + '\t'
+        + getPos()
+        + '\t'
+        + getId()
+        + '\t'
+        + getRef()
+        + '\t'
+        + getAlt()
+        + "\t.\t.\t.";
   }
 
   public static VcfVariant create(String chrom, long pos, String id, String ref, String alt) {
@@ -1,14 +1,26 @@
 package org.molgenis.app.gavin.meta;
 
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.CHANGED_AT;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.DISCARDED_INPUT_FILE;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.FILTERED_INPUT_FILE;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.FINISHED_AT;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.ID;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.INPUT_FILE_NAME;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.INPUT_SHA256;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LARGE_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LEASE_EXPIRES_AT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LEASE_TOKEN;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.NUMBER_OF_SHARDS;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.NUMBER_OF_VARIANTS;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.OUTPUT_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.PARENT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.RETRIES;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.SHARD_INDEX;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.STARTED_AT;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.STATUS;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.SUBMITTED_AT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.SUBMITTED_BY;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.TOOL_VERSION;
 
 import java.time.Instant;
 import java.util.Optional;
@@ -16,9 +28,21 @@ import org.molgenis.data.Entity;
 import org.molgenis.data.file.model.FileMeta;
 import org.molgenis.data.meta.model.EntityType;
 import org.molgenis.data.support.StaticEntity;
-import org.molgenis.jobs.model.JobExecution.Status;
 
 public class GavinRun extends StaticEntity {
+  /**
+   * The lifecycle of a run: the uploaded input is parsed, then the run waits for a GAVIN worker to
+   * pick it up and is classified.
+   */
+  public enum Status {
+    PARSING,
+    PENDING,
+    RUNNING,
+    /** All shards of the run succeeded and their output is being concatenated */
+    FINISHING,
+    SUCCESS,
+    FAILED
+  }
 
   public GavinRun(Entity entity) {
     super(entity);
@@ -112,4 +136,103 @@ public class GavinRun extends StaticEntity {
   public void setFinishedAt(Instant dateTime) {
     set(FINISHED_AT, dateTime);
   }
+
+  public Optional<GavinRun> getParent() {
+    return Optional.ofNullable(getEntity(PARENT, GavinRun.class));
+  }
+
+  public void setParent(GavinRun parent) {
+    set(PARENT, parent);
+  }
+
+  public Optional<Integer> getShardIndex() {
+    return Optional.ofNullable(getInt(SHARD_INDEX));
+  }
+
+  public void setShardIndex(int shardIndex) {
+    set(SHARD_INDEX, shardIndex);
+  }
+
+  public Optional<Integer> getNumberOfShards() {
+    return Optional.ofNullable(getInt(NUMBER_OF_SHARDS));
+  }
+
+  public void setNumberOfShards(int numberOfShards) {
+    set(NUMBER_OF_SHARDS, numberOfShards);
+  }
+
+  public Optional<Instant> getLeaseExpiresAt() {
+    return Optional.ofNullable(getInstant(LEASE_EXPIRES_AT));
+  }
+
+  public void setLeaseExpiresAt(Instant dateTime) {
+    set(LEASE_EXPIRES_AT, dateTime);
+  }
+
+  public Optional<String> getLeaseToken() {
+    return Optional.ofNullable(getString(LEASE_TOKEN));
+  }
+
+  public void setLeaseToken(String leaseToken) {
+    set(LEASE_TOKEN, leaseToken);
+  }
+
+  public int getRetries() {
+    Integer retries = getInt(RETRIES);
+    return retries != null ? retries : 0;
+  }
+
+  public void setRetries(int retries) {
+    set(RETRIES, retries);
+  }
+
+  public int getNumberOfVariants() {
+    Integer numberOfVariants = getInt(NUMBER_OF_VARIANTS);
+    return numberOfVariants != null ? numberOfVariants : 0;
+  }
+
+  public void setNumberOfVariants(int numberOfVariants) {
+    set(NUMBER_OF_VARIANTS, numberOfVariants);
+  }
+
+  public Optional<String> getSubmittedBy() {
+    return Optional.ofNullable(getString(SUBMITTED_BY));
+  }
+
+  public void setSubmittedBy(String submittedBy) {
+    set(SUBMITTED_BY, submittedBy);
+  }
+
+  public Optional<Instant> getChangedAt() {
+    return Optional.ofNullable(getInstant(CHANGED_AT));
+  }
+
+  public void setChangedAt(Instant dateTime) {
+    set(CHANGED_AT, dateTime);
+  }
+
+  public Optional<String> getInputSha256() {
+    return Optional.ofNullable(getString(INPUT_SHA256));
+  }
+
+  public void setInputSha256(String inputSha256) {
+    set(INPUT_SHA256, inputSha256);
+  }
+
+  public boolean isLargeFile() {
+    Boolean largeFile = getBoolean(LARGE_FILE);
+    return largeFile != null && largeFile;
+  }
+
+  public void setLargeFile(boolean largeFile) {
+    set(LARGE_FILE, largeFile);
+  }
+
+  public Optional<String> getToolVersion() {
+    return Optional.ofNullable(getString(TOOL_VERSION));
+  }
+
+  public void setToolVersion(String toolVersion) {
+    set(TOOL_VERSION, toolVersion);
+  }
 }
@@ -1,17 +1,20 @@
 package org.molgenis.app.gavin.meta;
 
 import static java.util.Objects.requireNonNull;
+import static org.molgenis.data.meta.AttributeType.BOOL;
 import static org.molgenis.data.meta.AttributeType.DATE_TIME;
 import static org.molgenis.data.meta.AttributeType.ENUM;
 import static org.molgenis.data.meta.AttributeType.FILE;
+import static org.molgenis.data.meta.AttributeType.INT;
+import static org.molgenis.data.meta.AttributeType.XREF;
 import static org.molgenis.data.meta.model.EntityType.AttributeRole.ROLE_ID;
 import static org.molgenis.data.meta.model.Package.PACKAGE_SEPARATOR;
 import static org.molgenis.jobs.model.JobExecutionMetaData.PENDING;
 
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.data.file.model.FileMetaMetaData;
 import org.molgenis.data.meta.AttributeType;
 import org.molgenis.data.meta.SystemEntityType;
-import org.molgenis.jobs.model.JobExecution.Status;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -23,14 +26,26 @@ public class GavinRunMetadata extends SystemEntityType {
 
   public static final String ID = "id";
   static final String INPUT_FILE_NAME = "inputFileName";
-  static final String FILTERED_INPUT_FILE = "filteredInputFile";
-  static final String DISCARDED_INPUT_FILE = "discardedInputFile";
-  static final String OUTPUT_FILE = "outputFile";
+  public static final String FILTERED_INPUT_FILE = "filteredInputFile";
+  public static final String DISCARDED_INPUT_FILE = "discardedInputFile";
+  public static final String OUTPUT_FILE = "outputFile";
   static final String LOG = "log";
-  static final String STATUS = "status";
-  static final String SUBMITTED_AT = "submittedAt";
+  public static final String STATUS = "status";
+  public static final String SUBMITTED_AT = "submittedAt";
   static final String STARTED_AT = "startedAt";
-  static final String FINISHED_AT = "finishedAt";
+  public static final String FINISHED_AT = "finishedAt";
+  public static final String PARENT = "parent";
+  public static final String SHARD_INDEX = "shardIndex";
+  static final String NUMBER_OF_SHARDS = "numberOfShards";
+  public static final String LEASE_EXPIRES_AT = "leaseExpiresAt";
+  static final String LEASE_TOKEN = "leaseToken";
+  static final String RETRIES = "retries";
+  static final String NUMBER_OF_VARIANTS = "numberOfVariants";
+  static final String SUBMITTED_BY = "submittedBy";
+  public static final String CHANGED_AT = "changedAt";
+  public static final String INPUT_SHA256 = "inputSha256";
+  public static final String LARGE_FILE = "largeFile";
+  public static final String TOOL_VERSION = "toolVersion";
 
   private final GavinPackage gavinPackage;
   private final FileMetaMetaData fileMetaMetadata;
@@ -61,7 +76,10 @@ public class GavinRunMetadata extends SystemEntityType {
         .setDataType(FILE)
         .setLabel("Output File")
         .setRefEntity(fileMetaMetadata);
-    addAttribute(LOG).setDataType(AttributeType.TEXT).setLabel("Log");
+    addAttribute(LOG)
+        .setDataType(AttributeType.TEXT)
+        .setLabel("Log")
+        .setDescription("The log of runs from before logs were stored in files.");
     addAttribute(SUBMITTED_AT).setDataType(DATE_TIME).setLabel("Submitted at").setNillable(false);
     addAttribute(STARTED_AT).setDataType(DATE_TIME).setLabel("Started at");
     addAttribute(FINISHED_AT).setDataType(DATE_TIME).setLabel("Finished at");
@@ -71,5 +89,53 @@ public class GavinRunMetadata extends SystemEntityType {
         .setLabel("Status")
         .setNillable(false)
         .setDefaultValue(PENDING);
+    addAttribute(PARENT)
+        .setDataType(XREF)
+        .setRefEntity(this)
+        .setLabel("Parent")
+        .setDescription("The run that this run processes a shard of.");
+    addAttribute(SHARD_INDEX).setDataType(INT).setLabel("Shard index");
+    addAttribute(NUMBER_OF_SHARDS).setDataType(INT).setLabel("Number of shards");
+    addAttribute(LEASE_EXPIRES_AT)
+        .setDataType(DATE_TIME)
+        .setLabel("Lease expires at")
+        .setDescription("The run is requeued if its worker sends no heartbeat before this time.");
+    addAttribute(LEASE_TOKEN)
+        .setLabel("Lease token")
+        .setDescription(
+            "Identifies the claim of the worker that processes the run, calls for the run with"
+                + " another token are rejected.")
+        .setVisible(false);
+    addAttribute(RETRIES)
+        .setDataType(INT)
+        .setLabel("Retries")
+        .setDescription("The number of times the run was requeued because its lease expired.");
+    addAttribute(NUMBER_OF_VARIANTS)
+        .setDataType(INT)
+        .setLabel("Number of variants")
+        .setDescription(
+            "The number of variants in the filtered input, which excludes the variants of which the"
+                + " classification was cached.");
+    addAttribute(SUBMITTED_BY)
+        .setLabel("Submitted by")
+        .setDescription(
+            "The client that uploaded the input: \"user:\" followed by the user name for a signed"
+                + " in user, otherwise the address of the client.");
+    addAttribute(CHANGED_AT)
+        .setDataType(DATE_TIME)
+        .setLabel("Changed at")
+        .setDescription("The last time the status of the run changed.");
+    addAttribute(INPUT_SHA256)
+        .setLabel("Input SHA-256")
+        .setDescription("The hex encoded SHA-256 checksum of the uploaded input.");
+    addAttribute(LARGE_FILE)
+        .setDataType(BOOL)
+        .setLabel("Large file")
+        .setDescription("Whether the input was uploaded in large file mode.");
+    addAttribute(TOOL_VERSION)
+        .setLabel("Tool version")
+        .setDescription(
+            "The version of the classification tool that was configured when the input was"
+                + " uploaded.");
   }
 }
@@ -0,0 +1,84 @@
+package org.molgenis.app.gavin;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.time.Duration;
+import java.util.Optional;
+import org.mockito.Mock;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.test.AbstractMockitoTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ClaimDispatcherTest extends AbstractMockitoTest {
+  @Mock private GavinService gavinService;
+  private ClaimDispatcher claimDispatcher;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    claimDispatcher = new ClaimDispatcher(gavinService);
+  }
+
+  @Test
+  public void testClaimPendingRun() {
+    GavinRun gavinRun = mockGavinRun("id");
+    when(gavinService.claim()).thenReturn(Optional.of(gavinRun));
+
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim =
+        claimDispatcher.claim(Duration.ofSeconds(10));
+
+    ResponseEntity<?> response = (ResponseEntity<?>) claim.getResult();
+    assertEquals(response.getStatusCode(), HttpStatus.OK);
+    assertEquals(((GavinRunClaim) response.getBody()).getId(), "id");
+    assertEquals(((GavinRunClaim) response.getBody()).getLeaseToken(), "token");
+  }
+
+  @Test
+  public void testClaimWaitsForPendingRun() {
+    when(gavinService.claim()).thenReturn(Optional.empty());
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim =
+        claimDispatcher.claim(Duration.ofSeconds(10));
+    assertFalse(claim.hasResult());
+
+    GavinRun gavinRun = mockGavinRun("id");
+    when(gavinService.claim()).thenReturn(Optional.of(gavinRun));
+    claimDispatcher.onRunPending(new RunPendingEvent("id"));
+
+    ResponseEntity<?> response = (ResponseEntity<?>) claim.getResult();
+    assertEquals(
+        ((GavinRunClaim) response.getBody()).getFilteredInputFileUri(),
+        "/api/gavin/run/id/download/input");
+  }
+
+  @Test
+  public void testClaimWithoutTimeout() {
+    when(gavinService.claim()).thenReturn(Optional.empty());
+
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim = claimDispatcher.claim(Duration.ZERO);
+
+    ResponseEntity<?> response = (ResponseEntity<?>) claim.getResult();
+    assertEquals(response.getStatusCode(), HttpStatus.NO_CONTENT);
+  }
+
+  @Test
+  public void testOnRunPendingNobodyWaiting() {
+    claimDispatcher.onRunPending(new RunPendingEvent("id"));
+
+    verify(gavinService, never()).claim();
+  }
+
+  private static GavinRun mockGavinRun(String id) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn(id);
+    when(gavinRun.getLeaseToken()).thenReturn(Optional.of("token"));
+    return gavinRun;
+  }
+}
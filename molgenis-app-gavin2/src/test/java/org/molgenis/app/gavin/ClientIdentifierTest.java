@@ -0,0 +1,44 @@
+package org.molgenis.app.gavin;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.security.Principal;
+import org.molgenis.test.AbstractMockitoTest;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.testng.annotations.Test;
+
+public class ClientIdentifierTest extends AbstractMockitoTest {
+  @Test
+  public void testIdentifyUser() {
+    Principal principal = mock(Principal.class);
+    when(principal.getName()).thenReturn("admin");
+
+    assertEquals(
+        new ClientIdentifier("").identify(new MockHttpServletRequest(), principal), "user:admin");
+  }
+
+  @Test
+  public void testIdentifyAddress() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("X-Forwarded-For", "10.0.0.1");
+
+    assertEquals(new ClientIdentifier("").identify(request, null), "127.0.0.1");
+  }
+
+  @Test
+  public void testIdentifyForwardedAddress() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("X-Forwarded-For", "10.0.0.1, 10.0.0.2");
+
+    assertEquals(new ClientIdentifier("X-Forwarded-For").identify(request, null), "10.0.0.2");
+  }
+
+  @Test
+  public void testIdentifyForwardedHeaderMissing() {
+    assertEquals(
+        new ClientIdentifier("X-Forwarded-For").identify(new MockHttpServletRequest(), null),
+        "127.0.0.1");
+  }
+}
@@ -0,0 +1,171 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.molgenis.data.file.model.FileMeta;
+import org.molgenis.test.AbstractMockitoTest;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileDownloadTest extends AbstractMockitoTest {
+  private static final String ETAG = "\"fileId-10\"";
+
+  private FileMeta fileMeta;
+  private File file;
+  private MockHttpServletRequest request;
+  private MockHttpServletResponse response;
+
+  @BeforeMethod
+  public void beforeMethod() throws IOException {
+    fileMeta = mock(FileMeta.class);
+    when(fileMeta.getId()).thenReturn("fileId");
+    file = File.createTempFile("download", ".vcf");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "0123456789".getBytes(UTF_8));
+    request = new MockHttpServletRequest();
+    response = new MockHttpServletResponse();
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    when(fileMeta.getFilename()).thenReturn("output.vcf");
+    when(fileMeta.getContentType()).thenReturn("text/plain");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 200);
+    assertEquals(response.getContentType(), "text/plain");
+    assertEquals(response.getHeader("ETag"), ETAG);
+    assertEquals(response.getHeader("Accept-Ranges"), "bytes");
+    assertEquals(response.getHeader("Content-Disposition"), "attachment; filename=\"output.vcf\"");
+    assertEquals(response.getContentLengthLong(), 10);
+    assertEquals(response.getContentAsString(), "0123456789");
+  }
+
+  @Test
+  public void testWriteUnknownContentType() throws IOException {
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getContentType(), "application/octet-stream");
+    assertEquals(response.getHeader("Content-Disposition"), "attachment");
+  }
+
+  @Test
+  public void testGetContentDispositionEncodesFilename() {
+    assertEquals(
+        FileDownload.getContentDisposition("r\u00e9sultat \"1\".vcf"),
+        "attachment; filename=\"r_sultat _1_.vcf\"; filename*=UTF-8''r%C3%A9sultat%20%221%22.vcf");
+  }
+
+  @Test
+  public void testWriteNotModified() throws IOException {
+    request.addHeader("If-None-Match", "\"other\", " + ETAG);
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 304);
+    assertEquals(response.getHeader("ETag"), ETAG);
+    assertEquals(response.getContentAsString(), "");
+  }
+
+  @Test
+  public void testWriteRange() throws IOException {
+    request.addHeader("Range", "bytes=2-5");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 206);
+    assertEquals(response.getHeader("Content-Range"), "bytes 2-5/10");
+    assertEquals(response.getContentLengthLong(), 4);
+    assertEquals(response.getContentAsString(), "2345");
+  }
+
+  @Test
+  public void testWriteOpenRange() throws IOException {
+    request.addHeader("Range", "bytes=7-");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 206);
+    assertEquals(response.getHeader("Content-Range"), "bytes 7-9/10");
+    assertEquals(response.getContentAsString(), "789");
+  }
+
+  @Test
+  public void testWriteSuffixRange() throws IOException {
+    request.addHeader("Range", "bytes=-3");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 206);
+    assertEquals(response.getHeader("Content-Range"), "bytes 7-9/10");
+    assertEquals(response.getContentAsString(), "789");
+  }
+
+  @Test
+  public void testWriteRangeNotSatisfiable() throws IOException {
+    request.addHeader("Range", "bytes=10-");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 416);
+    assertEquals(response.getHeader("Content-Range"), "bytes */10");
+    assertEquals(response.getContentAsString(), "");
+  }
+
+  @Test
+  public void testWriteMultipleRanges() throws IOException {
+    request.addHeader("Range", "bytes=0-1,5-6");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 200);
+    assertEquals(response.getContentAsString(), "0123456789");
+  }
+
+  @Test
+  public void testWriteIfRangeMatches() throws IOException {
+    request.addHeader("Range", "bytes=5-");
+    request.addHeader("If-Range", ETAG);
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 206);
+    assertEquals(response.getContentAsString(), "56789");
+  }
+
+  @Test
+  public void testWriteIfRangeChanged() throws IOException {
+    request.addHeader("Range", "bytes=5-");
+    request.addHeader("If-Range", "\"fileId-5\"");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(response.getStatus(), 200);
+    assertNull(response.getHeader("Content-Range"));
+    assertEquals(response.getContentAsString(), "0123456789");
+  }
+
+  @Test
+  public void testWriteSendfile() throws IOException {
+    request.setAttribute(FileDownload.SENDFILE_SUPPORT, true);
+    request.addHeader("Range", "bytes=2-5");
+
+    FileDownload.write(request, response, fileMeta, file);
+
+    assertEquals(request.getAttribute(FileDownload.SENDFILE_FILENAME), file.getAbsolutePath());
+    assertEquals(request.getAttribute(FileDownload.SENDFILE_START), 2L);
+    assertEquals(request.getAttribute(FileDownload.SENDFILE_END), 6L);
+    assertEquals(response.getContentLengthLong(), 4);
+    assertEquals(response.getContentAsString(), "");
+  }
+}
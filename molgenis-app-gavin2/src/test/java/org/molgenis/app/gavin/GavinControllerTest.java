@@ -1,36 +1,57 @@
 package org.molgenis.app.gavin;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.DISCARDED_INPUT_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.FILTERED_INPUT_FILE;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.GAVIN_RUN;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.OUTPUT_FILE;
 import static org.molgenis.data.file.model.FileMetaMetaData.FILE_META;
 import static org.molgenis.data.importer.ImportRunMetaData.STATUS;
 import static org.testng.Assert.assertEquals;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.stream.Stream;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.mockito.Answers;
 import org.mockito.Mock;
+import org.molgenis.app.gavin.input.model.DiscardReason;
 import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.data.DataService;
+import org.molgenis.data.UnknownEntityException;
 import org.molgenis.data.file.FileStore;
 import org.molgenis.data.file.model.FileMeta;
-import org.molgenis.jobs.model.JobExecution.Status;
 import org.molgenis.test.AbstractMockitoTest;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -42,28 +63,140 @@ public class GavinControllerTest extends AbstractMockitoTest {
 
   @Mock private GavinService gavinService;
   @Mock private FileStore fileStore;
+  @Mock private ClaimDispatcher claimDispatcher;
+  @Mock private OutputUploads outputUploads;
+  @Mock private RunProgress runProgress;
+  @Mock private RunStatusStreams runStatusStreams;
+  @Mock private RunLogs runLogs;
+  @Mock private SyncClassifications syncClassifications;
 
   @Mock(answer = Answers.RETURNS_DEEP_STUBS)
   private DataService dataService;
 
   @BeforeMethod
   public void beforeMethod() {
-    controller = new GavinController(gavinService, fileStore, dataService);
+    controller =
+        new GavinController(
+            gavinService,
+            fileStore,
+            dataService,
+            claimDispatcher,
+            outputUploads,
+            runProgress,
+            runStatusStreams,
+            runLogs,
+            syncClassifications,
+            new ClientIdentifier(""));
   }
 
   @Test
   public void testUpload() throws IOException, ServletException {
-    MultipartFile multipartFile = mock(MultipartFile.class);
     HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
-    when(gavinService.upload(httpServletRequest)).thenReturn("id");
+    Principal principal = mock(Principal.class);
+    when(principal.getName()).thenReturn("user");
+    when(gavinService.upload(httpServletRequest, "user:user", false)).thenReturn("id");
 
-    ResponseEntity response = controller.upload(multipartFile, httpServletRequest);
+    ResponseEntity response = controller.upload(false, httpServletRequest, principal);
 
-    verify(gavinService).upload(httpServletRequest);
-    assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+    verify(gavinService).upload(httpServletRequest, "user:user", false);
+    assertEquals(response.getStatusCode(), HttpStatus.ACCEPTED);
     assertEquals(response.getBody(), "id");
   }
 
+  @Test
+  public void testClassify() throws IOException {
+    List<VariantRequest> variants = singletonList(VariantRequest.create("1", 100, null, "A", "G"));
+    ClassifyResponse classifyResponse =
+        ClassifyResponse.create(
+            singletonList(
+                ClassifiedVariant.create(null, singletonList("1\t100\t.\tA\tG\t.\t.\t."))),
+            null);
+    when(syncClassifications.classify(variants, "127.0.0.1")).thenReturn(classifyResponse);
+
+    ResponseEntity<ClassifyResponse> response =
+        controller.classify(variants, new MockHttpServletRequest(), null);
+
+    assertEquals(response.getStatusCode(), HttpStatus.OK);
+    assertEquals(response.getBody(), classifyResponse);
+  }
+
+  @Test
+  public void testClassifyCreatesRun() throws IOException {
+    List<VariantRequest> variants = singletonList(VariantRequest.create("1", 100, null, "A", "G"));
+    ClassifyResponse classifyResponse =
+        ClassifyResponse.create(singletonList(ClassifiedVariant.create(null, emptyList())), "id");
+    when(syncClassifications.classify(variants, "127.0.0.1")).thenReturn(classifyResponse);
+
+    ResponseEntity<ClassifyResponse> response =
+        controller.classify(variants, new MockHttpServletRequest(), null);
+
+    assertEquals(response.getStatusCode(), HttpStatus.ACCEPTED);
+    assertEquals(response.getHeaders().getLocation(), java.net.URI.create("run/id"));
+    assertEquals(response.getBody(), classifyResponse);
+  }
+
+  @Test
+  public void testClassifyInvalidVariant() throws IOException {
+    List<VariantRequest> variants = singletonList(VariantRequest.create("25", 100, null, "A", "G"));
+    ClassifyResponse classifyResponse =
+        ClassifyResponse.create(
+            singletonList(ClassifiedVariant.create(DiscardReason.BAD_CHROM, emptyList())), null);
+    when(syncClassifications.classify(variants, "127.0.0.1")).thenReturn(classifyResponse);
+
+    ResponseEntity<ClassifyResponse> response =
+        controller.classify(variants, new MockHttpServletRequest(), null);
+
+    assertEquals(response.getStatusCode(), HttpStatus.BAD_REQUEST);
+    assertEquals(response.getBody(), classifyResponse);
+  }
+
+  @Test
+  public void testClassifyTooManyVariants() throws IOException {
+    List<VariantRequest> variants =
+        Collections.nCopies(
+            SyncClassifications.MAX_VARIANTS + 1, VariantRequest.create("1", 100, null, "A", "G"));
+
+    ResponseEntity<ClassifyResponse> response =
+        controller.classify(variants, new MockHttpServletRequest(), null);
+
+    assertEquals(response.getStatusCode(), HttpStatus.BAD_REQUEST);
+    verifyZeroInteractions(syncClassifications);
+  }
+
+  @Test
+  public void testClaim() {
+    DeferredResult<ResponseEntity<GavinRunClaim>> claim = new DeferredResult<>();
+    when(claimDispatcher.claim(Duration.ofSeconds(10))).thenReturn(claim);
+
+    assertEquals(controller.claim(10), claim);
+  }
+
+  @Test
+  public void testClaimTimeoutIsLimited() {
+    controller.claim(3600);
+
+    verify(claimDispatcher).claim(Duration.ofSeconds(60));
+  }
+
+  @Test
+  public void testHeartbeat() {
+    when(gavinService.heartbeat("id", "token")).thenReturn(true);
+
+    assertEquals(controller.heartbeat("id", "token").getStatusCode(), HttpStatus.NO_CONTENT);
+  }
+
+  @Test
+  public void testHeartbeatNotRunning() {
+    assertEquals(controller.heartbeat("id", "token").getStatusCode(), HttpStatus.CONFLICT);
+  }
+
+  @Test
+  public void testRequeueExpiredRuns() {
+    controller.requeueExpiredRuns();
+
+    verify(gavinService).requeueExpiredRuns();
+  }
+
   @Test
   public void testGet() {
     GavinRun gavinRun = mock(GavinRun.class);
@@ -72,17 +205,114 @@ public class GavinControllerTest extends AbstractMockitoTest {
     when(gavinRun.getStatus()).thenReturn(Status.PENDING);
     when(gavinRun.getSubmittedAt()).thenReturn(Instant.now());
     when(gavinService.get("id")).thenReturn(gavinRun);
+    when(runProgress.estimate(eq(gavinRun), eq(emptyList()), any(Instant.class)))
+        .thenReturn(new RunProgress.Estimate(0, null));
 
     controller.get("id");
 
     verify(gavinService).get("id");
   }
 
+  @Test
+  public void testGetProgress() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("id");
+    when(gavinRun.getInputFileName()).thenReturn("file");
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(gavinRun.getSubmittedAt()).thenReturn(Instant.now());
+    when(gavinRun.getNumberOfVariants()).thenReturn(1000);
+    when(gavinService.get("id")).thenReturn(gavinRun);
+    Instant estimatedFinishAt = Instant.now().plusSeconds(60);
+    when(runProgress.estimate(eq(gavinRun), eq(emptyList()), any(Instant.class)))
+        .thenReturn(new RunProgress.Estimate(250, estimatedFinishAt));
+
+    GavinRunResponse response = controller.get("id");
+
+    assertEquals(response.getNumberOfVariants(), 1000);
+    assertEquals(response.getProcessedVariants(), 250L);
+    assertEquals(response.getEstimatedFinishAt(), estimatedFinishAt);
+  }
+
+  @Test
+  public void testGetRuns() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("id");
+    when(gavinRun.getInputFileName()).thenReturn("file");
+    when(gavinRun.getStatus()).thenReturn(Status.SUCCESS);
+    when(gavinRun.getSubmittedAt()).thenReturn(Instant.now());
+    Instant changedSince = Instant.now();
+    when(gavinService.getRuns(asList("id", "unknown"), changedSince))
+        .thenReturn(singletonList(gavinRun));
+    when(gavinService.getShardsByParentId(singletonList(gavinRun))).thenReturn(emptyMap());
+    when(runProgress.estimate(eq(gavinRun), eq(emptyList()), any(Instant.class)))
+        .thenReturn(new RunProgress.Estimate(0, null));
+
+    List<GavinRunResponse> responses =
+        controller.getRuns(asList("id", "unknown"), changedSince).getBody();
+
+    assertEquals(responses.size(), 1);
+    assertEquals(responses.get(0).getId(), "id");
+    assertEquals(responses.get(0).getStatus(), Status.SUCCESS);
+  }
+
+  @Test
+  public void testGetRunsTooManyIds() {
+    List<String> ids = Collections.nCopies(GavinController.MAX_STATUS_IDS + 1, "id");
+
+    assertEquals(controller.getRuns(ids, null).getStatusCode(), HttpStatus.BAD_REQUEST);
+    verifyZeroInteractions(gavinService);
+  }
+
+  @Test
+  public void testProgress() {
+    when(gavinService.holdsLease("id", "token")).thenReturn(true);
+
+    assertEquals(controller.progress("id", "token", 250L).getStatusCode(), HttpStatus.NO_CONTENT);
+
+    verify(runProgress).report("id", 250L);
+    verify(runStatusStreams).onProgress("id");
+  }
+
+  @Test
+  public void testProgressNotRunning() {
+    assertEquals(controller.progress("id", "token", 250L).getStatusCode(), HttpStatus.CONFLICT);
+
+    verifyZeroInteractions(runProgress, runStatusStreams);
+  }
+
+  @Test(expectedExceptions = UnknownEntityException.class)
+  public void testProgressUnknownRun() {
+    when(gavinService.holdsLease("id", "token"))
+        .thenThrow(new UnknownEntityException(GAVIN_RUN, "id"));
+
+    controller.progress("id", "token", 250L);
+  }
+
+  @Test
+  public void testEvents() {
+    SseEmitter emitter = controller.events("id");
+
+    verify(runStatusStreams).subscribe("id", emitter);
+  }
+
   @Test
   public void testStart() {
-    controller.start("id");
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("id");
+    when(gavinRun.getLeaseToken()).thenReturn(Optional.of("token"));
+    when(gavinService.claim("id")).thenReturn(Optional.of(gavinRun));
 
-    verify(gavinService).start("id");
+    GavinRunClaim claim = controller.start("id").getBody();
+
+    assertEquals(claim.getId(), "id");
+    assertEquals(claim.getLeaseToken(), "token");
+  }
+
+  @Test
+  public void testStartNotPending() {
+    when(gavinService.claim("id")).thenReturn(Optional.empty());
+
+    assertEquals(controller.start("id").getStatusCode(), HttpStatus.CONFLICT);
   }
 
   @Test
@@ -90,75 +320,212 @@ public class GavinControllerTest extends AbstractMockitoTest {
     MultipartFile outputFile = mock(MultipartFile.class);
     HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
 
-    controller.finish("id", outputFile, "All went well.", httpServletRequest);
+    controller.finish("id", "token", outputFile, "All went well.", httpServletRequest);
+
+    verify(gavinService).finish("id", "token", "All went well.", httpServletRequest);
+  }
+
+  @Test
+  public void testHandleLeaseException() {
+    assertEquals(
+        controller.handleLeaseException(new LeaseException("id")).getStatusCode(),
+        HttpStatus.CONFLICT);
+  }
+
+  @Test
+  public void testAppendOutput() throws IOException {
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+    ServletInputStream chunk = mock(ServletInputStream.class);
+    when(httpServletRequest.getInputStream()).thenReturn(chunk);
+    when(gavinService.appendOutput("id", "token", 10L, chunk)).thenReturn(20L);
+
+    ResponseEntity<Long> response =
+        controller.appendOutput("id", "token", 10L, httpServletRequest);
+
+    assertEquals(response.getStatusCode(), HttpStatus.OK);
+    assertEquals(response.getBody(), Long.valueOf(20L));
+  }
+
+  @Test
+  public void testAppendOutputWrongOffset() throws IOException {
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+    ServletInputStream chunk = mock(ServletInputStream.class);
+    when(httpServletRequest.getInputStream()).thenReturn(chunk);
+    when(gavinService.appendOutput("id", "token", 30L, chunk))
+        .thenThrow(new OutputUploadException("Chunk starts at offset 30, expected offset 20", 20));
+
+    ResponseEntity<Long> response =
+        controller.appendOutput("id", "token", 30L, httpServletRequest);
+
+    assertEquals(response.getStatusCode(), HttpStatus.CONFLICT);
+    assertEquals(response.getBody(), Long.valueOf(20L));
+  }
+
+  @Test
+  public void testCommitOutput() throws IOException {
+    ResponseEntity<Long> response =
+        controller.commitOutput("id", "token", "output.vcf", "sha256", "All went well.");
+
+    assertEquals(response.getStatusCode(), HttpStatus.NO_CONTENT);
+    verify(gavinService).commitOutput("id", "token", "output.vcf", "sha256", "All went well.");
+  }
+
+  @Test
+  public void testCommitOutputChecksumMismatch() throws IOException {
+    doThrow(new OutputUploadException("Checksum of the output does not match", 0))
+        .when(gavinService)
+        .commitOutput("id", "token", "output.vcf", "sha256", "All went well.");
+
+    ResponseEntity<Long> response =
+        controller.commitOutput("id", "token", "output.vcf", "sha256", "All went well.");
 
-    verify(gavinService).finish("id", "All went well.", httpServletRequest);
+    assertEquals(response.getStatusCode(), HttpStatus.CONFLICT);
+    assertEquals(response.getBody(), Long.valueOf(0L));
   }
 
   @Test
-  public void testDownloadOutputFile() {
+  public void testDownloadOutputFile() throws IOException {
     GavinRun gavinRun = mock(GavinRun.class);
-    FileMeta fileMeta = mock(FileMeta.class);
+    FileMeta fileMeta = mockFileMeta();
     when(gavinRun.getOutputFile()).thenReturn(Optional.of(fileMeta));
-    when(fileMeta.getId()).thenReturn(FILE_ID);
-    when(fileMeta.getFilename()).thenReturn(FILE_NAME);
-    HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
     when(gavinService.get("id")).thenReturn(gavinRun);
-    File file = mock(File.class);
+    File file = createFile("output");
     when(fileStore.getFile(FILE_ID)).thenReturn(file);
+    MockHttpServletResponse response = new MockHttpServletResponse();
 
-    FileSystemResource resource = controller.downloadOutputFile(httpServletResponse, "id");
+    controller.downloadOutputFile(new MockHttpServletRequest(), response, "id");
 
-    verify(gavinService).get("id");
-    verify(fileStore).getFile(FILE_ID);
-    assertEquals(resource.getFile(), file);
+    assertEquals(response.getContentAsString(), "output");
+    assertEquals(response.getHeader("Content-Disposition"), "attachment; filename=\"fileName\"");
   }
 
   @Test
-  public void testDownloadInputFile() {
+  public void testDownloadPartialOutput() throws IOException {
     GavinRun gavinRun = mock(GavinRun.class);
-    FileMeta fileMeta = mock(FileMeta.class);
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(gavinService.get("id")).thenReturn(gavinRun);
+    when(outputUploads.getCompleteLinesOffset("id")).thenReturn(7L);
+    when(outputUploads.getFile("id")).thenReturn(createFile("output\npart"));
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadOutputFile(new MockHttpServletRequest(), response, "id");
+
+    assertEquals(response.getHeader(GavinController.PARTIAL_OUTPUT_HEADER), "true");
+    assertEquals(response.getContentAsString(), "output\n");
+  }
+
+  @Test
+  public void testDownloadPartialOutputNothingReceived() throws IOException {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(gavinService.get("id")).thenReturn(gavinRun);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadOutputFile(new MockHttpServletRequest(), response, "id");
+
+    assertEquals(response.getStatus(), HttpServletResponse.SC_NO_CONTENT);
+    assertEquals(response.getHeader(GavinController.PARTIAL_OUTPUT_HEADER), "true");
+  }
+
+  @Test
+  public void testAppendLog() {
+    controller.appendLog("id", "token", "Processed chromosome 1\n");
+
+    verify(gavinService).appendLog("id", "token", "Processed chromosome 1\n");
+  }
+
+  @Test
+  public void testDownloadLogFromOffset() throws IOException {
+    when(gavinService.get("id")).thenReturn(mock(GavinRun.class));
+    when(runLogs.getLength("id")).thenReturn(12L);
+    when(runLogs.getFile("id")).thenReturn(createFile("first\nsecond"));
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("Range", "bytes=6-");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadLog(request, response, "id");
+
+    assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+    assertEquals(response.getContentAsString(), "second");
+  }
+
+  @Test
+  public void testDownloadLogNothingLogged() throws IOException {
+    when(gavinService.get("id")).thenReturn(mock(GavinRun.class));
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadLog(new MockHttpServletRequest(), response, "id");
+
+    assertEquals(response.getStatus(), HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  @Test
+  public void testDownloadStoredLog() throws IOException {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getLog()).thenReturn(Optional.of("Great success!"));
+    when(gavinService.get("id")).thenReturn(gavinRun);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadLog(new MockHttpServletRequest(), response, "id");
+
+    assertEquals(response.getContentAsString(), "Great success!");
+  }
+
+  @Test
+  public void testDownloadInputFile() throws IOException {
+    GavinRun gavinRun = mock(GavinRun.class);
+    FileMeta fileMeta = mockFileMeta();
     when(gavinRun.getFilteredInputFile()).thenReturn(Optional.of(fileMeta));
-    when(fileMeta.getId()).thenReturn(FILE_ID);
-    when(fileMeta.getFilename()).thenReturn(FILE_NAME);
-    HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
     when(gavinService.get("id")).thenReturn(gavinRun);
-    File file = mock(File.class);
+    File file = createFile("input");
     when(fileStore.getFile(FILE_ID)).thenReturn(file);
+    MockHttpServletResponse response = new MockHttpServletResponse();
 
-    FileSystemResource resource = controller.downloadInputFile(httpServletResponse, "id");
+    controller.downloadInputFile(new MockHttpServletRequest(), response, "id");
 
-    verify(gavinService).get("id");
-    verify(fileStore).getFile(FILE_ID);
-    assertEquals(resource.getFile(), file);
+    assertEquals(response.getContentAsString(), "input");
   }
 
   @Test
-  public void testDownloadErrorFile() {
+  public void testDownloadInputFileRange() throws IOException {
     GavinRun gavinRun = mock(GavinRun.class);
-    FileMeta fileMeta = mock(FileMeta.class);
+    FileMeta fileMeta = mockFileMeta();
+    when(gavinRun.getFilteredInputFile()).thenReturn(Optional.of(fileMeta));
+    when(gavinService.get("id")).thenReturn(gavinRun);
+    File file = createFile("input");
+    when(fileStore.getFile(FILE_ID)).thenReturn(file);
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("Range", "bytes=2-");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.downloadInputFile(request, response, "id");
+
+    assertEquals(response.getStatus(), HttpServletResponse.SC_PARTIAL_CONTENT);
+    assertEquals(response.getContentAsString(), "put");
+  }
+
+  @Test
+  public void testDownloadErrorFile() throws IOException {
+    GavinRun gavinRun = mock(GavinRun.class);
+    FileMeta fileMeta = mockFileMeta();
     when(gavinRun.getDiscardedInputFile()).thenReturn(Optional.of(fileMeta));
-    when(fileMeta.getId()).thenReturn(FILE_ID);
-    when(fileMeta.getFilename()).thenReturn(FILE_NAME);
-    HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
     when(gavinService.get("id")).thenReturn(gavinRun);
-    File file = mock(File.class);
+    File file = createFile("error");
     when(fileStore.getFile(FILE_ID)).thenReturn(file);
+    MockHttpServletResponse response = new MockHttpServletResponse();
 
-    FileSystemResource resource = controller.downloadErrorFile(httpServletResponse, "id");
+    controller.downloadErrorFile(new MockHttpServletRequest(), response, "id");
 
-    verify(gavinService).get("id");
-    verify(fileStore).getFile(FILE_ID);
-    assertEquals(resource.getFile(), file);
+    assertEquals(response.getContentAsString(), "error");
   }
 
   @Test
-  public void testDownloadOutputNotExists() {
+  public void testDownloadOutputNotExists() throws IOException {
     GavinRun gavinRun = mock(GavinRun.class);
     HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
     when(gavinService.get("id")).thenReturn(gavinRun);
 
-    controller.downloadErrorFile(httpServletResponse, "id");
+    controller.downloadErrorFile(mock(HttpServletRequest.class), httpServletResponse, "id");
 
     verify(gavinService).get("id");
     verifyZeroInteractions(fileStore);
@@ -172,6 +539,7 @@ public class GavinControllerTest extends AbstractMockitoTest {
     GavinRun expiredGavinRunWithoutFiles = mock(GavinRun.class);
 
     when(gavinRun.getFinishedAt()).thenReturn(Optional.of(Instant.now()));
+    when(expiredGavinRun.getId()).thenReturn("expired");
     when(expiredGavinRun.getFinishedAt()).thenReturn(Optional.of(Instant.ofEpochSecond(0)));
     when(expiredGavinRunWithoutFiles.getFinishedAt())
         .thenReturn(Optional.of(Instant.ofEpochSecond(0)));
@@ -194,6 +562,7 @@ public class GavinControllerTest extends AbstractMockitoTest {
     verify(dataService).delete(FILE_META, filteredInputFileMeta);
     verify(dataService).delete(FILE_META, discardedInputFileMeta);
     verify(dataService).delete(FILE_META, outputFileMeta);
+    verify(runLogs).delete("expired");
     verify(gavinRun, never()).getFilteredInputFile();
     verify(gavinRun, never()).getDiscardedInputFile();
     verify(gavinRun, never()).getOutputFile();
@@ -201,4 +570,68 @@ public class GavinControllerTest extends AbstractMockitoTest {
     verify(expiredGavinRunWithoutFiles, never()).setDiscardedInputFile(null);
     verify(expiredGavinRunWithoutFiles, never()).setOutputFile(null);
   }
+
+  @Test
+  public void testCleanUpSharedFiles() {
+    GavinRun expiredGavinRun = mock(GavinRun.class);
+    when(expiredGavinRun.getFinishedAt()).thenReturn(Optional.of(Instant.ofEpochSecond(0)));
+    FileMeta filteredInputFileMeta = mock(FileMeta.class);
+    FileMeta outputFileMeta = mock(FileMeta.class);
+    when(expiredGavinRun.getFilteredInputFile()).thenReturn(Optional.of(filteredInputFileMeta));
+    when(expiredGavinRun.getOutputFile()).thenReturn(Optional.of(outputFileMeta));
+
+    when(dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .in(STATUS, asList(Status.FAILED, Status.SUCCESS))
+            .findAll())
+        .thenReturn(Stream.of(expiredGavinRun));
+    when(dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .eq(FILTERED_INPUT_FILE, outputFileMeta)
+            .or()
+            .eq(DISCARDED_INPUT_FILE, outputFileMeta)
+            .or()
+            .eq(OUTPUT_FILE, outputFileMeta)
+            .count())
+        .thenReturn(1L);
+
+    controller.cleanUp();
+
+    verify(expiredGavinRun).setOutputFile(null);
+    verify(dataService).delete(FILE_META, filteredInputFileMeta);
+    verify(dataService, never()).delete(FILE_META, outputFileMeta);
+  }
+
+  @Test
+  public void testCleanUpLog() {
+    GavinRun expiredGavinRun = mock(GavinRun.class);
+    when(expiredGavinRun.getId()).thenReturn("expired");
+    when(expiredGavinRun.getFinishedAt()).thenReturn(Optional.of(Instant.ofEpochSecond(0)));
+    when(runLogs.getLength("expired")).thenReturn(12L);
+
+    when(dataService
+            .query(GAVIN_RUN, GavinRun.class)
+            .in(STATUS, asList(Status.FAILED, Status.SUCCESS))
+            .findAll())
+        .thenReturn(Stream.of(expiredGavinRun));
+
+    controller.cleanUp();
+
+    verify(runLogs).delete("expired");
+    verify(dataService, never()).delete(eq(FILE_META), any(FileMeta.class));
+  }
+
+  private static FileMeta mockFileMeta() {
+    FileMeta fileMeta = mock(FileMeta.class);
+    when(fileMeta.getId()).thenReturn(FILE_ID);
+    when(fileMeta.getFilename()).thenReturn(FILE_NAME);
+    return fileMeta;
+  }
+
+  private static File createFile(String content) throws IOException {
+    File file = File.createTempFile("download", ".txt");
+    file.deleteOnExit();
+    Files.write(file.toPath(), content.getBytes(UTF_8));
+    return file;
+  }
 }
@@ -1,48 +1,90 @@
 package org.molgenis.app.gavin;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Answers.RETURNS_SELF;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.molgenis.app.gavin.input.Parser.MAX_LINES;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.CHANGED_AT;
 import static org.molgenis.app.gavin.meta.GavinRunMetadata.GAVIN_RUN;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.ID;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.INPUT_SHA256;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LARGE_FILE;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.LEASE_EXPIRES_AT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.PARENT;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.STATUS;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.TOOL_VERSION;
 import static org.molgenis.data.file.model.FileMetaMetaData.FILE_META;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import com.google.common.collect.EnumMultiset;
 import com.google.common.collect.Multiset;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.molgenis.app.gavin.input.ClassificationCache;
 import org.molgenis.app.gavin.input.Parser;
+import org.molgenis.app.gavin.input.VcfShards;
 import org.molgenis.app.gavin.input.model.LineType;
 import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
 import org.molgenis.app.gavin.meta.GavinRunFactory;
+import org.molgenis.core.ui.file.FileDownloadController;
 import org.molgenis.data.DataService;
+import org.molgenis.data.Query;
 import org.molgenis.data.UnknownEntityException;
 import org.molgenis.data.file.FileStore;
 import org.molgenis.data.file.model.FileMeta;
 import org.molgenis.data.file.model.FileMetaFactory;
 import org.molgenis.data.populate.IdGenerator;
+import org.molgenis.data.populate.IdGenerator.Strategy;
 import org.molgenis.data.rest.service.ServletUriComponentsBuilderFactory;
-import org.molgenis.jobs.model.JobExecution.Status;
 import org.molgenis.test.AbstractMockitoTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponents;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class GavinServiceImplTest extends AbstractMockitoTest {
+  private static final String EMPTY_SHA256 = Hashing.sha256().hashBytes(new byte[0]).toString();
 
   private GavinService gavinService;
 
@@ -53,6 +95,15 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
   @Mock private DataService dataService;
   @Mock private GavinRunFactory gavinRunFactory;
   @Mock private Parser parser;
+  @Mock private VcfShards vcfShards;
+  @Mock private ParseExecutor parseExecutor;
+  @Mock private PlatformTransactionManager transactionManager;
+  @Mock private ApplicationEventPublisher eventPublisher;
+  @Mock private OutputUploads outputUploads;
+  @Mock private RunProgress runProgress;
+  @Mock private RunLogs runLogs;
+  @Mock private ClassificationCache classificationCache;
+  @Mock private RunLocks runLocks;
 
   @BeforeMethod
   public void beforeMethod() {
@@ -64,50 +115,367 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
             servletUriComponentsBuilderFactory,
             dataService,
             gavinRunFactory,
-            parser);
+            parser,
+            vcfShards,
+            parseExecutor,
+            transactionManager,
+            eventPublisher,
+            outputUploads,
+            runProgress,
+            runLogs,
+            classificationCache,
+            runLocks,
+            new RunScheduler(1));
   }
 
   @Test
   public void testUpload() throws IOException, ServletException {
     mockComponentBuilder();
-    String inputFileId = "inputFileId";
     String filteredInputFileId = "filteredInputFileId";
     String discardedInputFileId = "discardedInputFileId";
-    setupIdGeneratorInOrder(inputFileId, filteredInputFileId, discardedInputFileId, "gavinRunId");
+    setupIdGeneratorInOrder(filteredInputFileId, discardedInputFileId);
 
-    File inputFile = mockFile();
     File filteredInputFile = mockFile();
     File discardedInputFile = mockFile();
     Map<String, File> files = new HashMap<>();
-    files.put(inputFileId, inputFile);
     files.put(filteredInputFileId, filteredInputFile);
     files.put(discardedInputFileId, discardedInputFile);
     setupFileStore(files);
 
-    FileMeta inputFileMeta = mockFileMeta(inputFileId);
     FileMeta filteredInputFileMeta = mockFileMeta(filteredInputFileId);
     FileMeta discardedInputFileMeta = mockFileMeta(discardedInputFileId);
     Map<String, FileMeta> fileMetas = new HashMap<>();
-    fileMetas.put(inputFileId, inputFileMeta);
     fileMetas.put(filteredInputFileId, filteredInputFileMeta);
     fileMetas.put(discardedInputFileId, discardedInputFileMeta);
     setupFileMetaFactory(fileMetas);
 
     HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
-    Part part = mock(Part.class);
-    when(httpServletRequest.getPart("file")).thenReturn(part);
-    GavinRun gavinRun = mock(GavinRun.class);
+    when(httpServletRequest.getContentType()).thenReturn("application/octet-stream");
+    when(httpServletRequest.getParameter("filename")).thenReturn("input.vcf.gz");
+    when(httpServletRequest.getInputStream()).thenReturn(mock(ServletInputStream.class));
+    GavinRun gavinRun = mockGavinRun();
     when(gavinRunFactory.create()).thenReturn(gavinRun);
+    mockParseExecutor();
+    mockNoIdenticalRun();
 
     Multiset<LineType> parsedLineTypes = EnumMultiset.create(LineType.class);
     parsedLineTypes.add(LineType.VCF, 1);
-    when(parser.tryTransform(inputFile, filteredInputFile, discardedInputFile))
+    when(parser.tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES)))
         .thenReturn(parsedLineTypes);
+    when(parser.sort(filteredInputFile)).thenReturn(1);
 
-    gavinService.upload(httpServletRequest);
+    assertEquals(gavinService.upload(httpServletRequest, "127.0.0.1", false), "runId");
 
+    InOrder inOrder = inOrder(parser, transactionManager);
+    inOrder
+        .verify(parser)
+        .tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES));
+    inOrder
+        .verify(transactionManager, atLeastOnce())
+        .getTransaction(any(TransactionDefinition.class));
+    verify(gavinRun).setInputFileName("input.vcf.gz");
+    verify(gavinRun).setInputSha256(EMPTY_SHA256);
+    verify(gavinRun).setLargeFile(false);
     verify(dataService).add(GAVIN_RUN, gavinRun);
-    verify(dataService).delete(FILE_META, inputFileMeta);
+    verify(gavinRun).setSubmittedBy("127.0.0.1");
+    verify(gavinRun).setStatus(Status.PARSING);
+    verify(gavinRun).setNumberOfVariants(1);
+    verify(gavinRun).setStatus(Status.PENDING);
+    verify(eventPublisher).publishEvent(any(RunPendingEvent.class));
+    verify(fileStore, never()).store(any(InputStream.class), anyString());
+    verify(dataService, never()).delete(eq(FILE_META), any(FileMeta.class));
+  }
+
+  @Test
+  public void testUploadAllVariantsCached() throws IOException, ServletException {
+    mockComponentBuilder();
+    String filteredInputFileId = "filteredInputFileId";
+    String discardedInputFileId = "discardedInputFileId";
+    setupIdGeneratorInOrder(filteredInputFileId, discardedInputFileId);
+
+    File filteredInputFile = mockFile();
+    File discardedInputFile = mockFile();
+    File cachedOutputFile = mockFile();
+    Map<String, File> files = new HashMap<>();
+    files.put(filteredInputFileId, filteredInputFile);
+    files.put(discardedInputFileId, discardedInputFile);
+    files.put("runId-cached", cachedOutputFile);
+    setupFileStore(files);
+
+    FileMeta cachedOutputFileMeta = mock(FileMeta.class);
+    Map<String, FileMeta> fileMetas = new HashMap<>();
+    fileMetas.put(filteredInputFileId, mockFileMeta(filteredInputFileId));
+    fileMetas.put(discardedInputFileId, mockFileMeta(discardedInputFileId));
+    fileMetas.put("runId-cached", cachedOutputFileMeta);
+    setupFileMetaFactory(fileMetas);
+
+    HttpServletRequest httpServletRequest = mockMultipartRequest(mock(InputStream.class));
+    GavinRun gavinRun = mockGavinRun();
+    when(gavinRunFactory.create()).thenReturn(gavinRun);
+    mockParseExecutor();
+    mockNoIdenticalRun();
+
+    Multiset<LineType> parsedLineTypes = EnumMultiset.create(LineType.class);
+    parsedLineTypes.add(LineType.VCF, 2);
+    when(parser.tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES)))
+        .thenReturn(parsedLineTypes);
+    when(parser.sort(filteredInputFile)).thenReturn(2);
+    when(classificationCache.extractCached(filteredInputFile, cachedOutputFile)).thenReturn(2);
+
+    gavinService.upload(httpServletRequest, "127.0.0.1", false);
+
+    verify(gavinRun).setNumberOfVariants(0);
+    verify(runLogs).append("runId", "Using the cached output of 2 variants\n");
+    verify(cachedOutputFileMeta).setFilename(GavinServiceImpl.CACHED_OUTPUT_FILENAME);
+    verify(gavinRun).setOutputFile(cachedOutputFileMeta);
+    verify(gavinRun).setStatus(Status.SUCCESS);
+    verify(eventPublisher, never()).publishEvent(any(RunPendingEvent.class));
+    verify(classificationCache, never()).merge(any(File.class), any(File.class));
+  }
+
+  @Test
+  public void testUploadMultiAllelicVariantPartlyCached() throws IOException, ServletException {
+    mockComponentBuilder();
+    String filteredInputFileId = "filteredInputFileId";
+    String discardedInputFileId = "discardedInputFileId";
+    setupIdGeneratorInOrder(filteredInputFileId, discardedInputFileId);
+
+    File filteredInputFile = mockFile();
+    File discardedInputFile = mockFile();
+    File cachedOutputFile = mock(File.class);
+    Map<String, File> files = new HashMap<>();
+    files.put(filteredInputFileId, filteredInputFile);
+    files.put(discardedInputFileId, discardedInputFile);
+    files.put("runId-cached", cachedOutputFile);
+    setupFileStore(files);
+
+    Map<String, FileMeta> fileMetas = new HashMap<>();
+    fileMetas.put(filteredInputFileId, mockFileMeta(filteredInputFileId));
+    fileMetas.put(discardedInputFileId, mockFileMeta(discardedInputFileId));
+    setupFileMetaFactory(fileMetas);
+
+    HttpServletRequest httpServletRequest = mockMultipartRequest(mock(InputStream.class));
+    GavinRun gavinRun = mockGavinRun();
+    when(gavinRunFactory.create()).thenReturn(gavinRun);
+    mockParseExecutor();
+    mockNoIdenticalRun();
+
+    // '1 100 . A C,G' is decomposed into two records, only the record of C is cached
+    Multiset<LineType> parsedLineTypes = EnumMultiset.create(LineType.class);
+    parsedLineTypes.add(LineType.VCF, 1);
+    when(parser.tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES)))
+        .thenReturn(parsedLineTypes);
+    when(parser.sort(filteredInputFile)).thenReturn(2);
+    when(classificationCache.extractCached(filteredInputFile, cachedOutputFile)).thenReturn(1);
+
+    gavinService.upload(httpServletRequest, "127.0.0.1", false);
+
+    verify(gavinRun).setNumberOfVariants(1);
+    verify(runLogs).append("runId", "Using the cached output of 1 variants\n");
+    verify(gavinRun).setStatus(Status.PENDING);
+    verify(gavinRun, never()).setStatus(Status.SUCCESS);
+    verify(eventPublisher).publishEvent(any(RunPendingEvent.class));
+  }
+
+  @Test
+  public void testUploadIdenticalToPreviousRun() throws IOException, ServletException {
+    setupIdGeneratorInOrder("filteredInputFileId", "discardedInputFileId");
+    File filteredInputFile = mock(File.class);
+    File discardedInputFile = mock(File.class);
+    Map<String, File> files = new HashMap<>();
+    files.put("filteredInputFileId", filteredInputFile);
+    files.put("discardedInputFileId", discardedInputFile);
+    setupFileStore(files);
+    when(parser.tryTransform(
+            any(InputStream.class),
+            eq(filteredInputFile),
+            eq(discardedInputFile),
+            eq(Integer.MAX_VALUE)))
+        .thenAnswer(
+            invocation -> {
+              ByteStreams.exhaust(invocation.getArgument(0));
+              return EnumMultiset.create(LineType.class);
+            });
+    HttpServletRequest httpServletRequest =
+        mockMultipartRequest(new ByteArrayInputStream("#CHROM\n".getBytes(UTF_8)));
+
+    GavinRun identicalRun = mock(GavinRun.class);
+    when(identicalRun.getId()).thenReturn("identicalRunId");
+    FileMeta filteredInputFileMeta = mock(FileMeta.class);
+    FileMeta outputFileMeta = mock(FileMeta.class);
+    when(identicalRun.getFilteredInputFile()).thenReturn(Optional.of(filteredInputFileMeta));
+    when(identicalRun.getOutputFile()).thenReturn(Optional.of(outputFileMeta));
+    when(identicalRun.getNumberOfVariants()).thenReturn(10);
+    when(identicalRun.getToolVersion()).thenReturn(Optional.of("1.0"));
+    when(classificationCache.getToolVersion()).thenReturn(Optional.of("1.0"));
+    Query<GavinRun> query = mock(Query.class, RETURNS_SELF);
+    when(dataService.query(GAVIN_RUN, GavinRun.class)).thenReturn(query);
+    when(query.findOne()).thenReturn(identicalRun);
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("runId");
+    when(gavinRunFactory.create()).thenReturn(gavinRun);
+
+    assertEquals(gavinService.upload(httpServletRequest, "127.0.0.1", true), "runId");
+
+    String sha256 = Hashing.sha256().hashString("#CHROM\n", UTF_8).toString();
+    verify(query).eq(INPUT_SHA256, sha256);
+    verify(query).eq(LARGE_FILE, true);
+    verify(query).eq(TOOL_VERSION, "1.0");
+    verify(query).eq(STATUS, Status.SUCCESS);
+    verify(fileStore).delete("filteredInputFileId");
+    verify(fileStore).delete("discardedInputFileId");
+    verify(gavinRun).setInputSha256(sha256);
+    verify(gavinRun).setToolVersion("1.0");
+    verify(gavinRun).setFilteredInputFile(filteredInputFileMeta);
+    verify(gavinRun).setOutputFile(outputFileMeta);
+    verify(gavinRun).setNumberOfVariants(10);
+    verify(gavinRun).setStatus(Status.SUCCESS);
+    verify(dataService).add(GAVIN_RUN, gavinRun);
+    verify(runLogs).appendLogOf("runId", "identicalRunId");
+    verify(parseExecutor, never()).execute(any(Runnable.class));
+  }
+
+  @Test
+  public void testUploadParseFails() throws IOException, ServletException {
+    setupIdGeneratorInOrder("filteredInputFileId", "discardedInputFileId");
+    File filteredInputFile = mock(File.class);
+    File discardedInputFile = mock(File.class);
+    Map<String, File> files = new HashMap<>();
+    files.put("filteredInputFileId", filteredInputFile);
+    files.put("discardedInputFileId", discardedInputFile);
+    setupFileStore(files);
+    HttpServletRequest httpServletRequest = mockMultipartRequest(mock(InputStream.class));
+    when(parser.tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES)))
+        .thenThrow(new IOException("Stream closed"));
+
+    try {
+      gavinService.upload(httpServletRequest, "127.0.0.1", false);
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals(e.getMessage(), "Stream closed");
+    }
+    verify(fileStore).delete("filteredInputFileId");
+    verify(fileStore).delete("discardedInputFileId");
+    verifyZeroInteractions(transactionManager, dataService, eventPublisher);
+  }
+
+  @Test
+  public void testUploadPrepareFails() throws IOException, ServletException {
+    mockComponentBuilder();
+    setupIdGeneratorInOrder("filteredInputFileId", "discardedInputFileId");
+    File filteredInputFile = mock(File.class);
+    File discardedInputFile = mock(File.class);
+    Map<String, File> files = new HashMap<>();
+    files.put("filteredInputFileId", filteredInputFile);
+    files.put("discardedInputFileId", discardedInputFile);
+    setupFileStore(files);
+    Map<String, FileMeta> fileMetas = new HashMap<>();
+    fileMetas.put("filteredInputFileId", mockFileMeta("filteredInputFileId"));
+    fileMetas.put("discardedInputFileId", mockFileMeta("discardedInputFileId"));
+    setupFileMetaFactory(fileMetas);
+
+    HttpServletRequest httpServletRequest = mockMultipartRequest(mock(InputStream.class));
+    GavinRun gavinRun = mockGavinRun();
+    when(gavinRunFactory.create()).thenReturn(gavinRun);
+    mockParseExecutor();
+    mockNoIdenticalRun();
+    when(parser.tryTransform(
+            any(InputStream.class), eq(filteredInputFile), eq(discardedInputFile), eq(MAX_LINES)))
+        .thenReturn(EnumMultiset.create(LineType.class));
+    when(parser.sort(filteredInputFile)).thenThrow(new IOException("No space left on device"));
+
+    gavinService.upload(httpServletRequest, "127.0.0.1", false);
+
+    verify(runLogs).append("runId", "Parsing the uploaded file failed");
+    verify(gavinRun).setStatus(Status.FAILED);
+    verify(gavinRun, never()).setStatus(Status.PENDING);
+    verify(eventPublisher, never()).publishEvent(any(RunPendingEvent.class));
+  }
+
+  @Test
+  public void testUploadCreatingRunFails() throws IOException {
+    setupIdGeneratorInOrder("filteredInputFileId", "discardedInputFileId");
+    when(dataService.query(GAVIN_RUN, GavinRun.class))
+        .thenThrow(new IllegalStateException("Database unavailable"));
+
+    try {
+      gavinService.upload(
+          "input.vcf", new ByteArrayInputStream(new byte[0]), "127.0.0.1", false);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertEquals(e.getMessage(), "Database unavailable");
+    }
+    verify(fileStore).delete("filteredInputFileId");
+    verify(fileStore).delete("discardedInputFileId");
+  }
+
+  @Test
+  public void testUploadLargeFile() throws IOException, ServletException {
+    mockComponentBuilder();
+    String filteredInputFileId = "filteredInputFileId";
+    String discardedInputFileId = "discardedInputFileId";
+    setupIdGeneratorInOrder(filteredInputFileId, discardedInputFileId, "shard0", "shard1");
+
+    File filteredInputFile = mockFile();
+    File discardedInputFile = mockFile();
+    Map<String, File> files = new HashMap<>();
+    files.put(filteredInputFileId, filteredInputFile);
+    files.put(discardedInputFileId, discardedInputFile);
+    files.put("shard0", mockFile());
+    files.put("shard1", mockFile());
+    setupFileStore(files);
+
+    Map<String, FileMeta> fileMetas = new HashMap<>();
+    fileMetas.put(filteredInputFileId, mockFileMeta(filteredInputFileId));
+    fileMetas.put(discardedInputFileId, mockFileMeta(discardedInputFileId));
+    fileMetas.put("shard0", mockFileMeta("shard0"));
+    fileMetas.put("shard1", mockFileMeta("shard1"));
+    setupFileMetaFactory(fileMetas);
+
+    HttpServletRequest httpServletRequest = mockMultipartRequest(mock(InputStream.class));
+    GavinRun gavinRun = mockGavinRun();
+    GavinRun firstShard = mock(GavinRun.class);
+    GavinRun secondShard = mock(GavinRun.class);
+    when(gavinRunFactory.create()).thenReturn(gavinRun, firstShard, secondShard);
+    mockParseExecutor();
+    mockNoIdenticalRun();
+
+    Multiset<LineType> parsedLineTypes = EnumMultiset.create(LineType.class);
+    parsedLineTypes.add(LineType.VCF, MAX_LINES + 1);
+    when(parser.tryTransform(
+            any(InputStream.class),
+            eq(filteredInputFile),
+            eq(discardedInputFile),
+            eq(Integer.MAX_VALUE)))
+        .thenReturn(parsedLineTypes);
+    when(parser.sort(filteredInputFile)).thenReturn(MAX_LINES + 1);
+    when(vcfShards.split(eq(filteredInputFile), eq(MAX_LINES), any()))
+        .thenAnswer(
+            invocation -> {
+              IntFunction<File> shardFiles = invocation.getArgument(2);
+              shardFiles.apply(0);
+              shardFiles.apply(1);
+              return asList(MAX_LINES, 1);
+            });
+
+    gavinService.upload(httpServletRequest, "127.0.0.1", true);
+
+    verify(firstShard).setParent(gavinRun);
+    verify(firstShard).setShardIndex(0);
+    verify(firstShard).setFilteredInputFile(fileMetas.get("shard0"));
+    verify(firstShard).setNumberOfVariants(MAX_LINES);
+    verify(firstShard).setStatus(Status.PENDING);
+    verify(secondShard).setParent(gavinRun);
+    verify(secondShard).setShardIndex(1);
+    verify(secondShard).setFilteredInputFile(fileMetas.get("shard1"));
+    verify(secondShard).setNumberOfVariants(1);
+    verify(gavinRun).setNumberOfShards(2);
+    verify(gavinRun).setStatus(Status.RUNNING);
   }
 
   @Test
@@ -125,24 +493,228 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
   }
 
   @Test
-  public void testStart() {
-    String id = "test";
+  public void testClaim() {
+    GavinRun gavinRun = mockPendingRun("run");
+    when(runLocks.tryLock("run")).thenReturn(true);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(STATUS, Status.PENDING)).thenReturn(query);
+    when(query.eq(STATUS, Status.RUNNING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(gavinRun), Stream.empty());
+
+    assertEquals(gavinService.claim(), Optional.of(gavinRun));
+
+    verify(gavinRun).setStartedAt(any(Instant.class));
+    verify(gavinRun).setStatus(Status.RUNNING);
+    verify(dataService).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testClaimSkipsLockedRun() {
+    GavinRun lockedRun = mockPendingRun("locked");
+    when(lockedRun.getNumberOfVariants()).thenReturn(1);
+    GavinRun gavinRun = mockPendingRun("run");
+    when(gavinRun.getNumberOfVariants()).thenReturn(2);
+    Instant submittedAt = Instant.now();
+    when(lockedRun.getSubmittedAt()).thenReturn(submittedAt);
+    when(gavinRun.getSubmittedAt()).thenReturn(submittedAt);
+    when(runLocks.tryLock("locked")).thenReturn(false);
+    when(runLocks.tryLock("run")).thenReturn(true);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(STATUS, Status.PENDING)).thenReturn(query);
+    when(query.eq(STATUS, Status.RUNNING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(lockedRun, gavinRun), Stream.empty());
+
+    assertEquals(gavinService.claim(), Optional.of(gavinRun));
+
+    verify(lockedRun, never()).setStatus(any(Status.class));
+  }
+
+  @Test
+  public void testClaimById() {
     GavinRun gavinRun = mock(GavinRun.class);
-    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    when(gavinRun.getStatus()).thenReturn(Status.PENDING);
+    when(dataService.findOneById(GAVIN_RUN, "run", GavinRun.class)).thenReturn(gavinRun);
+    when(idGenerator.generateId(Strategy.LONG_SECURE_RANDOM)).thenReturn("token");
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(STATUS, Status.RUNNING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.empty());
 
-    gavinService.start(id);
+    assertEquals(gavinService.claim("run"), Optional.of(gavinRun));
 
+    verify(runLocks).lock("run");
     verify(gavinRun).setStartedAt(any(Instant.class));
+    verify(gavinRun).setLeaseExpiresAt(any(Instant.class));
+    verify(gavinRun).setLeaseToken("token");
     verify(gavinRun).setStatus(Status.RUNNING);
     verify(dataService).update(GAVIN_RUN, gavinRun);
   }
 
+  @Test
+  public void testClaimByIdNotPending() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(dataService.findOneById(GAVIN_RUN, "run", GavinRun.class)).thenReturn(gavinRun);
+
+    assertEquals(gavinService.claim("run"), Optional.empty());
+
+    verify(gavinRun, never()).setStatus(any(Status.class));
+  }
+
+  @Test
+  public void testClaimByIdLargeRunSlotsTaken() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.PENDING);
+    when(dataService.findOneById(GAVIN_RUN, "run", GavinRun.class)).thenReturn(gavinRun);
+    when(gavinRun.getNumberOfVariants()).thenReturn(RunScheduler.SMALL_RUN_MAX_VARIANTS + 1);
+    GavinRun largeRun = mock(GavinRun.class);
+    when(largeRun.getLeaseExpiresAt()).thenReturn(Optional.of(Instant.now()));
+    when(largeRun.getNumberOfVariants()).thenReturn(RunScheduler.SMALL_RUN_MAX_VARIANTS + 1);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(STATUS, Status.RUNNING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(largeRun));
+
+    assertEquals(gavinService.claim("run"), Optional.empty());
+
+    verify(gavinRun, never()).setStatus(any(Status.class));
+  }
+
+  @Test
+  public void testClaimNothingPending() {
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(STATUS, Status.PENDING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.empty());
+
+    assertEquals(gavinService.claim(), Optional.empty());
+
+    verify(dataService, never()).update(eq(GAVIN_RUN), any(GavinRun.class));
+  }
+
+  @Test
+  public void testRequeue() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("test");
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(dataService.findOneById(GAVIN_RUN, "test", GavinRun.class)).thenReturn(gavinRun);
+
+    gavinService.requeue("test");
+
+    verify(gavinRun).setStartedAt(null);
+    verify(gavinRun).setLeaseToken(null);
+    verify(gavinRun).setStatus(Status.PENDING);
+    verify(dataService).update(GAVIN_RUN, gavinRun);
+    verify(outputUploads).discard("test");
+    verify(eventPublisher).publishEvent(any(RunPendingEvent.class));
+  }
+
+  @Test
+  public void testRequeueFinished() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.SUCCESS);
+    when(dataService.findOneById(GAVIN_RUN, "test", GavinRun.class)).thenReturn(gavinRun);
+
+    gavinService.requeue("test");
+
+    verify(runLocks).lock("test");
+    verify(dataService, never()).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testHeartbeat() {
+    GavinRun gavinRun = mockLeasedRun("test");
+
+    assertTrue(gavinService.heartbeat("test", "token"));
+
+    verify(gavinRun).setLeaseExpiresAt(any(Instant.class));
+    verify(dataService).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testHeartbeatNotRunning() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.PENDING);
+    when(dataService.findOneById(GAVIN_RUN, "test", GavinRun.class)).thenReturn(gavinRun);
+
+    assertFalse(gavinService.heartbeat("test", "token"));
+
+    verify(dataService, never()).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testHeartbeatOtherLease() {
+    GavinRun gavinRun = mockLeasedRun("test");
+
+    assertFalse(gavinService.heartbeat("test", "requeuedToken"));
+
+    verify(dataService, never()).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testHoldsLease() {
+    mockLeasedRun("test");
+
+    assertTrue(gavinService.holdsLease("test", "token"));
+    assertFalse(gavinService.holdsLease("test", "requeuedToken"));
+  }
+
+  @Test
+  public void testRequeueExpiredRuns() {
+    GavinRun expiredRun = mockExpiredRun("expired");
+    when(expiredRun.getRetries()).thenReturn(1);
+    GavinRun exhaustedRun = mockExpiredRun("exhausted");
+    when(exhaustedRun.getRetries()).thenReturn(3);
+    GavinRun heartbeatRun = mock(GavinRun.class);
+    when(heartbeatRun.getId()).thenReturn("heartbeat");
+    when(heartbeatRun.getStatus()).thenReturn(Status.RUNNING);
+    when(heartbeatRun.getLeaseExpiresAt())
+        .thenReturn(Optional.of(Instant.now().plus(Duration.ofMinutes(5))));
+    when(dataService.findOneById(GAVIN_RUN, "heartbeat", GavinRun.class))
+        .thenReturn(heartbeatRun);
+    Query<GavinRun> query = mockQuery();
+    when(query.in(STATUS, asList(Status.RUNNING, Status.FINISHING))).thenReturn(query);
+    when(query.and()).thenReturn(query);
+    when(query.lt(eq(LEASE_EXPIRES_AT), any(Instant.class))).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(expiredRun, exhaustedRun, heartbeatRun));
+
+    gavinService.requeueExpiredRuns();
+
+    verify(runLocks).lock("expired");
+    verify(runLocks).lock("exhausted");
+    verify(heartbeatRun, never()).setStatus(any(Status.class));
+    verify(expiredRun).setRetries(2);
+    verify(expiredRun).setLeaseExpiresAt(null);
+    verify(expiredRun).setStatus(Status.PENDING);
+    verify(outputUploads).discard("expired");
+    verify(eventPublisher).publishEvent(any(RunPendingEvent.class));
+    verify(runLogs).append("exhausted", "Lease expired after 3 retries");
+    verify(exhaustedRun).setStatus(Status.FAILED);
+  }
+
+  @Test
+  public void testRequeueExpiredRunsFinishesParentAgain() {
+    GavinRun parent = mockExpiredRun("parent");
+    when(parent.getStatus()).thenReturn(Status.FINISHING, Status.RUNNING);
+    when(parent.getNumberOfShards()).thenReturn(Optional.of(2));
+    Query<GavinRun> query = mockQuery();
+    when(query.in(STATUS, asList(Status.RUNNING, Status.FINISHING))).thenReturn(query);
+    when(query.and()).thenReturn(query);
+    when(query.lt(eq(LEASE_EXPIRES_AT), any(Instant.class))).thenReturn(query);
+    when(query.eq(PARENT, "parent")).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(parent), Stream.empty());
+
+    gavinService.requeueExpiredRuns();
+
+    verify(parent).setLeaseExpiresAt(null);
+    verify(parent).setStatus(Status.RUNNING);
+    verify(dataService).update(GAVIN_RUN, parent);
+    verify(runLocks, times(2)).lock("parent");
+  }
+
   @Test
   public void testFinish() throws IOException, ServletException {
     mockComponentBuilder();
     String id = "test";
-    GavinRun gavinRun = mock(GavinRun.class);
-    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    GavinRun gavinRun = mockLeasedRun(id);
+    when(gavinRun.getId()).thenReturn(id);
     HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
     Part part = mock(Part.class);
     when(httpServletRequest.getPart("outputFile")).thenReturn(part);
@@ -151,29 +723,365 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
     when(idGenerator.generateId()).thenReturn("fileId");
     File outputFile = mockFile();
     when(fileStore.getFile("fileId")).thenReturn(outputFile);
+    when(fileStore.getFile("test-cached")).thenReturn(mock(File.class));
+    mockParseExecutor();
 
-    gavinService.finish(id, "Great success!", httpServletRequest);
+    gavinService.finish(id, "token", "Great success!", httpServletRequest);
 
+    verify(classificationCache).put(outputFile);
+    verify(classificationCache, never())
+        .merge(any(File.class), any(File.class), any(File.class));
+    verify(outputUploads).discard(id);
     verify(dataService).add(FILE_META, outputFileMeta);
     verify(gavinRun).setOutputFile(outputFileMeta);
-    verify(gavinRun).setLog("Great success!");
+    verify(runLogs).append(id, "Great success!");
     verify(gavinRun).setFinishedAt(any(Instant.class));
     verify(gavinRun).setStatus(Status.SUCCESS);
     verify(dataService).update(GAVIN_RUN, gavinRun);
   }
 
+  @Test(expectedExceptions = LeaseException.class)
+  public void testFinishOtherLease() throws IOException {
+    GavinRun gavinRun = mockLeasedRun("test");
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+
+    try {
+      gavinService.finish("test", "requeuedToken", "Great success!", httpServletRequest);
+    } finally {
+      verifyZeroInteractions(httpServletRequest, fileStore);
+      verify(gavinRun, never()).setStatus(any(Status.class));
+    }
+  }
+
+  @Test
+  public void testAppendLog() {
+    mockLeasedRun("test");
+
+    gavinService.appendLog("test", "token", "Processed chromosome 1\n");
+
+    verify(runLogs).append("test", "Processed chromosome 1\n");
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testAppendLogOtherLease() {
+    mockLeasedRun("test");
+
+    try {
+      gavinService.appendLog("test", "requeuedToken", "Processed chromosome 1\n");
+    } finally {
+      verifyZeroInteractions(runLogs);
+    }
+  }
+
+  @Test
+  public void testGetOutputOffset() throws IOException {
+    mockLeasedRun("test");
+    when(outputUploads.getOffset("test")).thenReturn(20L);
+
+    assertEquals(gavinService.getOutputOffset("test", "token"), 20L);
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testGetOutputOffsetOtherLease() throws IOException {
+    mockLeasedRun("test");
+
+    gavinService.getOutputOffset("test", "requeuedToken");
+  }
+
+  @Test
+  public void testAppendOutput() throws IOException {
+    mockLeasedRun("test");
+    InputStream chunk = mock(InputStream.class);
+    when(outputUploads.append("test", 10L, chunk)).thenReturn(20L);
+
+    assertEquals(gavinService.appendOutput("test", "token", 10L, chunk), 20L);
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testAppendOutputRequeued() throws IOException {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.PENDING);
+    when(dataService.findOneById(GAVIN_RUN, "test", GavinRun.class)).thenReturn(gavinRun);
+
+    try {
+      gavinService.appendOutput("test", "token", 10L, mock(InputStream.class));
+    } finally {
+      verifyZeroInteractions(outputUploads);
+    }
+  }
+
+  @Test
+  public void testCommitOutput() throws IOException {
+    mockComponentBuilder();
+    GavinRun gavinRun = mockLeasedRun("test");
+    when(gavinRun.getId()).thenReturn("test");
+    when(outputUploads.commit("test", "sha256")).thenReturn("test-output");
+    FileMeta outputFileMeta = mock(FileMeta.class);
+    when(fileMetaFactory.create("test-output")).thenReturn(outputFileMeta);
+    when(fileStore.getFile("test-output")).thenReturn(mockFile());
+    when(fileStore.getFile("test-cached")).thenReturn(mock(File.class));
+
+    gavinService.commitOutput("test", "token", "output.vcf", "sha256", "Great success!");
+
+    verify(outputFileMeta).setFilename("output.vcf");
+    verify(dataService).add(FILE_META, outputFileMeta);
+    verify(gavinRun).setOutputFile(outputFileMeta);
+    verify(gavinRun).setStatus(Status.SUCCESS);
+    verify(dataService).update(GAVIN_RUN, gavinRun);
+  }
+
+  @Test
+  public void testCommitOutputWithCachedOutput() throws IOException {
+    mockComponentBuilder();
+    GavinRun gavinRun = mockLeasedRun("test");
+    when(gavinRun.getId()).thenReturn("test");
+    when(outputUploads.commit("test", "sha256")).thenReturn("test-output");
+    when(idGenerator.generateId()).thenReturn("mergedOutput");
+    FileMeta outputFileMeta = mock(FileMeta.class);
+    when(fileMetaFactory.create("mergedOutput")).thenReturn(outputFileMeta);
+    File uploadedOutput = mock(File.class);
+    when(fileStore.getFile("test-output")).thenReturn(uploadedOutput);
+    File mergedOutput = mockFile();
+    when(fileStore.getFile("mergedOutput")).thenReturn(mergedOutput);
+    File cachedOutput = mock(File.class);
+    when(cachedOutput.exists()).thenReturn(true);
+    when(fileStore.getFile("test-cached")).thenReturn(cachedOutput);
+    mockParseExecutor();
+
+    gavinService.commitOutput("test", "token", "output.vcf", "sha256", "Great success!");
+
+    verify(classificationCache).merge(uploadedOutput, cachedOutput, mergedOutput);
+    verify(classificationCache).put(mergedOutput);
+    verify(fileStore).delete("test-cached");
+    verify(fileStore).delete("test-output");
+    verify(gavinRun).setOutputFile(outputFileMeta);
+    verify(gavinRun).setStatus(Status.SUCCESS);
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testCommitOutputLeaseLostWhileMerging() throws IOException {
+    GavinRun gavinRun = mockLeasedRun("test");
+    when(gavinRun.getLeaseToken())
+        .thenReturn(Optional.of("token"), Optional.of("requeuedToken"));
+    when(outputUploads.commit("test", "sha256")).thenReturn("test-output");
+    when(idGenerator.generateId()).thenReturn("mergedOutput");
+    File cachedOutput = mock(File.class);
+    when(cachedOutput.exists()).thenReturn(true);
+    when(fileStore.getFile("test-cached")).thenReturn(cachedOutput);
+
+    try {
+      gavinService.commitOutput("test", "token", "output.vcf", "sha256", "Great success!");
+    } finally {
+      verify(fileStore).delete("mergedOutput");
+      verify(fileStore, never()).delete("test-cached");
+      verify(gavinRun, never()).setStatus(any(Status.class));
+      verifyZeroInteractions(parseExecutor);
+    }
+  }
+
+  @Test(expectedExceptions = OutputUploadException.class)
+  public void testCommitOutputChecksumMismatch() throws IOException {
+    mockLeasedRun("test");
+    when(outputUploads.commit("test", "sha256"))
+        .thenThrow(new OutputUploadException("Checksum of the output does not match", 0));
+
+    gavinService.commitOutput("test", "token", "output.vcf", "sha256", "Great success!");
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testCommitOutputOtherLease() throws IOException {
+    mockLeasedRun("test");
+
+    try {
+      gavinService.commitOutput("test", "requeuedToken", "output.vcf", "sha256", "Done");
+    } finally {
+      verifyZeroInteractions(outputUploads);
+    }
+  }
+
+  @Test
+  public void testFinishLastShard() throws IOException, ServletException {
+    mockComponentBuilder();
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getId()).thenReturn("parent");
+    GavinRun shard = mockLeasedRun("shard");
+    when(shard.getId()).thenReturn("shard");
+    when(shard.getParent()).thenReturn(Optional.of(parent));
+    when(dataService.findOneById(GAVIN_RUN, "parent", GavinRun.class)).thenReturn(parent);
+    when(parent.getStatus()).thenReturn(Status.RUNNING, Status.FINISHING);
+    when(parent.getNumberOfShards()).thenReturn(Optional.of(2));
+    when(fileStore.getFile("shard-cached")).thenReturn(mock(File.class));
+    File cachedOutput = mock(File.class);
+    when(cachedOutput.exists()).thenReturn(true);
+    when(fileStore.getFile("parent-cached")).thenReturn(cachedOutput);
+
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+    when(httpServletRequest.getPart("outputFile")).thenReturn(mock(Part.class));
+    when(idGenerator.generateId()).thenReturn("fileId", "outputId");
+    File outputFile = mockFile();
+    when(fileStore.getFile("fileId")).thenReturn(mockFile());
+    when(fileStore.getFile("outputId")).thenReturn(outputFile);
+    FileMeta outputFileMeta = mock(FileMeta.class);
+    when(fileMetaFactory.create(any(String.class))).thenReturn(outputFileMeta);
+
+    File firstShardOutput = mock(File.class);
+    File secondShardOutput = mock(File.class);
+    GavinRun firstShard = mockFinishedShard(0, "firstOutput");
+    GavinRun secondShard = mockFinishedShard(1, "secondOutput");
+    when(fileStore.getFile("firstOutput")).thenReturn(firstShardOutput);
+    when(fileStore.getFile("secondOutput")).thenReturn(secondShardOutput);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(PARENT, "parent")).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(secondShard, firstShard));
+
+    gavinService.finish("shard", "token", "Great success!", httpServletRequest);
+
+    InOrder inOrder = inOrder(runLocks, parent, vcfShards);
+    inOrder.verify(runLocks).lock("parent");
+    inOrder.verify(parent).setStatus(Status.FINISHING);
+    inOrder
+        .verify(vcfShards)
+        .concatenate(asList(firstShardOutput, secondShardOutput), outputFile);
+    inOrder.verify(runLocks).lock("parent");
+    inOrder.verify(parent).setStatus(Status.SUCCESS);
+    verify(classificationCache).merge(outputFile, cachedOutput);
+    verify(fileStore).delete("parent-cached");
+    verify(parent).setOutputFile(outputFileMeta);
+    verify(dataService, times(2)).update(GAVIN_RUN, parent);
+  }
+
+  @Test
+  public void testFinishShardBeforeOtherShards() throws IOException, ServletException {
+    mockComponentBuilder();
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getId()).thenReturn("parent");
+    GavinRun shard = mockLeasedRun("shard");
+    when(shard.getId()).thenReturn("shard");
+    when(shard.getParent()).thenReturn(Optional.of(parent));
+    when(dataService.findOneById(GAVIN_RUN, "parent", GavinRun.class)).thenReturn(parent);
+    when(parent.getStatus()).thenReturn(Status.RUNNING);
+    when(parent.getNumberOfShards()).thenReturn(Optional.of(2));
+    when(fileStore.getFile("shard-cached")).thenReturn(mock(File.class));
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+    when(httpServletRequest.getPart("outputFile")).thenReturn(mock(Part.class));
+    when(idGenerator.generateId()).thenReturn("fileId");
+    when(fileStore.getFile("fileId")).thenReturn(mockFile());
+    when(fileMetaFactory.create("fileId")).thenReturn(mock(FileMeta.class));
+
+    GavinRun finishedShard = mock(GavinRun.class);
+    when(finishedShard.getShardIndex()).thenReturn(Optional.of(0));
+    when(finishedShard.getStatus()).thenReturn(Status.SUCCESS);
+    GavinRun runningShard = mock(GavinRun.class);
+    when(runningShard.getShardIndex()).thenReturn(Optional.of(1));
+    when(runningShard.getStatus()).thenReturn(Status.RUNNING);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(PARENT, "parent")).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(runningShard, finishedShard));
+
+    gavinService.finish("shard", "token", "Great success!", httpServletRequest);
+
+    verify(parent, never()).setStatus(any(Status.class));
+    verifyZeroInteractions(vcfShards);
+  }
+
+  @Test
+  public void testFailShard() {
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getId()).thenReturn("parent");
+    GavinRun shard = mockLeasedRun("shard");
+    when(shard.getParent()).thenReturn(Optional.of(parent));
+    when(shard.getShardIndex()).thenReturn(Optional.of(1));
+    when(dataService.findOneById(GAVIN_RUN, "parent", GavinRun.class)).thenReturn(parent);
+    when(parent.getStatus()).thenReturn(Status.RUNNING);
+
+    GavinRun pendingShard = mock(GavinRun.class);
+    when(pendingShard.getStatus()).thenReturn(Status.PENDING);
+    Query<GavinRun> query = mockQuery();
+    when(query.eq(PARENT, "parent")).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(pendingShard));
+
+    gavinService.fail("shard", "token", "Failed because of x");
+
+    verify(runLocks).lock("parent");
+    verify(runLogs).append("parent", "Shard 1 failed: Failed because of x");
+    verify(parent).setStatus(Status.FAILED);
+    verify(pendingShard).setStatus(Status.FAILED);
+  }
+
   @Test
   public void testFail() {
     String id = "test";
-    GavinRun gavinRun = mock(GavinRun.class);
-    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    GavinRun gavinRun = mockLeasedRun(id);
 
-    gavinService.fail(id, "Failed because of x");
+    gavinService.fail(id, "token", "Failed because of x");
 
-    verify(gavinRun).setLog("Failed because of x");
+    verify(runLogs).append(id, "Failed because of x");
     verify(gavinRun).setFinishedAt(any(Instant.class));
     verify(gavinRun).setStatus(Status.FAILED);
     verify(dataService).update(GAVIN_RUN, gavinRun);
+    verify(outputUploads).discard(id);
+    verify(runProgress).remove(id);
+    verify(eventPublisher).publishEvent(any(RunChangedEvent.class));
+  }
+
+  @Test(expectedExceptions = LeaseException.class)
+  public void testFailFinishedRun() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.SUCCESS);
+    when(dataService.findOneById(GAVIN_RUN, "test", GavinRun.class)).thenReturn(gavinRun);
+
+    try {
+      gavinService.fail("test", "token", "Failed because of x");
+    } finally {
+      verify(gavinRun, never()).setStatus(any(Status.class));
+      verifyZeroInteractions(runLogs);
+    }
+  }
+
+  @Test
+  public void testGetRunsChangedSince() {
+    Instant changedSince = Instant.now();
+    GavinRun gavinRun = mock(GavinRun.class);
+    Query<GavinRun> query = mockQuery();
+    when(query.in(ID, asList("first", "second"))).thenReturn(query);
+    when(query.and()).thenReturn(query);
+    when(query.nest()).thenReturn(query);
+    when(query.gt(CHANGED_AT, changedSince)).thenReturn(query);
+    when(query.or()).thenReturn(query);
+    when(query.eq(STATUS, Status.RUNNING)).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(gavinRun));
+
+    assertEquals(
+        gavinService.getRuns(asList("first", "second"), changedSince), singletonList(gavinRun));
+    verify(query).unnest();
+  }
+
+  @Test
+  public void testGetShardsByParentId() {
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getId()).thenReturn("parent");
+    when(parent.getNumberOfShards()).thenReturn(Optional.of(2));
+    GavinRun gavinRun = mock(GavinRun.class);
+    GavinRun firstShard = mockShard(parent, 0);
+    GavinRun secondShard = mockShard(parent, 1);
+    Query<GavinRun> query = mockQuery();
+    when(query.in(PARENT, singletonList("parent"))).thenReturn(query);
+    when(query.findAll()).thenReturn(Stream.of(secondShard, firstShard));
+
+    Map<String, List<GavinRun>> shards =
+        gavinService.getShardsByParentId(asList(parent, gavinRun));
+
+    assertEquals(shards.get("parent"), asList(firstShard, secondShard));
+  }
+
+  private static HttpServletRequest mockMultipartRequest(InputStream inputStream)
+      throws IOException, ServletException {
+    HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+    when(httpServletRequest.getContentType()).thenReturn("multipart/form-data; boundary=x");
+    Part part = mock(Part.class);
+    when(part.getInputStream()).thenReturn(inputStream);
+    when(httpServletRequest.getPart("file")).thenReturn(part);
+    return httpServletRequest;
   }
 
   private void mockComponentBuilder() {
@@ -186,6 +1094,25 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
     when(servletUriComponentsBuilderFactory.fromCurrentRequest()).thenReturn(mockBuilder);
   }
 
+  private GavinRun mockGavinRun() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("runId");
+    when(dataService.findOneById(GAVIN_RUN, "runId", GavinRun.class)).thenReturn(gavinRun);
+    return gavinRun;
+  }
+
+  /** Runs parses on the calling thread. */
+  private void mockParseExecutor() {
+    doAnswer(
+            invocation -> {
+              Runnable command = invocation.getArgument(0);
+              command.run();
+              return null;
+            })
+        .when(parseExecutor)
+        .execute(any(Runnable.class));
+  }
+
   private void setupIdGeneratorInOrder(String... ids) {
     when(idGenerator.generateId())
         .thenAnswer(
@@ -225,6 +1152,63 @@ public class GavinServiceImplTest extends AbstractMockitoTest {
     return file;
   }
 
+  private GavinRun mockFinishedShard(int shardIndex, String outputFileId) {
+    GavinRun shard = mock(GavinRun.class);
+    when(shard.getShardIndex()).thenReturn(Optional.of(shardIndex));
+    when(shard.getStatus()).thenReturn(Status.SUCCESS);
+    FileMeta outputFileMeta = mockFileMeta(outputFileId);
+    when(shard.getOutputFile()).thenReturn(Optional.of(outputFileMeta));
+    return shard;
+  }
+
+  private GavinRun mockShard(GavinRun parent, int shardIndex) {
+    GavinRun shard = mock(GavinRun.class);
+    when(shard.getParent()).thenReturn(Optional.of(parent));
+    when(shard.getShardIndex()).thenReturn(Optional.of(shardIndex));
+    return shard;
+  }
+
+  @SuppressWarnings("unchecked")
+  /** Mocks the query for a previous run with identical input, finding nothing. */
+  private void mockNoIdenticalRun() {
+    when(classificationCache.getToolVersion()).thenReturn(Optional.of("1.0"));
+    when(dataService.query(GAVIN_RUN, GavinRun.class)).thenReturn(mock(Query.class, RETURNS_SELF));
+  }
+
+  /** @return a run that is running under the lease with token "token" */
+  private GavinRun mockLeasedRun(String id) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(gavinRun.getLeaseToken()).thenReturn(Optional.of("token"));
+    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    return gavinRun;
+  }
+
+  private GavinRun mockPendingRun(String id) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn(id);
+    when(gavinRun.getStatus()).thenReturn(Status.PENDING);
+    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    return gavinRun;
+  }
+
+  /** @return a run of which the lease expired a minute ago */
+  private GavinRun mockExpiredRun(String id) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn(id);
+    when(gavinRun.getStatus()).thenReturn(Status.RUNNING);
+    when(gavinRun.getLeaseExpiresAt())
+        .thenReturn(Optional.of(Instant.now().minus(Duration.ofMinutes(1))));
+    when(dataService.findOneById(GAVIN_RUN, id, GavinRun.class)).thenReturn(gavinRun);
+    return gavinRun;
+  }
+
+  private Query<GavinRun> mockQuery() {
+    Query<GavinRun> query = mock(Query.class);
+    when(dataService.query(GAVIN_RUN, GavinRun.class)).thenReturn(query);
+    return query;
+  }
+
   private FileMeta mockFileMeta(String id) {
     FileMeta fileMeta = mock(FileMeta.class);
     when(fileMeta.getId()).thenReturn(id);
@@ -0,0 +1,114 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.mockito.Mock;
+import org.molgenis.data.file.FileStore;
+import org.molgenis.test.AbstractMockitoTest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OutputUploadsTest extends AbstractMockitoTest {
+  @Mock private FileStore fileStore;
+  private File file;
+  private OutputUploads outputUploads;
+
+  @BeforeMethod
+  public void beforeMethod() throws IOException {
+    file = new File(Files.createTempDirectory("output").toFile(), "run-output");
+    file.deleteOnExit();
+    when(fileStore.getFile("run-output")).thenReturn(file);
+    outputUploads = new OutputUploads(fileStore);
+  }
+
+  @Test
+  public void testAppendAndCommit() throws IOException {
+    assertEquals(outputUploads.getOffset("run"), 0L);
+    assertEquals(outputUploads.append("run", 0, chunk("#CHROM\tPOS\n")), 11L);
+    assertEquals(outputUploads.append("run", 11, chunk("1\t123\n")), 17L);
+    assertEquals(outputUploads.getOffset("run"), 17L);
+
+    assertEquals(outputUploads.commit("run", sha256("#CHROM\tPOS\n1\t123\n")), "run-output");
+    assertEquals(new String(Files.readAllBytes(file.toPath()), UTF_8), "#CHROM\tPOS\n1\t123\n");
+  }
+
+  @Test
+  public void testGetCompleteLinesOffset() throws IOException {
+    assertEquals(outputUploads.getCompleteLinesOffset("run"), 0L);
+    outputUploads.append("run", 0, chunk("#CHROM\tPOS\n1\t12"));
+
+    assertEquals(outputUploads.getCompleteLinesOffset("run"), 11L);
+  }
+
+  @Test
+  public void testGetCompleteLinesOffsetLongLine() throws IOException {
+    outputUploads.append("run", 0, chunk("#\n" + Strings.repeat("x", 100000)));
+
+    assertEquals(outputUploads.getCompleteLinesOffset("run"), 2L);
+  }
+
+  @Test
+  public void testAppendWrongOffset() throws IOException {
+    outputUploads.append("run", 0, chunk("#CHROM\tPOS\n"));
+
+    try {
+      outputUploads.append("run", 20, chunk("1\t123\n"));
+      fail("expected OutputUploadException");
+    } catch (OutputUploadException e) {
+      assertEquals(e.getOffset(), 11L);
+    }
+  }
+
+  @Test
+  public void testAppendAtStartStartsOver() throws IOException {
+    outputUploads.append("run", 0, chunk("#CHROM\tPOS\n"));
+    outputUploads.append("run", 0, chunk("#CHROM\n"));
+
+    assertEquals(outputUploads.commit("run", sha256("#CHROM\n")), "run-output");
+    assertEquals(new String(Files.readAllBytes(file.toPath()), UTF_8), "#CHROM\n");
+  }
+
+  @Test
+  public void testResumeAfterRestart() throws IOException {
+    outputUploads.append("run", 0, chunk("#CHROM\tPOS\n"));
+
+    OutputUploads restartedOutputUploads = new OutputUploads(fileStore);
+    assertEquals(restartedOutputUploads.getOffset("run"), 11L);
+    restartedOutputUploads.append("run", 11, chunk("1\t123\n"));
+
+    assertEquals(
+        restartedOutputUploads.commit("run", sha256("#CHROM\tPOS\n1\t123\n")), "run-output");
+  }
+
+  @Test
+  public void testCommitChecksumMismatch() throws IOException {
+    outputUploads.append("run", 0, chunk("#CHROM\tPOS\n"));
+
+    try {
+      outputUploads.commit("run", sha256("#CHROM\n"));
+      fail("expected OutputUploadException");
+    } catch (OutputUploadException e) {
+      assertEquals(e.getOffset(), 0L);
+    }
+    verify(fileStore).delete("run-output");
+  }
+
+  private static InputStream chunk(String content) {
+    return new ByteArrayInputStream(content.getBytes(UTF_8));
+  }
+
+  private static String sha256(String content) {
+    return Hashing.sha256().hashString(content, UTF_8).toString();
+  }
+}
@@ -0,0 +1,107 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.mockito.Mock;
+import org.molgenis.data.file.FileStore;
+import org.molgenis.test.AbstractMockitoTest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RunLogsTest extends AbstractMockitoTest {
+  @Mock private FileStore fileStore;
+  private File directory;
+  private RunLogs runLogs;
+
+  @BeforeMethod
+  public void beforeMethod() throws IOException {
+    directory = Files.createTempDirectory("logs").toFile();
+    directory.deleteOnExit();
+    runLogs = new RunLogs(fileStore, 16);
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    File file = mockLogFile("run");
+
+    assertEquals(runLogs.getLength("run"), 0L);
+    runLogs.append("run", "first\n");
+    runLogs.append("run", "second\n");
+
+    assertEquals(runLogs.getLength("run"), 13L);
+    assertEquals(new String(Files.readAllBytes(file.toPath()), UTF_8), "first\nsecond\n");
+  }
+
+  @Test
+  public void testAppendLogOf() throws IOException {
+    File file = mockLogFile("parent");
+    mockLogFile("shard");
+    mockLogFile("unlogged");
+    runLogs.append("parent", "parent\n");
+    runLogs.append("shard", "shard\n");
+
+    runLogs.appendLogOf("parent", "shard");
+    runLogs.appendLogOf("parent", "unlogged");
+
+    assertEquals(new String(Files.readAllBytes(file.toPath()), UTF_8), "parent\nshard\n");
+  }
+
+  @Test
+  public void testAppendTruncates() throws IOException {
+    File file = mockLogFile("run");
+
+    runLogs.append("run", "first\n");
+    runLogs.append("run", "second\nthird\n");
+    runLogs.append("run", "fourth\n");
+
+    assertEquals(
+        new String(Files.readAllBytes(file.toPath()), UTF_8),
+        "first\nsecond\nthi" + RunLogs.TRUNCATED_MARKER);
+  }
+
+  @Test
+  public void testAppendTruncatesAtCharacterBoundary() throws IOException {
+    File file = mockLogFile("run");
+
+    runLogs.append("run", "abcdefghijklmno\u00e9");
+
+    assertEquals(
+        new String(Files.readAllBytes(file.toPath()), UTF_8),
+        "abcdefghijklmno" + RunLogs.TRUNCATED_MARKER);
+  }
+
+  @Test
+  public void testAppendLogOfTruncates() throws IOException {
+    File file = mockLogFile("parent");
+    mockLogFile("shard");
+    runLogs.append("parent", "parent\n");
+    runLogs.append("shard", "shard\nshard\n");
+
+    runLogs.appendLogOf("parent", "shard");
+    runLogs.appendLogOf("parent", "shard");
+
+    assertEquals(
+        new String(Files.readAllBytes(file.toPath()), UTF_8),
+        "parent\nshard\nsha" + RunLogs.TRUNCATED_MARKER);
+  }
+
+  @Test
+  public void testDelete() {
+    runLogs.delete("run");
+
+    verify(fileStore).delete("run-log");
+  }
+
+  private File mockLogFile(String runId) {
+    File file = new File(directory, runId + "-log");
+    file.deleteOnExit();
+    when(fileStore.getFile(runId + "-log")).thenReturn(file);
+    return file;
+  }
+}
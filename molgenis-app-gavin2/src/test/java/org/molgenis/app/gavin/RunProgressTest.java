@@ -0,0 +1,129 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.time.Instant;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
+import org.molgenis.test.AbstractMockitoTest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RunProgressTest extends AbstractMockitoTest {
+  private static final Instant NOW = Instant.parse("2018-11-05T12:00:00Z");
+
+  private RunProgress runProgress;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    runProgress = new RunProgress();
+  }
+
+  @Test
+  public void testEstimate() {
+    GavinRun gavinRun = mockGavinRun("run", Status.RUNNING, 10000);
+    runProgress.report("run", 1000, NOW.minusSeconds(10));
+    runProgress.report("run", 2000, NOW);
+
+    RunProgress.Estimate estimate = runProgress.estimate(gavinRun, emptyList(), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 2000L);
+    assertEquals(estimate.getEstimatedFinishAt(), NOW.plusSeconds(80));
+  }
+
+  @Test
+  public void testEstimateWithThroughputOfOtherRuns() {
+    runProgress.report("other", 0, NOW.minusSeconds(10));
+    runProgress.report("other", 1000, NOW);
+    GavinRun gavinRun = mockGavinRun("run", Status.RUNNING, 500);
+    runProgress.report("run", 0, NOW);
+
+    RunProgress.Estimate estimate = runProgress.estimate(gavinRun, emptyList(), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 0L);
+    assertEquals(estimate.getEstimatedFinishAt(), NOW.plusSeconds(5));
+  }
+
+  @Test
+  public void testEstimateWithoutThroughput() {
+    GavinRun gavinRun = mockGavinRun("run", Status.RUNNING, 500);
+    runProgress.report("run", 100, NOW);
+
+    RunProgress.Estimate estimate = runProgress.estimate(gavinRun, emptyList(), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 100L);
+    assertNull(estimate.getEstimatedFinishAt());
+  }
+
+  @Test
+  public void testEstimateSuccess() {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getStatus()).thenReturn(Status.SUCCESS);
+    when(gavinRun.getNumberOfVariants()).thenReturn(500);
+
+    RunProgress.Estimate estimate = runProgress.estimate(gavinRun, emptyList(), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 500L);
+    assertNull(estimate.getEstimatedFinishAt());
+  }
+
+  @Test
+  public void testEstimateFinishing() {
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getStatus()).thenReturn(Status.FINISHING);
+    when(parent.getNumberOfVariants()).thenReturn(3000);
+
+    RunProgress.Estimate estimate = runProgress.estimate(parent, emptyList(), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 3000L);
+    assertNull(estimate.getEstimatedFinishAt());
+  }
+
+  @Test
+  public void testEstimateShards() {
+    GavinRun parent = mock(GavinRun.class);
+    when(parent.getStatus()).thenReturn(Status.RUNNING);
+    when(parent.getNumberOfVariants()).thenReturn(3000);
+    GavinRun finishedShard = mock(GavinRun.class);
+    when(finishedShard.getStatus()).thenReturn(Status.SUCCESS);
+    when(finishedShard.getNumberOfVariants()).thenReturn(1000);
+    GavinRun firstRunningShard = mock(GavinRun.class);
+    when(firstRunningShard.getId()).thenReturn("first");
+    when(firstRunningShard.getStatus()).thenReturn(Status.RUNNING);
+    GavinRun secondRunningShard = mock(GavinRun.class);
+    when(secondRunningShard.getId()).thenReturn("second");
+    when(secondRunningShard.getStatus()).thenReturn(Status.RUNNING);
+    runProgress.report("first", 0, NOW.minusSeconds(10));
+    runProgress.report("first", 500, NOW);
+
+    RunProgress.Estimate estimate =
+        runProgress.estimate(
+            parent, asList(finishedShard, firstRunningShard, secondRunningShard), NOW);
+
+    assertEquals(estimate.getProcessedVariants(), 1500L);
+    assertEquals(estimate.getEstimatedFinishAt(), NOW.plusSeconds(15));
+  }
+
+  @Test
+  public void testRemove() {
+    GavinRun gavinRun = mockGavinRun("run", Status.RUNNING, 500);
+    runProgress.report("run", 100, NOW);
+
+    runProgress.remove("run");
+
+    assertEquals(runProgress.estimate(gavinRun, emptyList(), NOW).getProcessedVariants(), 0L);
+  }
+
+  private static GavinRun mockGavinRun(String id, Status status, int numberOfVariants) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn(id);
+    when(gavinRun.getStatus()).thenReturn(status);
+    when(gavinRun.getNumberOfVariants()).thenReturn(numberOfVariants);
+    return gavinRun;
+  }
+}
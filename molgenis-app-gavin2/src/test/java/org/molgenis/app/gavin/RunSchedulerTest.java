@@ -0,0 +1,111 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.test.AbstractMockitoTest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RunSchedulerTest extends AbstractMockitoTest {
+  private static final Instant NOW = Instant.parse("2018-11-05T12:00:00Z");
+  private static final int LARGE = RunScheduler.SMALL_RUN_MAX_VARIANTS + 1;
+
+  private RunScheduler runScheduler;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    runScheduler = new RunScheduler(1);
+  }
+
+  @Test
+  public void testSelectSmallRunFirst() {
+    GavinRun largeRun = mockGavinRun(100000, NOW.minus(Duration.ofMinutes(1)));
+    GavinRun smallRun = mockGavinRun(1, NOW);
+
+    assertEquals(
+        runScheduler.select(asList(largeRun, smallRun), emptyList(), NOW), Optional.of(smallRun));
+  }
+
+  @Test
+  public void testSelectLargeRunAfterWaiting() {
+    GavinRun largeRun = mockGavinRun(100000, NOW.minus(Duration.ofHours(2)));
+    GavinRun smallRun = mockGavinRun(1, NOW);
+
+    assertEquals(
+        runScheduler.select(asList(largeRun, smallRun), emptyList(), NOW), Optional.of(largeRun));
+  }
+
+  @Test
+  public void testSelectFairShare() {
+    GavinRun busyClientRun = mockGavinRun(100, NOW);
+    when(busyClientRun.getSubmittedBy()).thenReturn(Optional.of("busy"));
+    GavinRun idleClientRun = mockGavinRun(200, NOW);
+    when(idleClientRun.getSubmittedBy()).thenReturn(Optional.of("idle"));
+    GavinRun runningRun = mock(GavinRun.class);
+    when(runningRun.getSubmittedBy()).thenReturn(Optional.of("busy"));
+    when(runningRun.getNumberOfVariants()).thenReturn(1);
+
+    assertEquals(
+        runScheduler.select(
+            asList(busyClientRun, idleClientRun), asList(runningRun, runningRun), NOW),
+        Optional.of(idleClientRun));
+  }
+
+  @Test
+  public void testSelectShardsInOrder() {
+    GavinRun secondShard = mockGavinRun(100, NOW);
+    when(secondShard.getShardIndex()).thenReturn(Optional.of(1));
+    GavinRun firstShard = mockGavinRun(100, NOW);
+    when(firstShard.getShardIndex()).thenReturn(Optional.of(0));
+
+    assertEquals(
+        runScheduler.select(asList(secondShard, firstShard), emptyList(), NOW),
+        Optional.of(firstShard));
+  }
+
+  @Test
+  public void testSelectNothingPending() {
+    assertEquals(runScheduler.select(emptyList(), emptyList(), NOW), Optional.empty());
+  }
+
+  @Test
+  public void testOrderReservesWorkersForSmallRuns() {
+    GavinRun largeRun = mock(GavinRun.class);
+    when(largeRun.getNumberOfVariants()).thenReturn(LARGE);
+    GavinRun runningRun = mock(GavinRun.class);
+    when(runningRun.getNumberOfVariants()).thenReturn(LARGE);
+
+    assertEquals(
+        runScheduler.order(singletonList(largeRun), singletonList(runningRun), NOW), emptyList());
+  }
+
+  @Test
+  public void testOrderSmallRunWhileLargeRunSlotsTaken() {
+    GavinRun largeRun = mock(GavinRun.class);
+    when(largeRun.getNumberOfVariants()).thenReturn(LARGE);
+    GavinRun smallRun = mock(GavinRun.class);
+    when(smallRun.getNumberOfVariants()).thenReturn(1);
+    GavinRun runningRun = mock(GavinRun.class);
+    when(runningRun.getNumberOfVariants()).thenReturn(LARGE);
+
+    assertEquals(
+        runScheduler.order(asList(largeRun, smallRun), singletonList(runningRun), NOW),
+        singletonList(smallRun));
+  }
+
+  private static GavinRun mockGavinRun(int numberOfVariants, Instant submittedAt) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getNumberOfVariants()).thenReturn(numberOfVariants);
+    when(gavinRun.getSubmittedAt()).thenReturn(submittedAt);
+    return gavinRun;
+  }
+}
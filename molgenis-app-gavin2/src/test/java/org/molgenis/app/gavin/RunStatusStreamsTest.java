@@ -0,0 +1,173 @@
+package org.molgenis.app.gavin;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.molgenis.app.gavin.meta.GavinRunMetadata.GAVIN_RUN;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Optional;
+import org.mockito.Mock;
+import org.molgenis.app.gavin.meta.GavinRun;
+import org.molgenis.app.gavin.meta.GavinRun.Status;
+import org.molgenis.data.UnknownEntityException;
+import org.molgenis.test.AbstractMockitoTest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RunStatusStreamsTest extends AbstractMockitoTest {
+  private static final Instant NOW = Instant.parse("2018-11-05T12:00:00Z");
+
+  @Mock private GavinService gavinService;
+  @Mock private RunProgress runProgress;
+  @Mock private SseEmitter emitter;
+  private RunStatusStreams runStatusStreams;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    runStatusStreams = new RunStatusStreams(gavinService, runProgress);
+  }
+
+  @Test
+  public void testSubscribe() throws IOException {
+    mockGavinRun(Status.RUNNING);
+
+    runStatusStreams.subscribe("run", emitter);
+
+    verify(emitter).send(any(SseEventBuilder.class));
+    verify(emitter, never()).complete();
+  }
+
+  @Test
+  public void testSubscribeFinishedRun() throws IOException {
+    mockGavinRun(Status.SUCCESS);
+
+    runStatusStreams.subscribe("run", emitter);
+
+    verify(emitter).send(any(SseEventBuilder.class));
+    verify(emitter).complete();
+  }
+
+  @Test
+  public void testSubscribeRunChangedWhileReading() throws IOException {
+    GavinRun gavinRun = mockGavinRun(Status.RUNNING);
+    when(gavinService.get("run"))
+        .thenAnswer(
+            invocation -> {
+              runStatusStreams.onRunChanged(new RunChangedEvent("run"));
+              return gavinRun;
+            })
+        .thenReturn(gavinRun);
+
+    runStatusStreams.subscribe("run", emitter);
+
+    verify(emitter, times(2)).send(any(SseEventBuilder.class));
+  }
+
+  @Test
+  public void testSubscribeSendsRunReadLater() throws IOException {
+    GavinRun outdatedRun = mock(GavinRun.class);
+    GavinRun gavinRun = mockGavinRun(Status.SUCCESS);
+    when(gavinService.get("run"))
+        .thenAnswer(
+            invocation -> {
+              runStatusStreams.onRunChanged(new RunChangedEvent("run"));
+              return outdatedRun;
+            })
+        .thenReturn(gavinRun);
+
+    runStatusStreams.subscribe("run", emitter);
+
+    verify(runProgress, never()).estimate(eq(outdatedRun), any(), any(Instant.class));
+    verify(emitter, times(2)).send(any(SseEventBuilder.class));
+  }
+
+  @Test(expectedExceptions = UnknownEntityException.class)
+  public void testSubscribeUnknownRun() throws IOException {
+    when(gavinService.get("run")).thenThrow(new UnknownEntityException(GAVIN_RUN, "run"));
+
+    try {
+      runStatusStreams.subscribe("run", emitter);
+    } finally {
+      runStatusStreams.onRunChanged(new RunChangedEvent("run"));
+      verify(gavinService, times(1)).get("run");
+      verify(emitter, never()).send(any(SseEventBuilder.class));
+    }
+  }
+
+  @Test
+  public void testOnRunChanged() throws IOException {
+    mockGavinRun(Status.RUNNING);
+    runStatusStreams.subscribe("run", emitter);
+    mockGavinRun(Status.SUCCESS);
+
+    runStatusStreams.onRunChanged(new RunChangedEvent("run"));
+
+    verify(emitter, times(2)).send(any(SseEventBuilder.class));
+    verify(emitter).complete();
+  }
+
+  @Test
+  public void testOnRunChangedWithoutStreams() {
+    runStatusStreams.onRunChanged(new RunChangedEvent("run"));
+
+    verify(gavinService, never()).get("run");
+  }
+
+  @Test
+  public void testOnProgress() throws IOException {
+    GavinRun gavinRun = mockGavinRun(Status.RUNNING);
+    runStatusStreams.subscribe("run", emitter);
+
+    runStatusStreams.onProgress("run", NOW);
+    runStatusStreams.onProgress("run", NOW.plusMillis(500));
+
+    verify(emitter, times(2)).send(any(SseEventBuilder.class));
+    verify(runProgress).estimate(gavinRun, emptyList(), NOW);
+    verify(gavinService, times(1)).get("run");
+  }
+
+  @Test
+  public void testOnProgressOfShard() throws IOException {
+    GavinRun gavinRun = mockGavinRun(Status.RUNNING);
+    when(gavinRun.getNumberOfShards()).thenReturn(Optional.of(1));
+    GavinRun shard = mock(GavinRun.class);
+    when(shard.getId()).thenReturn("shard");
+    when(gavinService.getShards(gavinRun)).thenReturn(singletonList(shard));
+    runStatusStreams.subscribe("run", emitter);
+
+    runStatusStreams.onProgress("shard", NOW);
+
+    verify(emitter, times(2)).send(any(SseEventBuilder.class));
+    verify(runProgress).estimate(gavinRun, singletonList(shard), NOW);
+  }
+
+  @Test
+  public void testOnProgressWithoutStreams() {
+    runStatusStreams.onProgress("run", NOW);
+
+    verifyZeroInteractions(runProgress);
+  }
+
+  private GavinRun mockGavinRun(Status status) {
+    GavinRun gavinRun = mock(GavinRun.class);
+    when(gavinRun.getId()).thenReturn("run");
+    when(gavinRun.getInputFileName()).thenReturn("input.vcf");
+    when(gavinRun.getStatus()).thenReturn(status);
+    when(gavinRun.getSubmittedAt()).thenReturn(NOW);
+    when(gavinService.get("run")).thenReturn(gavinRun);
+    when(runProgress.estimate(any(GavinRun.class), any(), any(Instant.class)))
+        .thenReturn(new RunProgress.Estimate(0, null));
+    return gavinRun;
+  }
+}
@@ -0,0 +1,124 @@
+package org.molgenis.app.gavin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import org.mockito.Mock;
+import org.molgenis.app.gavin.input.ClassificationCache;
+import org.molgenis.app.gavin.input.Parser;
+import org.molgenis.app.gavin.input.model.DiscardReason;
+import org.molgenis.app.gavin.input.model.VcfVariant;
+import org.molgenis.test.AbstractMockitoTest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SyncClassificationsTest extends AbstractMockitoTest {
+  private static final String SUBMITTED_BY = "127.0.0.1";
+
+  @Mock private ClassificationCache classificationCache;
+  @Mock private GavinService gavinService;
+  private SyncClassifications syncClassifications;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    syncClassifications = new SyncClassifications(new Parser(), classificationCache, gavinService);
+  }
+
+  @Test
+  public void testClassifyCached() throws IOException {
+    when(classificationCache.get(VcfVariant.create("1", 100, "rs1", "A", "G")))
+        .thenReturn(Optional.of("1\t100\trs1\tA\tG\t.\t.\tRLV=benign"));
+
+    ClassifyResponse response =
+        syncClassifications.classify(
+            singletonList(VariantRequest.create("chr1", 100, "rs1", "A", "G")), SUBMITTED_BY);
+
+    assertEquals(
+        response,
+        ClassifyResponse.create(
+            singletonList(
+                ClassifiedVariant.create(
+                    null, singletonList("1\t100\trs1\tA\tG\t.\t.\tRLV=benign"))),
+            null));
+    verifyZeroInteractions(gavinService);
+  }
+
+  @Test
+  public void testClassifyPartlyCached() throws IOException {
+    when(classificationCache.get(VcfVariant.create("1", 100, ".", "A", "G")))
+        .thenReturn(Optional.of("1\t100\t.\tA\tG\t.\t.\tRLV=benign"));
+    when(gavinService.upload(
+            eq(SyncClassifications.INPUT_FILENAME),
+            any(InputStream.class),
+            eq(SUBMITTED_BY),
+            eq(false)))
+        .thenReturn("run");
+
+    ClassifyResponse response =
+        syncClassifications.classify(
+            singletonList(VariantRequest.create("1", 100, null, "A", "G,T")), SUBMITTED_BY);
+
+    assertEquals(
+        response,
+        ClassifyResponse.create(singletonList(ClassifiedVariant.create(null, emptyList())), "run"));
+  }
+
+  @Test
+  public void testClassifyUncached() throws IOException {
+    when(gavinService.upload(
+            eq(SyncClassifications.INPUT_FILENAME),
+            any(InputStream.class),
+            eq(SUBMITTED_BY),
+            eq(false)))
+        .thenAnswer(
+            invocation -> {
+              InputStream input = invocation.getArgument(1);
+              assertEquals(
+                  new String(ByteStreams.toByteArray(input), UTF_8), "1\t100\tmy id\tA\tG");
+              return "run";
+            });
+
+    ClassifyResponse response =
+        syncClassifications.classify(
+            singletonList(VariantRequest.create("1", 100, "my\tid", "A", "G")), SUBMITTED_BY);
+
+    assertEquals(
+        response,
+        ClassifyResponse.create(singletonList(ClassifiedVariant.create(null, emptyList())), "run"));
+  }
+
+  @Test
+  public void testClassifyInvalidVariant() throws IOException {
+    List<VariantRequest> variantRequests =
+        asList(
+            VariantRequest.create("1", 100, null, "A", "G"),
+            VariantRequest.create("25", 100, null, "A", "G"),
+            VariantRequest.create("1", 100, null, "A", "<DEL>"));
+
+    ClassifyResponse response = syncClassifications.classify(variantRequests, SUBMITTED_BY);
+
+    assertEquals(
+        response,
+        ClassifyResponse.create(
+            asList(
+                ClassifiedVariant.create(null, emptyList()),
+                ClassifiedVariant.create(DiscardReason.BAD_CHROM, emptyList()),
+                ClassifiedVariant.create(DiscardReason.BAD_ALT, emptyList())),
+            null));
+    assertTrue(response.hasDiscardedVariants());
+    verifyZeroInteractions(classificationCache, gavinService);
+  }
+}
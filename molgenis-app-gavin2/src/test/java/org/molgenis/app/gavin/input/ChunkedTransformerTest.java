@@ -0,0 +1,160 @@
+package org.molgenis.app.gavin.input;
+
+import static org.molgenis.app.gavin.input.model.LineType.COMMENT;
+import static org.molgenis.app.gavin.input.model.LineType.DUPLICATE;
+import static org.molgenis.app.gavin.input.model.LineType.ERROR;
+import static org.molgenis.app.gavin.input.model.LineType.SKIPPED;
+import static org.molgenis.app.gavin.input.model.LineType.VCF;
+
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Multiset;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.molgenis.app.gavin.input.model.LineType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ChunkedTransformerTest {
+  private static final ThreadPoolExecutor EXECUTOR = ChunkedTransformer.createExecutor(2);
+
+  @Test
+  public void testTransformLines() throws IOException {
+    String lines =
+        "#Comment line\n"
+            + "1\t100\t.\tA\tC\r\n"
+            + "not a variant\r"
+            + "2\t200\trs1\tG\t.\n"
+            + "X\t300\t.\tT\tTA\n"
+            + "Y\t400\t.\tG\tA\n"
+            + "bad\tline\n";
+    File outputFile = createTempFile("output", "");
+    File errorFile = createTempFile("error", "");
+
+    ChunkedTransformer chunkedTransformer = new ChunkedTransformer(EXECUTOR, 8, 3);
+    Multiset<LineType> lineTypes;
+    try (LineSink outputSink = new LineSink(outputFile);
+        DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(errorFile))) {
+      lineTypes =
+          chunkedTransformer.transformLines(toInputStream(lines), outputSink, discardedSink);
+    }
+
+    Assert.assertEquals(
+        lineTypes, ImmutableMultiset.of(COMMENT, VCF, ERROR, VCF, VCF, SKIPPED, SKIPPED));
+    Assert.assertEquals(
+        Files.readAllLines(outputFile.toPath()),
+        Arrays.asList(
+            "1\t100\t.\tA\tC\t.\t.\t.", "2\t200\trs1\tG\t.\t.\t.\t.", "X\t300\t.\tT\tTA\t.\t.\t."));
+    Assert.assertEquals(
+        Files.readAllLines(errorFile.toPath()),
+        Arrays.asList("# Too few columns: 1 lines", "Line 3:\tnot a variant"));
+  }
+
+  @Test
+  public void testTransformLinesDecomposesAndDeduplicates() throws IOException {
+    String lines =
+        "1\t100\t.\tAC\tA,ACC\n"
+            + "1\t100\t.\tAC\tA\n"
+            + "1\t100\t.\tACT\tACCT\n"
+            + "1\t200\t.\tG\tT,C\n";
+    File outputFile = createTempFile("output", "");
+    File errorFile = createTempFile("error", "");
+
+    ChunkedTransformer chunkedTransformer = new ChunkedTransformer(EXECUTOR, 8, 3);
+    Multiset<LineType> lineTypes;
+    try (LineSink outputSink = new LineSink(outputFile);
+        DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(errorFile))) {
+      lineTypes =
+          chunkedTransformer.transformLines(toInputStream(lines), outputSink, discardedSink);
+    }
+
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(VCF, DUPLICATE, DUPLICATE, VCF));
+    Assert.assertEquals(
+        Files.readAllLines(outputFile.toPath()),
+        Arrays.asList(
+            "1\t100\t.\tAC\tA\t.\t.\t.",
+            "1\t100\t.\tA\tAC\t.\t.\t.",
+            "1\t200\t.\tG\tT\t.\t.\t.",
+            "1\t200\t.\tG\tC\t.\t.\t."));
+  }
+
+  @Test
+  public void testTransformLinesStopsParsingAtMaxLines() throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (int i = 1; i <= 100; i++) {
+      lines.append("1\t").append(i).append("\t.\tA\tC\n");
+    }
+    File outputFile = createTempFile("output", "");
+    File errorFile = createTempFile("error", "");
+    InputStream in = toInputStream(lines.toString());
+    ThreadPoolExecutor executor = ChunkedTransformer.createExecutor(1);
+
+    ChunkedTransformer chunkedTransformer = new ChunkedTransformer(executor, 8, 2);
+    Multiset<LineType> lineTypes;
+    try (LineSink outputSink = new LineSink(outputFile);
+        DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(errorFile))) {
+      lineTypes = chunkedTransformer.transformLines(in, outputSink, discardedSink);
+    } finally {
+      executor.shutdown();
+    }
+
+    Assert.assertEquals(lineTypes.count(VCF), 2);
+    Assert.assertEquals(lineTypes.count(SKIPPED), 98);
+    Assert.assertEquals(Files.readAllLines(outputFile.toPath()).size(), 2);
+    Assert.assertTrue(executor.getTaskCount() < 10, "parsed ranges: " + executor.getTaskCount());
+  }
+
+  @Test
+  public void testTransformLinesReadInSingleBytes() throws IOException {
+    String lines =
+        "1\t100\t.\tA\tC\r\n"
+            + "\r\n"
+            + "1\t200\t.\tA\tCCCCCCCCCCCCCCCCCCCC\r"
+            + "not a variant\r\n"
+            + "1\t300\t.\tG\tT";
+    File outputFile = createTempFile("output", "");
+    File errorFile = createTempFile("error", "");
+    InputStream in =
+        new FilterInputStream(toInputStream(lines)) {
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+          }
+        };
+
+    ChunkedTransformer chunkedTransformer = new ChunkedTransformer(EXECUTOR, 8, 10);
+    Multiset<LineType> lineTypes;
+    try (LineSink outputSink = new LineSink(outputFile);
+        DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(errorFile))) {
+      lineTypes = chunkedTransformer.transformLines(in, outputSink, discardedSink);
+    }
+
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(VCF, ERROR, VCF, ERROR, VCF));
+    Assert.assertEquals(
+        Files.readAllLines(outputFile.toPath()),
+        Arrays.asList(
+            "1\t100\t.\tA\tC\t.\t.\t.",
+            "1\t200\t.\tA\tCCCCCCCCCCCCCCCCCCCC\t.\t.\t.",
+            "1\t300\t.\tG\tT\t.\t.\t."));
+    Assert.assertEquals(
+        Files.readAllLines(errorFile.toPath()),
+        Arrays.asList("# Too few columns: 2 lines", "Line 2:\t", "Line 4:\tnot a variant"));
+  }
+
+  private static InputStream toInputStream(String lines) {
+    return new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static File createTempFile(String prefix, String content) throws IOException {
+    File file = File.createTempFile(prefix, ".txt");
+    file.deleteOnExit();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
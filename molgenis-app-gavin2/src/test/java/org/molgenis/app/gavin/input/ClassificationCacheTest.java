@@ -0,0 +1,196 @@
+package org.molgenis.app.gavin.input;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.molgenis.app.gavin.input.model.VcfVariant;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ClassificationCacheTest {
+  private static final String OUTPUT =
+      "##fileformat=VCFv4.2\n"
+          + "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n"
+          + "1\t100\trs1\tA\tG\t.\t.\tRLV=benign\n"
+          + "chr2\t200\t.\tC\tT\t.\t.\tRLV=pathogenic\n"
+          + "2\t300\t.\tC\tT,G\t.\t.\tRLV=vous\n";
+
+  private Map<String, String> records;
+  private Map<String, String> headers;
+  private ClassificationCache classificationCache;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    records = new HashMap<>();
+    headers = new HashMap<>();
+    classificationCache = new ClassificationCache(records, headers, "1.0");
+  }
+
+  @Test
+  public void testPut() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+
+    Map<String, String> expectedRecords = new HashMap<>();
+    expectedRecords.put("1.0\t1\t100\tA\tG", "\t.\t.\tRLV=benign");
+    expectedRecords.put("1.0\t2\t200\tC\tT", "\t.\t.\tRLV=pathogenic");
+    assertEquals(records, expectedRecords);
+    assertEquals(
+        headers.get("1.0"),
+        "##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+  }
+
+  @Test
+  public void testExtractCached() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+    File file =
+        createTempFile(
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n"
+                + "1\t100\tmy_id\tA\tG\t.\t.\t.\n"
+                + "1\t150\t.\tA\tG\t.\t.\t.\n"
+                + "2\t200\t.\tC\tT\t.\t.\t.\n");
+    File cachedOutput = createTempFile("");
+
+    assertEquals(classificationCache.extractCached(file, cachedOutput), 2);
+    assertEquals(
+        readLines(file),
+        asList("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO", "1\t150\t.\tA\tG\t.\t.\t."));
+    assertEquals(
+        readLines(cachedOutput),
+        asList(
+            "##fileformat=VCFv4.2",
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+            "1\t100\tmy_id\tA\tG\t.\t.\tRLV=benign",
+            "2\t200\t.\tC\tT\t.\t.\tRLV=pathogenic"));
+  }
+
+  @Test
+  public void testExtractCachedOtherToolVersion() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+    ClassificationCache otherVersionCache = new ClassificationCache(records, headers, "2.0");
+    File file = createTempFile("#CHROM\n1\t100\t.\tA\tG\t.\t.\t.\n");
+    File cachedOutput = createTempFile("");
+
+    assertEquals(otherVersionCache.extractCached(file, cachedOutput), 0);
+    assertEquals(readLines(file), asList("#CHROM", "1\t100\t.\tA\tG\t.\t.\t."));
+  }
+
+  @Test
+  public void testExtractCachedNothingCached() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+    File file = createTempFile("#CHROM\n1\t150\t.\tA\tG\t.\t.\t.\n");
+    File cachedOutput = createTempFile("");
+
+    assertEquals(classificationCache.extractCached(file, cachedOutput), 0);
+    assertEquals(readLines(file), asList("#CHROM", "1\t150\t.\tA\tG\t.\t.\t."));
+    assertFalse(cachedOutput.exists());
+  }
+
+  @Test
+  public void testGet() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+
+    assertEquals(
+        classificationCache.get(VcfVariant.create("1", 100, "my_id", "A", "G")),
+        Optional.of("1\t100\tmy_id\tA\tG\t.\t.\tRLV=benign"));
+    assertEquals(
+        classificationCache.get(VcfVariant.create("1", 100, "my_id", "A", "T")), Optional.empty());
+  }
+
+  @Test
+  public void testGetOtherToolVersion() throws IOException {
+    classificationCache.put(createTempFile(OUTPUT));
+    ClassificationCache otherVersionCache = new ClassificationCache(records, headers, "2.0");
+
+    assertEquals(
+        otherVersionCache.get(VcfVariant.create("1", 100, ".", "A", "G")), Optional.empty());
+  }
+
+  @Test
+  public void testGetToolVersion() {
+    assertEquals(classificationCache.getToolVersion(), Optional.of("1.0"));
+    assertEquals(
+        new ClassificationCache(records, headers, "").getToolVersion(), Optional.empty());
+  }
+
+  @Test
+  public void testMerge() throws IOException {
+    File output =
+        createTempFile(
+            "##fileformat=VCFv4.2\n#CHROM\n1\t150\t.\tA\tG\tnew\n2\t100\t.\tA\tG\tnew\n");
+    File cachedOutput =
+        createTempFile(
+            "##fileformat=VCFv4.1\n#CHROM\n1\t100\t.\tA\tG\tcached\n1\t200\t.\tA\tG\tcached\n"
+                + "X\t1\t.\tA\tG\tcached\n");
+
+    classificationCache.merge(output, cachedOutput);
+
+    assertEquals(
+        readLines(output),
+        asList(
+            "##fileformat=VCFv4.2",
+            "#CHROM",
+            "1\t100\t.\tA\tG\tcached",
+            "1\t150\t.\tA\tG\tnew",
+            "1\t200\t.\tA\tG\tcached",
+            "2\t100\t.\tA\tG\tnew",
+            "X\t1\t.\tA\tG\tcached"));
+  }
+
+  @Test
+  public void testMergeIntoNewFile() throws IOException {
+    File output = createTempFile("#CHROM\n1\t150\t.\tA\tG\tnew\n");
+    File cachedOutput = createTempFile("#CHROM\n1\t100\t.\tA\tG\tcached\n");
+    File mergedOutput = createTempFile("");
+
+    classificationCache.merge(output, cachedOutput, mergedOutput);
+
+    assertEquals(
+        readLines(mergedOutput),
+        asList("#CHROM", "1\t100\t.\tA\tG\tcached", "1\t150\t.\tA\tG\tnew"));
+    assertEquals(readLines(output), asList("#CHROM", "1\t150\t.\tA\tG\tnew"));
+  }
+
+  @Test
+  public void testMergeEmptyOutput() throws IOException {
+    File output = createTempFile("#CHROM\n");
+    File cachedOutput = createTempFile("#CHROM\n1\t100\t.\tA\tG\tcached\n");
+
+    classificationCache.merge(output, cachedOutput);
+
+    assertEquals(readLines(output), asList("#CHROM", "1\t100\t.\tA\tG\tcached"));
+  }
+
+  @Test
+  public void testPutWithoutHeader() throws IOException {
+    classificationCache.put(createTempFile("1\t100\t.\tA\tG\t.\t.\tRLV=benign\n"));
+
+    assertEquals(records.keySet(), singleton("1.0\t1\t100\tA\tG"));
+    assertTrue(headers.isEmpty());
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath());
+  }
+
+  private static File createTempFile(String content) {
+    try {
+      File file = File.createTempFile("cache", ".vcf");
+      file.deleteOnExit();
+      Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+      return file;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.molgenis.app.gavin.input;
+
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_CHROM;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_POS;
+import static org.molgenis.app.gavin.input.model.DiscardReason.BAD_REF;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DiscardedLineSinkTest {
+  @Test
+  public void testClose() throws IOException {
+    File file = createTempFile();
+    try (DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(file))) {
+      discardedSink.accept(BAD_POS, 3, "1\tx\t.\tA\tG");
+      discardedSink.accept(BAD_CHROM, 5, "25\t1\t.\tA\tG");
+      discardedSink.accept(BAD_POS, 8, "1\t-\t.\tA\tG");
+    }
+
+    Assert.assertEquals(
+        Files.readAllLines(file.toPath()),
+        Arrays.asList(
+            "# Unsupported chromosome: 1 lines",
+            "Line 5:\t25\t1\t.\tA\tG",
+            "# Invalid position: 2 lines",
+            "Line 3:\t1\tx\t.\tA\tG",
+            "Line 8:\t1\t-\t.\tA\tG"));
+  }
+
+  @Test
+  public void testCloseNothingDiscarded() throws IOException {
+    File file = createTempFile();
+    new DiscardedLineSink(new LineSink(file)).close();
+    Assert.assertEquals(file.length(), 0L);
+  }
+
+  @Test
+  public void testAcceptKeepsFirstExamples() throws IOException {
+    File file = createTempFile();
+    int numLines = DiscardedLineSink.MAX_EXAMPLES + 50;
+    try (DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(file))) {
+      for (int i = 1; i <= numLines; i++) {
+        discardedSink.accept(BAD_REF, i, "line " + i);
+      }
+      Assert.assertEquals(discardedSink.getCount(BAD_REF), (long) numLines);
+      Assert.assertEquals(discardedSink.getCount(BAD_POS), 0L);
+    }
+
+    List<String> lines = Files.readAllLines(file.toPath());
+    Assert.assertEquals(lines.size(), DiscardedLineSink.MAX_EXAMPLES + 1);
+    Assert.assertEquals(
+        lines.get(0), "# Invalid reference allele: 150 lines, showing the first 100");
+    Assert.assertEquals(lines.get(1), "Line 1:\tline 1");
+    Assert.assertEquals(lines.get(DiscardedLineSink.MAX_EXAMPLES), "Line 100:\tline 100");
+  }
+
+  @Test
+  public void testAcceptTruncatesLongLines() throws IOException {
+    File file = createTempFile();
+    char[] line = new char[DiscardedLineSink.MAX_EXAMPLE_LENGTH];
+    Arrays.fill(line, 'A');
+    // a two byte character that would be cut in half at the maximum length
+    line[DiscardedLineSink.MAX_EXAMPLE_LENGTH - 1] = '\u00e9';
+    try (DiscardedLineSink discardedSink = new DiscardedLineSink(new LineSink(file))) {
+      discardedSink.accept(BAD_REF, 1, new String(line));
+    }
+
+    String expected = new String(line, 0, DiscardedLineSink.MAX_EXAMPLE_LENGTH - 1);
+    Assert.assertEquals(Files.readAllLines(file.toPath()).get(1), "Line 1:\t" + expected);
+  }
+
+  private static File createTempFile() throws IOException {
+    File file = File.createTempFile("discarded", ".txt");
+    file.deleteOnExit();
+    return file;
+  }
+}
@@ -0,0 +1,143 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FilesTest {
+  private static final String CONTENT = createContent();
+
+  @Test
+  public void testNewInputStreamUncompressed() throws IOException {
+    byte[] bytes = CONTENT.getBytes(UTF_8);
+    Assert.assertEquals(Compression.detect(bytes, bytes.length), Compression.NONE);
+    Assert.assertEquals(read(bytes), CONTENT);
+  }
+
+  @Test
+  public void testNewInputStreamGzip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+      gzipOut.write(CONTENT.getBytes(UTF_8));
+    }
+    byte[] bytes = out.toByteArray();
+    Assert.assertEquals(Compression.detect(bytes, bytes.length), Compression.GZIP);
+    Assert.assertEquals(read(bytes), CONTENT);
+  }
+
+  @Test
+  public void testNewInputStreamBgzf() throws IOException {
+    byte[] bytes = bgzip(CONTENT.getBytes(UTF_8), 1000);
+    Assert.assertEquals(Compression.detect(bytes, bytes.length), Compression.BGZF);
+    Assert.assertEquals(read(bytes), CONTENT);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testNewInputStreamBgzfTruncated() throws IOException {
+    byte[] bytes = bgzip(CONTENT.getBytes(UTF_8), 1000);
+    byte[] truncated = new byte[bytes.length - 40];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    read(truncated);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testNewInputStreamBgzfInflatedSizeTooLarge() throws IOException {
+    byte[] bytes = CONTENT.getBytes(UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeBlock(out, bytes, 0, 1000, Integer.MAX_VALUE);
+    read(out.toByteArray());
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testNewInputStreamBgzfInflatesBeyondSize() throws IOException {
+    byte[] bytes = CONTENT.getBytes(UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeBlock(out, bytes, 0, 1000, 999);
+    read(out.toByteArray());
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testNewInputStreamZstd() throws IOException {
+    byte[] bytes = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0x00};
+    Assert.assertEquals(Compression.detect(bytes, bytes.length), Compression.ZSTD);
+    read(bytes);
+  }
+
+  @Test
+  public void testDetectBzip2() {
+    byte[] bytes = "BZh91AY&SY".getBytes(UTF_8);
+    Assert.assertEquals(Compression.detect(bytes, bytes.length), Compression.BZIP2);
+  }
+
+  private static String read(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = Files.newInputStream(new ByteArrayInputStream(bytes))) {
+      byte[] buffer = new byte[777];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return new String(out.toByteArray(), UTF_8);
+  }
+
+  private static String createContent() {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      content.append(i % 22 + 1).append('\t').append(i).append("\t.\tA\tC\n");
+    }
+    return content.toString();
+  }
+
+  /** Writes BGZF blocks with at most blockSize uncompressed bytes followed by an empty block. */
+  private static byte[] bgzip(byte[] bytes, int blockSize) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int offset = 0; offset < bytes.length; offset += blockSize) {
+      writeBlock(out, bytes, offset, Math.min(blockSize, bytes.length - offset));
+    }
+    writeBlock(out, bytes, 0, 0);
+    return out.toByteArray();
+  }
+
+  private static void writeBlock(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+    writeBlock(out, bytes, offset, length, length);
+  }
+
+  /** Writes a BGZF block that claims to inflate to inflatedSize bytes, with a matching CRC. */
+  private static void writeBlock(
+      ByteArrayOutputStream out, byte[] bytes, int offset, int length, int inflatedSize) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(bytes, offset, length);
+    deflater.finish();
+    byte[] compressed = new byte[length + 1024];
+    int compressedLength = deflater.deflate(compressed);
+    deflater.end();
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, Math.min(length, inflatedSize));
+    int blockSize = 18 + compressedLength + 8;
+    out.write(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0}, 0, 12);
+    out.write(new byte[] {'B', 'C', 2, 0}, 0, 4);
+    writeShort(out, blockSize - 1);
+    out.write(compressed, 0, compressedLength);
+    writeInt(out, (int) crc.getValue());
+    writeInt(out, inflatedSize);
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value & 0xffff);
+    writeShort(out, (value >> 16) & 0xffff);
+  }
+}
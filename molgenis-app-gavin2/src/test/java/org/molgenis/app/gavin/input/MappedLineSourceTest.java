@@ -0,0 +1,57 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class MappedLineSourceTest {
+  @DataProvider(name = "windowSizes")
+  public Object[][] createWindowSizeTestcases() {
+    return new Object[][] {{6L}, {7L}, {8L}, {1024L}};
+  }
+
+  @Test(dataProvider = "windowSizes")
+  public void testNext(long windowSize) throws IOException {
+    File file = File.createTempFile("input", ".vcf");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "a\r\nbb\rccc\n\ndddd\r".getBytes(UTF_8));
+
+    List<String> lines = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(file.toPath(), READ);
+        LineSource lineSource =
+            new MappedLineSource(channel, 0, channel.size(), windowSize, false)) {
+      while (lineSource.next()) {
+        lines.add(
+            new String(
+                lineSource.getBytes(),
+                lineSource.getStart(),
+                lineSource.getEnd() - lineSource.getStart(),
+                UTF_8));
+      }
+    }
+
+    Assert.assertEquals(lines, Arrays.asList("a", "bb", "ccc", "", "dddd"));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testNextLineTooLong() throws IOException {
+    File file = File.createTempFile("input", ".vcf");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "aaaaaaaa\nb".getBytes(UTF_8));
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), READ);
+        LineSource lineSource = new MappedLineSource(channel, 0, channel.size(), 4, false)) {
+      lineSource.next();
+    }
+  }
+}
@@ -1,19 +1,25 @@
 package org.molgenis.app.gavin.input;
 
-import static org.mockito.Mockito.verify;
 import static org.molgenis.app.gavin.input.model.LineType.COMMENT;
+import static org.molgenis.app.gavin.input.model.LineType.DUPLICATE;
 import static org.molgenis.app.gavin.input.model.LineType.ERROR;
+import static org.molgenis.app.gavin.input.model.LineType.SKIPPED;
 import static org.molgenis.app.gavin.input.model.LineType.VCF;
 
 import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Multiset;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import org.mockito.Mock;
-import org.mockito.Mockito;
-import org.mockito.MockitoAnnotations;
+import org.molgenis.app.gavin.input.model.DiscardReason;
 import org.molgenis.app.gavin.input.model.LineType;
-import org.molgenis.app.gavin.input.model.Variant;
 import org.molgenis.app.gavin.input.model.VcfVariant;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
@@ -22,12 +28,15 @@ import org.testng.annotations.Test;
 
 public class ParserTest {
   private Parser lineParser = new Parser();
-  @Mock private LineSink output;
-  @Mock private LineSink error;
+  private File outputFile;
+  private File errorFile;
 
   @BeforeMethod
-  private void beforeMethod() {
-    MockitoAnnotations.initMocks(this);
+  private void beforeMethod() throws IOException {
+    outputFile = File.createTempFile("output", ".vcf");
+    errorFile = File.createTempFile("error", ".txt");
+    outputFile.deleteOnExit();
+    errorFile.deleteOnExit();
   }
 
   @DataProvider(name = "chrom")
@@ -59,7 +68,12 @@ public class ParserTest {
       {"chr22", "22"},
       {"CHR-X", null},
       {"chrx", "X"},
-      {"MT", null},
+      {"MT", "MT"},
+      {"chrM", "MT"},
+      {"NC_000001.11", "1"},
+      {"NC_000023.11", "X"},
+      {"NC_012920.1", "MT"},
+      {"NC_000001.10", null},
       {"0", null},
       {"01", null},
       {"23", null},
@@ -69,7 +83,8 @@ public class ParserTest {
 
   @Test(dataProvider = "chrom")
   public void testParseChrom(String input, String expected) {
-    Assert.assertEquals(lineParser.parseChrom(input), expected);
+    VcfVariant variant = parseVariant(input + "\t123\t.\tA\tC");
+    Assert.assertEquals(variant != null ? variant.getChrom() : null, expected);
   }
 
   @DataProvider(name = "line")
@@ -89,41 +104,176 @@ public class ParserTest {
       {"X\t123\tA\tC\t213.23\tblah", null},
       {"X\t123\tA\tC\t213.23", null},
       {" X \t 123 \t rsblah \t A \t C \t 213.23", VcfVariant.create("X", 123, "rsblah", "A", "C")},
-      {"X\t123\t\tA\tC\t213.23", VcfVariant.create("X", 123, ".", "A", "C")}
+      {"X\t123\t\tA\tC\t213.23", VcfVariant.create("X", 123, ".", "A", "C")},
+      {"X\t+123\t.\tA\tC", VcfVariant.create("X", 123, ".", "A", "C")},
+      {"X\t9223372036854775808\t.\tA\tC", null},
+      {"X\t123\t.\tA\t.", VcfVariant.create("X", 123, ".", "A", ".")},
+      {"X\t123\t.\tA\t..", null},
+      {"X\t123\t.\tA\t", null},
+      {"X\t123\t.\tN\tC", null}
     };
   }
 
   @Test(dataProvider = "line")
-  public void testParseVariant(String input, Variant expected) {
-    Assert.assertEquals(lineParser.tryParseVariant(input), expected);
+  public void testParseVariant(String input, VcfVariant expected) {
+    Assert.assertEquals(parseVariant(input), expected);
   }
 
   @Test
-  public void testTransform() {
-    List<String> lines =
+  public void testTransform() throws IOException {
+    String lines =
+        "#Comment line\n"
+            + "#Another comment line\n"
+            + "11\t47359281\t.\tC\tG\t.\t.\tCADD_SCALED=33.0\n"
+            + "11\t47359281\tC\tCC\t2.3\t33.0\n"
+            + "11\t47359281\t.\tC\tCG\t.\t.\tCADD_SCALED=33.0\n"
+            + "11\t47359281\t.\tCG\tC\t.\t.\tCADD_SCALED=33.0\n";
+
+    Multiset<LineType> lineTypes = transform(lines, Parser.MAX_LINES);
+
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(COMMENT, COMMENT, VCF, ERROR, VCF, VCF));
+    Assert.assertEquals(
+        Files.readAllLines(outputFile.toPath()),
         Arrays.asList(
-            "#Comment line",
-            "#Another comment line",
-            "11\t47359281\t.\tC\tG\t.\t.\tCADD_SCALED=33.0",
-            "11\t47359281\tC\tCC\t2.3\t33.0",
-            "11\t47359281\t.\tC\tCG\t.\t.\tCADD_SCALED=33.0",
-            "11\t47359281\t.\tCG\tC\t.\t.\tCADD_SCALED=33.0");
+            "##fileformat=VCFv4.0",
+            "##INFO=<ID=CADD,Number=.,Type=String,Description=\"Raw CADD score\">",
+            "##INFO=<ID=CADD_SCALED,Number=.,Type=String,Description=\"Scaled CADD score\">",
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+            "11\t47359281\t.\tC\tG\t.\t.\t.",
+            "11\t47359281\t.\tC\tCG\t.\t.\t.",
+            "11\t47359281\t.\tCG\tC\t.\t.\t."));
+    Assert.assertEquals(
+        Files.readAllLines(errorFile.toPath()),
+        Arrays.asList(
+            "# Invalid alternative allele: 1 lines", "Line 4:\t11\t47359281\tC\tCC\t2.3\t33.0"));
+  }
 
-    Multiset<LineType> expected = ImmutableMultiset.of(COMMENT, COMMENT, VCF, ERROR, VCF, VCF);
-    Assert.assertEquals(lineParser.transformLines(lines.stream(), output, error), expected);
+  @Test
+  public void testTransformLineTerminators() throws IOException {
+    String lines =
+        "#Comment line\r\n"
+            + "11\t47359281\t.\tC\tG\t.\t.\tCADD_SCALED=33.0\r"
+            + "11\t47359281\tC\tCC\t2.3\t33.0\n"
+            + "chr11\t 47359281\t\tCG\tC";
+    Multiset<LineType> lineTypes = transform(lines, Parser.MAX_LINES);
 
-    verify(output).accept("##fileformat=VCFv4.0");
-    verify(output).accept("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
-    verify(output).accept("11\t47359281\t.\tC\tG\t.\t.\t.");
-    verify(output).accept("11\t47359281\t.\tC\tCG\t.\t.\t.");
-    verify(output).accept("11\t47359281\t.\tCG\tC\t.\t.\t.");
-    verify(error).accept("Line 4:\t11\t47359281\tC\tCC\t2.3\t33.0");
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(COMMENT, VCF, ERROR, VCF));
+    Assert.assertEquals(
+        Files.readAllLines(outputFile.toPath()),
+        Arrays.asList(
+            "##fileformat=VCFv4.0",
+            "##INFO=<ID=CADD,Number=.,Type=String,Description=\"Raw CADD score\">",
+            "##INFO=<ID=CADD_SCALED,Number=.,Type=String,Description=\"Scaled CADD score\">",
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+            "11\t47359281\t.\tC\tG\t.\t.\t.",
+            "11\t47359281\t.\tCG\tC\t.\t.\t."));
+    Assert.assertEquals(
+        Files.readAllLines(errorFile.toPath()),
+        Arrays.asList(
+            "# Invalid alternative allele: 1 lines", "Line 3:\t11\t47359281\tC\tCC\t2.3\t33.0"));
   }
 
   @Test
-  public void testTransformSkipsLinesWhenMaxLinesProcessed() {
+  public void testTransformDecomposesAndDeduplicates() throws IOException {
+    String lines =
+        "1\t100\trs1\tAC\tA,ACC,GC\n"
+            + "chr1\t100\t.\tAC\tA\n"
+            + "1\t100\t.\tACG\tAG\n"
+            + "1\t100\t.\tA\tG\n";
+
+    Multiset<LineType> lineTypes = transform(lines, Parser.MAX_LINES);
+
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(VCF, DUPLICATE, DUPLICATE, DUPLICATE));
+    List<String> outputLines = Files.readAllLines(outputFile.toPath());
     Assert.assertEquals(
-        lineParser.transformLine("", 120000, 100000, output, error), LineType.SKIPPED);
-    Mockito.verifyZeroInteractions(output, error);
+        outputLines.subList(4, outputLines.size()),
+        Arrays.asList(
+            "1\t100\trs1\tAC\tA\t.\t.\t.",
+            "1\t100\trs1\tA\tAC\t.\t.\t.",
+            "1\t100\trs1\tA\tG\t.\t.\t."));
+    Assert.assertEquals(Files.readAllLines(errorFile.toPath()), Collections.emptyList());
+  }
+
+  @Test
+  public void testTransformSkipsLinesWhenMaxLinesProcessed() throws IOException {
+    String lines = "1\t100\t.\tA\tG\n" + "1\t200\t.\tA\tG\n" + "bad\n" + "1\t300\t.\tA\tG\n";
+
+    Multiset<LineType> lineTypes = transform(lines, 2);
+
+    Assert.assertEquals(lineTypes, ImmutableMultiset.of(VCF, VCF, SKIPPED, SKIPPED));
+    Assert.assertEquals(Files.readAllLines(outputFile.toPath()).size(), 6);
+    Assert.assertEquals(Files.readAllLines(errorFile.toPath()), Collections.emptyList());
+  }
+
+  @DataProvider(name = "discarded")
+  public Object[][] createDiscardedTestcases() {
+    return new Object[][] {
+      {"1\t100\t.\tA", DiscardReason.TOO_FEW_COLUMNS},
+      {"25\t100\t.\tA\tG", DiscardReason.BAD_CHROM},
+      {"1\t1e3\t.\tA\tG", DiscardReason.BAD_POS},
+      {"1\t100\t.\tN\tG", DiscardReason.BAD_REF},
+      {"1\t100\t.\tA\tG,<DEL>", DiscardReason.BAD_ALT}
+    };
+  }
+
+  @Test(dataProvider = "discarded")
+  public void testParseDiscardReason(String line, DiscardReason reason) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    ByteLineParser byteLineParser = new ByteLineParser();
+
+    Assert.assertFalse(byteLineParser.parse(bytes, 0, bytes.length));
+    Assert.assertEquals(byteLineParser.getDiscardReason(), reason);
+  }
+
+  @Test
+  public void testParseVariants() {
+    List<DiscardReason> discardReasons = new ArrayList<>();
+
+    Assert.assertEquals(
+        lineParser.parseVariants("chr1\t100\trs1\tAC\tA,ACC,GC,A", discardReasons::add),
+        Arrays.asList(
+            VcfVariant.create("1", 100, "rs1", "AC", "A"),
+            VcfVariant.create("1", 100, "rs1", "A", "AC"),
+            VcfVariant.create("1", 100, "rs1", "A", "G")));
+    Assert.assertEquals(discardReasons, Collections.emptyList());
+  }
+
+  @Test(dataProvider = "discarded")
+  public void testParseVariantsDiscardReason(String line, DiscardReason reason) {
+    List<DiscardReason> discardReasons = new ArrayList<>();
+
+    Assert.assertEquals(
+        lineParser.parseVariants(line, discardReasons::add), Collections.emptyList());
+    Assert.assertEquals(discardReasons, Collections.singletonList(reason));
+  }
+
+  @Test
+  public void testWriteVcf() throws IOException {
+    lineParser.writeVcf(
+        Arrays.asList(
+            VcfVariant.create("1", 100, "rs1", "A", "G"),
+            VcfVariant.create("X", 200, ".", "C", "T")),
+        outputFile);
+
+    List<String> lines = Files.readAllLines(outputFile.toPath());
+    Assert.assertEquals(
+        lines.subList(lines.size() - 3, lines.size()),
+        Arrays.asList(
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+            "1\t100\trs1\tA\tG\t.\t.\t.",
+            "X\t200\t.\tC\tT\t.\t.\t."));
+  }
+
+  /** Transforms lines like an upload into the output and error file. */
+  private Multiset<LineType> transform(String lines, int maxLines) throws IOException {
+    InputStream input = new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8));
+    return lineParser.tryTransform(input, outputFile, errorFile, maxLines);
+  }
+
+  /** @return the first normalized variant of a line, or null if the line cannot be parsed */
+  private static VcfVariant parseVariant(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    ByteLineParser byteLineParser = new ByteLineParser();
+    return byteLineParser.parse(bytes, 0, bytes.length) ? byteLineParser.toVariant(0) : null;
   }
 }
@@ -0,0 +1,50 @@
+package org.molgenis.app.gavin.input;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class VariantSetTest {
+  @Test
+  public void testAdd() {
+    VariantSet variantSet = new VariantSet();
+    Assert.assertTrue(add(variantSet, 1L, "1\t100\trs1\tA\tG\t.\t.\t."));
+    Assert.assertFalse(add(variantSet, 1L, "1\t100\trs1\tA\tG\t.\t.\t."));
+    Assert.assertEquals(variantSet.size(), 1);
+  }
+
+  @Test
+  public void testAddIgnoresId() {
+    VariantSet variantSet = new VariantSet();
+    Assert.assertTrue(add(variantSet, 1L, "1\t100\trs1\tA\tG\t.\t.\t."));
+    Assert.assertFalse(add(variantSet, 1L, "1\t100\t.\tA\tG\t.\t.\t."));
+  }
+
+  @Test
+  public void testAddFingerprintCollision() {
+    VariantSet variantSet = new VariantSet();
+    Assert.assertTrue(add(variantSet, 1L, "1\t100\t.\tA\tG\t.\t.\t."));
+    Assert.assertTrue(add(variantSet, 1L, "1\t100\t.\tA\tT\t.\t.\t."));
+    Assert.assertTrue(add(variantSet, 1L, "1\t1000\t.\tA\tG\t.\t.\t."));
+    Assert.assertFalse(add(variantSet, 1L, "1\t100\t.\tA\tT\t.\t.\t."));
+    Assert.assertEquals(variantSet.size(), 3);
+  }
+
+  @Test
+  public void testAddResizes() {
+    VariantSet variantSet = new VariantSet();
+    for (int pos = 0; pos < 10000; pos++) {
+      Assert.assertTrue(add(variantSet, pos % 7, "1\t" + pos + "\t.\tA\tG\t.\t.\t."));
+    }
+    for (int pos = 0; pos < 10000; pos++) {
+      Assert.assertFalse(add(variantSet, pos % 7, "1\t" + pos + "\trs" + pos + "\tA\tG\t.\t.\t."));
+    }
+    Assert.assertEquals(variantSet.size(), 10000);
+  }
+
+  private static boolean add(VariantSet variantSet, long fingerprint, String record) {
+    byte[] bytes = ("#" + record + "\n").getBytes(US_ASCII);
+    return variantSet.add(fingerprint, bytes, 1, bytes.length - 1);
+  }
+}
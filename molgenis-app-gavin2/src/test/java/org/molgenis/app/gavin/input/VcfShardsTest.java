@@ -0,0 +1,64 @@
+package org.molgenis.app.gavin.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class VcfShardsTest {
+  private final VcfShards vcfShards = new VcfShards();
+
+  @Test
+  public void testSplit() throws IOException {
+    File file = createTempFile("#header\n1\t1\n1\t2\n1\t3\n1\t4\n1\t5\n");
+    List<File> shardFiles = new ArrayList<>();
+
+    List<Integer> numRecordsPerShard =
+        vcfShards.split(
+            file,
+            2,
+            shardIndex -> {
+              Assert.assertEquals(shardIndex, shardFiles.size());
+              File shardFile = createTempFile("");
+              shardFiles.add(shardFile);
+              return shardFile;
+            });
+
+    Assert.assertEquals(numRecordsPerShard, Arrays.asList(2, 2, 1));
+    Assert.assertEquals(readLines(shardFiles.get(0)), Arrays.asList("#header", "1\t1", "1\t2"));
+    Assert.assertEquals(readLines(shardFiles.get(1)), Arrays.asList("#header", "1\t3", "1\t4"));
+    Assert.assertEquals(readLines(shardFiles.get(2)), Arrays.asList("#header", "1\t5"));
+  }
+
+  @Test
+  public void testConcatenate() throws IOException {
+    File first = createTempFile("##format\n#header\n1\t1\n1\t2\n");
+    File second = createTempFile("##format\n#header\n1\t3\n");
+    File target = createTempFile("");
+
+    vcfShards.concatenate(Arrays.asList(first, second), target);
+
+    Assert.assertEquals(
+        readLines(target), Arrays.asList("##format", "#header", "1\t1", "1\t2", "1\t3"));
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath());
+  }
+
+  private static File createTempFile(String content) {
+    try {
+      File file = File.createTempFile("shard", ".vcf");
+      file.deleteOnExit();
+      Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+      return file;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
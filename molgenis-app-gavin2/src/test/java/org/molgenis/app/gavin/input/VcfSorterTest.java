@@ -0,0 +1,60 @@
+package org.molgenis.app.gavin.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class VcfSorterTest {
+  @DataProvider(name = "runSize")
+  public Object[][] createRunSizes() {
+    return new Object[][] {{1}, {16}, {40}, {1024}};
+  }
+
+  @Test(dataProvider = "runSize")
+  public void testSort(int runSize) throws IOException {
+    File directory = Files.createTempDirectory("sort").toFile();
+    directory.deleteOnExit();
+    File file = new File(directory, "input.vcf");
+    file.deleteOnExit();
+    String lines =
+        "##fileformat=VCFv4.0\n"
+            + "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n"
+            + "X\t5\t.\tA\tC\t.\t.\t.\n"
+            + "MT\t3\t.\tA\tC\t.\t.\t.\n"
+            + "10\t20\t.\tA\tC\t.\t.\t.\n"
+            + "2\t300\tfirst\tA\tC\t.\t.\t.\n"
+            + "2\t40\t.\tA\tC\t.\t.\t.\n"
+            + "2\t300\tsecond\tA\tG\t.\t.\t.\n"
+            + "1\t1000\t.\tA\tC\t.\t.\t.\n";
+    Files.write(file.toPath(), lines.getBytes(StandardCharsets.UTF_8));
+
+    Assert.assertEquals(new VcfSorter(runSize).sort(file.toPath()), 7);
+    Assert.assertEquals(
+        Files.readAllLines(file.toPath()),
+        Arrays.asList(
+            "##fileformat=VCFv4.0",
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+            "1\t1000\t.\tA\tC\t.\t.\t.",
+            "2\t40\t.\tA\tC\t.\t.\t.",
+            "2\t300\tfirst\tA\tC\t.\t.\t.",
+            "2\t300\tsecond\tA\tG\t.\t.\t.",
+            "10\t20\t.\tA\tC\t.\t.\t.",
+            "X\t5\t.\tA\tC\t.\t.\t.",
+            "MT\t3\t.\tA\tC\t.\t.\t."));
+    Assert.assertEquals(directory.list(), new String[] {"input.vcf"});
+  }
+
+  @Test
+  public void testSortEmpty() throws IOException {
+    File file = File.createTempFile("input", ".vcf");
+    file.deleteOnExit();
+
+    Assert.assertEquals(new VcfSorter(16).sort(file.toPath()), 0);
+    Assert.assertEquals(file.length(), 0L);
+  }
+}